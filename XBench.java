@@ -0,0 +1,670 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.Random;
+import org.xml.sax.InputSource;
+
+/**
+  * <code>XBench</code> is a simple timing harness for the building blocks
+  * of X-Diff.  Each measure is taken over a number of rounds, after
+  * rounds of warmup that let the JIT compile the code, and reported as
+  * the mean and the standard deviation of the rounds.  All rounds run in
+  * one JVM, with no fork per benchmark as JMH would do, so the numbers
+  * compare costs measured together; they are indicative, not absolute.
+  */
+class XBench
+{
+	private static String	_usage = "java XBench [-w warmup] [-r rounds] lut [pairs] | hash [length] |\n       tree xml_file1 xml_file2 | doc [width depth change text] |\n       match [siblings] | check [rounds]\nEach time is the mean and the standard deviation of the measured\nrounds, after the warmup rounds, all in one JVM: the numbers are\nindicative, to compare what is timed together, not absolute.\nOptions:\n  -w\tThe # of warmup rounds, not measured. Default value: 3.\n  -r\tThe # of measured rounds. Default value: 5.\nBenchmarks:\n  lut\tTime XLut add/get against the original Hashtable table.\n\tDefault pairs: 250000.\n  hash\tTime the fast hash against the DES hash.\n\tDefault length: 32 characters.\n  tree\tTime parsing and diffing with the node columns in heap\n\tarrays against direct buffers.\n  doc\tTime parsing, diffing and writing a synthetic document\n\tpair: width children per element, depth levels of elements,\n\tthe change rate of the text leaves, and the text length.\n\tDefault: 10 4 0.05 16.\n  match\tTime the matching engines and the greedy mode on lists of\n\t4, 8, ... changed siblings.\n\tDefault siblings: up to 512.\n  check\tCheck the Hungarian engine against the NCC engine: on\n\trandom distance matrices, the distances must be equal, and on\n\tdocument pairs made by XGen, the costs and the # of edits of\n\tthe results.  Any mismatch is printed, and the exit status\n\tis 1.\n\tDefault rounds: 200.";
+
+	private static final int	_WARMUP = 3;
+	private static final int	_ROUNDS = 5;
+
+	// The rounds of each benchmark: warmup, then measured.
+	private static int	_warmup = _WARMUP;
+	private static int	_rounds = _ROUNDS;
+
+	/**
+	  * <code>Timing</code> collects the times of one measure over the
+	  * measured rounds.
+	  */
+	private static class Timing
+	{
+		private String	_name;
+		private int	_count;
+		private double	_sum, _sumSquares;
+
+		Timing(String name)
+		{
+			_name = name;
+		}
+
+		// Add the time of a round, from t0 to t1 in ns, if measured.
+		void add(int round, long t0, long t1)
+		{
+			if (round < _warmup)
+				return;
+			double	ms = (t1 - t0) / 1e6;
+			_sum += ms;
+			_sumSquares += ms * ms;
+			_count++;
+		}
+
+		public String toString()
+		{
+			double	mean = _sum / _count;
+			double	variance = (_count < 2) ? 0 :
+				(_sumSquares - _count * mean * mean) / (_count - 1);
+			return _name + ": " + String.format("%.2f ms +- %.2f",
+				mean, Math.sqrt(Math.max(variance, 0)));
+		}
+	}
+
+	public static void main(String args[])
+	{
+		int	opid = 0;
+		try
+		{
+			if ((args.length > opid + 1) && args[opid].equals("-w"))
+			{
+				_warmup = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + 1) && args[opid].equals("-r"))
+			{
+				_rounds = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+		}
+		catch (NumberFormatException nfe)
+		{
+			_rounds = 0;
+		}
+		if ((args.length <= opid) || (_warmup < 0) || (_rounds < 1))
+		{
+			System.err.println(_usage);
+			return;
+		}
+		String	rest[] = new String[args.length - opid];
+		System.arraycopy(args, opid, rest, 0, rest.length);
+		args = rest;
+
+		try
+		{
+			if (!args[0].equals("check"))
+				System.out.println(_warmup + " warmup rounds, " +
+						   _rounds + " measured rounds");
+			if (args[0].equals("lut"))
+			{
+				int	pairs = (args.length > 1) ?
+					Integer.parseInt(args[1]) : 250000;
+				benchLut(pairs);
+			}
+			else if (args[0].equals("hash"))
+			{
+				int	length = (args.length > 1) ?
+					Integer.parseInt(args[1]) : 32;
+				benchHash(length);
+			}
+			else if (args[0].equals("tree") && (args.length == 3))
+				benchTree(args[1], args[2]);
+			else if (args[0].equals("doc"))
+			{
+				int	width = (args.length > 1) ?
+					Integer.parseInt(args[1]) : 10;
+				int	depth = (args.length > 2) ?
+					Integer.parseInt(args[2]) : 4;
+				double	change = (args.length > 3) ?
+					Double.parseDouble(args[3]) : 0.05;
+				int	text = (args.length > 4) ?
+					Integer.parseInt(args[4]) : 16;
+				benchDocument(width, depth, change, text);
+			}
+			else if (args[0].equals("match"))
+			{
+				int	siblings = (args.length > 1) ?
+					Integer.parseInt(args[1]) : 512;
+				benchMatch(siblings);
+			}
+			else if (args[0].equals("check"))
+			{
+				int	rounds = (args.length > 1) ?
+					Integer.parseInt(args[1]) : 200;
+				if (!checkMatch(rounds))
+					System.exit(1);
+			}
+			else
+				System.err.println(_usage);
+		}
+		catch (NumberFormatException nfe)
+		{
+			System.err.println(_usage);
+		}
+	}
+
+	/**
+	  * Time XLut against the original Hashtable version.
+	  * Node pairs come in sibling-list blocks, like the distance
+	  * matrices of XDiff.
+	  * @param	pairs	# of node pairs
+	  */
+	private static void benchLut(int pairs)
+	{
+		int	width = (int)Math.sqrt(pairs);
+		if (width < 1)
+			width = 1;
+
+		Timing	lutAdd = new Timing("XLut add");
+		Timing	lutGet = new Timing("XLut get");
+		Timing	tableAdd = new Timing("Hashtable add");
+		Timing	tableGet = new Timing("Hashtable get");
+		for (int round = 0; round < _warmup + _rounds; round++)
+		{
+			System.gc();
+			long	t0 = System.nanoTime();
+			XLut	xlut = new XLut();
+			for (int i = 0; i < width; i++)
+				for (int j = 0; j < width; j++)
+					xlut.add(i * 7, j * 11 + 3, i + j);
+			long	t1 = System.nanoTime();
+			long	sum = 0;
+			for (int i = 0; i < width; i++)
+				for (int j = 0; j < width; j++)
+				{
+					sum += xlut.get(i * 7, j * 11 + 3);
+					sum += xlut.get(i * 7 + 1, j * 11 + 3);
+				}
+			long	t2 = System.nanoTime();
+
+			Hashtable	table = new Hashtable(65536);
+			for (int i = 0; i < width; i++)
+				for (int j = 0; j < width; j++)
+					_put(table, i * 7, j * 11 + 3, i + j);
+			long	t3 = System.nanoTime();
+			long	sum0 = 0;
+			for (int i = 0; i < width; i++)
+				for (int j = 0; j < width; j++)
+				{
+					sum0 += _get(table, i * 7, j * 11 + 3);
+					sum0 += _get(table, i * 7 + 1, j * 11 + 3);
+				}
+			long	t4 = System.nanoTime();
+
+			if (sum != sum0)
+				System.err.println("XLut and Hashtable disagree!");
+			lutAdd.add(round, t0, t1);
+			lutGet.add(round, t1, t2);
+			tableAdd.add(round, t2, t3);
+			tableGet.add(round, t3, t4);
+		}
+
+		System.out.println((width * width) + " pairs");
+		System.out.println("  " + lutAdd + ", " + lutGet);
+		System.out.println("  " + tableAdd + ", " + tableGet);
+	}
+
+	/**
+	  * Time the fast hash against the DES hash, on strings and on
+	  * character ranges, with 1 MB of text in words of a given length.
+	  * @param	length	word length
+	  */
+	private static void benchHash(int length)
+	{
+		int	count = Math.max(1, (1 << 20) / Math.max(1, length));
+		char[]	text = new char[count * length];
+		Random	r = new Random(0);
+		for (int i = 0; i < text.length; i++)
+			text[i] = (char)(' ' + r.nextInt(95));
+		String[]	words = new String[count];
+		for (int i = 0; i < count; i++)
+			words[i] = new String(text, i * length, length);
+
+		Timing	strings[] = {new Timing("fast String"),
+					 new Timing("DES String")};
+		Timing	chars[] = {new Timing("fast char[]"),
+				   new Timing("DES char[]")};
+		for (int round = 0; round < _warmup + _rounds; round++)
+		{
+			System.gc();
+			for (int algorithm = XHash.FAST; algorithm <= XHash.DES;
+			     algorithm++)
+			{
+				long	sum = 0;
+				long	t0 = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					sum += XHash.hash(words[i], algorithm);
+				long	t1 = System.nanoTime();
+				for (int i = 0; i < count; i++)
+					sum -= XHash.hash(text, i * length, length,
+							   algorithm);
+				long	t2 = System.nanoTime();
+
+				if (sum != 0)
+					System.err.println("String and char[] hashes disagree!");
+				strings[algorithm].add(round, t0, t1);
+				chars[algorithm].add(round, t1, t2);
+			}
+		}
+
+		System.out.println(count + " words of " + length + " characters");
+		for (int algorithm = XHash.FAST; algorithm <= XHash.DES;
+		     algorithm++)
+			System.out.println("  " + strings[algorithm] + ", " +
+					   chars[algorithm]);
+	}
+
+	/**
+	  * Time parsing and diffing two documents with the node columns
+	  * in heap arrays, then in direct buffers.  The diff includes
+	  * writing the result.
+	  * @param	input1	input file #1
+	  * @param	input2	input file #2
+	  */
+	private static void benchTree(String input1, String input2)
+	{
+		try
+		{
+			File	output = File.createTempFile("xbench", ".xml");
+			output.deleteOnExit();
+
+			Timing	parses[] = {new Timing("heap parse"),
+						new Timing("direct parse")};
+			Timing	diffs[] = {new Timing("diff"), new Timing("diff")};
+			for (int round = 0; round < _warmup + _rounds; round++)
+			{
+				for (int direct = 0; direct < 2; direct++)
+				{
+					System.gc();
+					XOptions	options = new XOptions().withDirectColumns(direct == 1);
+					long	t0 = System.nanoTime();
+					XTree	xtree1 = new XParser(options).parse(input1);
+					XTree	xtree2 = new XParser(options).parse(input2);
+					long	t1 = System.nanoTime();
+
+					XResult	result = new XDiff(options).diff(xtree1, xtree2);
+					result.write(output.getPath());
+					long	t2 = System.nanoTime();
+
+					parses[direct].add(round, t0, t1);
+					diffs[direct].add(round, t1, t2);
+				}
+			}
+
+			for (int direct = 0; direct < 2; direct++)
+				System.out.println("  " + parses[direct] + ", " +
+						   diffs[direct]);
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+		}
+	}
+
+	/**
+	  * Time the phases of a diff of a synthetic document pair, in the
+	  * optimal and the greedy modes: parsing (and hashing) both
+	  * documents, diffing, and writing the result.
+	  * @param	width	# of children of an element
+	  * @param	depth	# of levels of elements
+	  * @param	change	the rate of changed text leaves
+	  * @param	text	the length of a text leaf
+	  */
+	private static void benchDocument(int width, int depth, double change,
+					  int text)
+	{
+		StringBuffer	doc1 = new StringBuffer();
+		StringBuffer	doc2 = new StringBuffer();
+		Random	r = new Random(0);
+		_makeElement(doc1, doc2, 0, width, depth, change, text, r);
+		String	input1 = doc1.toString();
+		String	input2 = doc2.toString();
+
+		try
+		{
+			File	output = File.createTempFile("xbench", ".xml");
+			output.deleteOnExit();
+
+			// By mode, then by phase: parse, diff, write.
+			Timing	timings[][] = new Timing[2][];
+			for (int mode = XOptions.OPTIMAL; mode <= XOptions.GREEDY;
+			     mode++)
+			{
+				String	name = (mode == XOptions.OPTIMAL) ? "optimal" : "greedy";
+				timings[mode - XOptions.OPTIMAL] = new Timing[] {
+					new Timing(name + " parse"),
+					new Timing("diff"), new Timing("write")};
+			}
+
+			for (int round = 0; round < _warmup + _rounds; round++)
+			{
+				for (int mode = XOptions.OPTIMAL; mode <= XOptions.GREEDY;
+				     mode++)
+				{
+					System.gc();
+					Timing	timing[] = timings[mode - XOptions.OPTIMAL];
+					XOptions	options = new XOptions().withMode(mode).withSeed(0);
+					long	t0 = System.nanoTime();
+					XTree	xtree1 = _parse(input1, options);
+					XTree	xtree2 = _parse(input2, options);
+					long	t1 = System.nanoTime();
+					XResult	result = new XDiff(options).diff(xtree1, xtree2);
+					long	t2 = System.nanoTime();
+					result.write(output.getPath());
+					long	t3 = System.nanoTime();
+
+					timing[0].add(round, t0, t1);
+					timing[1].add(round, t1, t2);
+					timing[2].add(round, t2, t3);
+				}
+			}
+
+			System.out.println(input1.length() + " characters");
+			for (int i = 0; i < timings.length; i++)
+				System.out.println("  " + timings[i][0] + ", " +
+						   timings[i][1] + ", " +
+						   timings[i][2]);
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+		}
+	}
+
+	/**
+	  * Time the Hungarian and the NCC matching engines, and the greedy
+	  * mode, on a list of siblings that all changed, so that a distance
+	  * is computed for each pair and the whole list is matched.
+	  * @param	maxSiblings	the longest list
+	  */
+	private static void benchMatch(int maxSiblings)
+	{
+		try
+		{
+			for (int n = 4; n <= maxSiblings; n *= 2)
+			{
+				StringBuffer	doc1 = new StringBuffer("<list>");
+				StringBuffer	doc2 = new StringBuffer("<list>");
+				Random	r = new Random(n);
+				for (int i = 0; i < n; i++)
+					_makeElement(doc1, doc2, 1, 4, 2, 0.5, 8, r);
+				doc1.append("</list>");
+				doc2.append("</list>");
+
+				XOptions	options = new XOptions().withSeed(0);
+				XTree	xtree1 = _parse(doc1.toString(), options);
+				XTree	xtree2 = _parse(doc2.toString(), options);
+
+				Timing	hungarian = new Timing("hungarian");
+				Timing	ncc = new Timing("ncc");
+				Timing	greedy = new Timing("greedy");
+				for (int round = 0; round < _warmup + _rounds; round++)
+				{
+					System.gc();
+					long	t0 = System.nanoTime();
+					new XDiff(options.withMode(XOptions.OPTIMAL)).diff(xtree1, xtree2);
+					long	t1 = System.nanoTime();
+					new XDiff(options.withMode(XOptions.OPTIMAL).withMatchEngine(XOptions.NCC)).diff(xtree1, xtree2);
+					long	t2 = System.nanoTime();
+					new XDiff(options.withMode(XOptions.GREEDY)).diff(xtree1, xtree2);
+					long	t3 = System.nanoTime();
+
+					hungarian.add(round, t0, t1);
+					ncc.add(round, t1, t2);
+					greedy.add(round, t2, t3);
+				}
+
+				System.out.println("  " + n + " siblings " + hungarian +
+						   ", " + ncc + ", " + greedy);
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+		}
+	}
+
+	/**
+	  * Check the Hungarian engine against the NCC engine, the original
+	  * algorithm.  Both are optimal, so they may match differently, but
+	  * only at the same distance.  Each round matches a random distance
+	  * matrix, whose pairs may cost more than a delete and an insert,
+	  * or have no connection at all, and diffs a document pair made by
+	  * XGen in the optimal mode.
+	  * @param	rounds	# of rounds
+	  * @return	false on a mismatch
+	  */
+	private static boolean checkMatch(int rounds)
+	{
+		XOptions	hungarian = new XOptions().withMatchEngine(XOptions.HUNGARIAN);
+		XOptions	ncc = new XOptions().withMatchEngine(XOptions.NCC);
+		XDiff	diff1 = new XDiff(hungarian);
+		XDiff	diff2 = new XDiff(ncc);
+		Random	r = new Random(0);
+		int	mismatches = 0;
+
+		for (int round = 0; round < rounds; round++)
+		{
+			int	count1 = 1 + r.nextInt(32);
+			int	count2 = 1 + r.nextInt(count1);
+			int	dist[][] = new int[count1 + 1][count2 + 1];
+			for (int i = 0; i < count1; i++)
+				dist[i][count2] = 1 + r.nextInt(20);
+			for (int j = 0; j < count2; j++)
+				dist[count1][j] = 1 + r.nextInt(20);
+			for (int i = 0; i < count1; i++)
+				for (int j = 0; j < count2; j++)
+					dist[i][j] = (r.nextInt(5) == 0) ?
+						XTree.NO_CONNECTION :
+						r.nextInt(dist[i][count2] + dist[count1][j] + 4);
+
+			int	matching1[] = new int[count1];
+			int	matching2[] = new int[count2];
+			int	distance1 = diff1.matchLists(count1, count2, dist,
+							     matching1, matching2);
+			String	error = _checkMatching(count1, count2, dist,
+						       matching1, matching2,
+						       distance1);
+			int	distance2 = diff2.matchLists(count1, count2, dist,
+							     matching1, matching2);
+			if (error == null)
+				error = _checkMatching(count1, count2, dist,
+						       matching1, matching2,
+						       distance2);
+			if ((error == null) && (distance1 != distance2))
+				error = "hungarian " + distance1 + ", ncc " + distance2;
+			if (error != null)
+			{
+				System.err.println("MISMATCH: matrix " + round + " (" +
+						   count1 + "x" + count2 + "): " + error);
+				mismatches++;
+			}
+		}
+
+		try
+		{
+			File	base = File.createTempFile("xbench", ".xml");
+			File	changed = File.createTempFile("xbench", ".xml");
+			base.deleteOnExit();
+			changed.deleteOnExit();
+			for (int round = 0; round < rounds; round++)
+			{
+				XGen	gen = new XGen(round, 2 + round % 7,
+						       2 + round % 2, round % 3, 8);
+				int	counts[] = {r.nextInt(4), r.nextInt(4),
+						    r.nextInt(8), r.nextInt(3),
+						    r.nextInt(4)};
+				gen.edit(counts, new StringWriter());
+				gen.writeBase(base.getPath());
+				gen.writeChanged(changed.getPath());
+
+				XTree	xtree1 = new XParser(hungarian).parse(base.getPath());
+				XTree	xtree2 = new XParser(hungarian).parse(changed.getPath());
+				int	edits1[] = diff1.diff(xtree1, xtree2).countEdits();
+				int	edits2[] = diff2.diff(xtree1, xtree2).countEdits();
+				if ((edits1[0] != edits2[0]) || (edits1[1] != edits2[1]))
+				{
+					System.err.println("MISMATCH: document " + round +
+							   ": hungarian cost " + edits1[0] +
+							   " in " + edits1[1] +
+							   " edits, ncc cost " + edits2[0] +
+							   " in " + edits2[1] + " edits");
+					mismatches++;
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+
+		System.out.println(rounds + " matrices, " + rounds +
+				   " documents: " + mismatches + " mismatches");
+		return mismatches == 0;
+	}
+
+	// Check that a matching is one to one, and costs its distance.
+	private static String _checkMatching(int count1, int count2,
+					     int dist[][], int matching1[],
+					     int matching2[], int distance)
+	{
+		int	cost = 0;
+		for (int j = 0; j < count2; j++)
+		{
+			if (matching2[j] == XTree.INSERT)
+				cost += dist[count1][j];
+			else if (matching1[matching2[j]] != j)
+				return "node " + matching2[j] + " is matched to " +
+					j + " in one way only";
+		}
+		for (int i = 0; i < count1; i++)
+		{
+			int	j = matching1[i];
+			if (j == XTree.DELETE)
+				cost += dist[i][count2];
+			else if ((matching2[j] != i) ||
+				 (dist[i][j] >= XTree.NO_CONNECTION))
+				return "node " + i + " is matched to " + j +
+					" in one way only, or with no connection";
+			else
+				cost += dist[i][j];
+		}
+		if (cost != distance)
+			return "the matching costs " + cost + ", not " + distance;
+		return null;
+	}
+
+	/**
+	  * Append an element to both documents of a pair, with the same
+	  * structure; text leaves of the second document change at random.
+	  * @param	doc1	document #1
+	  * @param	doc2	document #2
+	  * @param	level	the level of the element, from 0 for the root
+	  * @param	width	# of children of an element
+	  * @param	depth	# of levels of elements
+	  * @param	change	the rate of changed text leaves
+	  * @param	text	the length of a text leaf
+	  * @param	r	random generator
+	  */
+	private static void _makeElement(StringBuffer doc1, StringBuffer doc2,
+					 int level, int width, int depth,
+					 double change, int text, Random r)
+	{
+		String	start = "<e" + level + " id=\"" + r.nextInt(1000000) + "\">";
+		doc1.append(start);
+		doc2.append(start);
+		if (level == depth - 1)
+		{
+			String	value = _makeText(text, r);
+			doc1.append(value);
+			doc2.append((r.nextDouble() < change) ?
+				    _makeText(text, r) : value);
+		}
+		else
+		{
+			for (int i = 0; i < width; i++)
+				_makeElement(doc1, doc2, level + 1, width, depth,
+					     change, text, r);
+		}
+		doc1.append("</e" + level + ">");
+		doc2.append("</e" + level + ">");
+	}
+
+	private static String _makeText(int length, Random r)
+	{
+		char	text[] = new char[length];
+		for (int i = 0; i < length; i++)
+			text[i] = (char)('a' + r.nextInt(26));
+		return new String(text);
+	}
+
+	private static XTree _parse(String doc, XOptions options)
+		throws IOException
+	{
+		return new XParser(options).parse(
+			new InputSource(new StringReader(doc)));
+	}
+
+	// The original XLut.add
+	private static void _put(Hashtable table, int eid1, int eid2, int dist)
+	{
+		long	key = eid1;
+		key = key << 32;
+		key += eid2;
+
+		table.put(Long.valueOf(key), Integer.valueOf(dist));
+	}
+
+	// The original XLut.get
+	private static int _get(Hashtable table, int eid1, int eid2)
+	{
+		long	key = eid1;
+		key = key << 32;
+		key += eid2;
+
+		Integer	value = (Integer)table.get(Long.valueOf(key));
+		if (value == null)
+			return XTree.NO_CONNECTION;
+		else
+			return value.intValue();
+	}
+}
@@ -0,0 +1,508 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+/**
+  * <code>XDelta</code> writes a diff result as an edit script: only the
+  * changes, so that its size follows the size of the change rather than
+  * the size of the documents.
+  *
+  * A node is given by its path in the old document: the positions of
+  * its ancestors and of itself among their children, from 0, where the
+  * children are elements and text nodes as the parser keeps them, not
+  * attributes.  The root element is "/0".  An inserted node is given by
+  * the path of its parent and its position among the new children.
+  *
+  * In the JSON format, each line is a JSON object.  The first one
+  * is the header,
+  * <pre>
+  * {"delta":1,"hash":"fast","root1":"hex hash","root2":"hex hash"}
+  * </pre>
+  * with <code>"ordered":"tags"</code> after the hash function if the
+  * children of some elements are ordered, since their hash values
+  * depend on it, and <code>"prolog":"..."</code> after them if the new
+  * document has a prolog, the lines before its root element, and the
+  * others are operations,
+  * <pre>
+  * {"op":"delete","path":"/0/1"}
+  * {"op":"insert","path":"/0","index":2,"xml":"&lt;b&gt;...&lt;/b&gt;"}
+  * {"op":"insert","path":"/0","index":2,"text":"..."}
+  * {"op":"update","path":"/0/1/0","old":"...","new":"..."}
+  * {"op":"delete-attribute","path":"/0/1","name":"id","old":"..."}
+  * {"op":"insert-attribute","path":"/0/1","name":"id","new":"..."}
+  * {"op":"update-attribute","path":"/0/1","name":"id","old":"...","new":"..."}
+  * {"op":"move","path":"/0/1","index":3}
+  * </pre>
+  * A move, only found among ordered children, takes a node to another
+  * position among the new children of its parent, as an insert does.
+  * The binary format has the same content.  It starts with "XDLT", the
+  * version, the hash function (a byte, with ORDERED set if a string of
+  * the ordered tags follows it, and PROLOG if a string of the prolog
+  * follows them) and the two root hashes (8 bytes
+  * each, big-endian); then come the operations, each a byte (the DELETE
+  * to MOVE codes below) and its fields, and a 0 byte ends
+  * it.  A number is an unsigned LEB128 varint, a path is its length and
+  * its positions, and a string is its length in bytes and its UTF-8
+  * bytes.
+  */
+class XDelta
+{
+	// The version of the formats.
+	public static final int	VERSION = 1;
+
+	// Operation codes of the binary format.
+	public static final int	END = 0;
+	public static final int	DELETE = 1;
+	public static final int	INSERT_ELEMENT = 2;
+	public static final int	INSERT_TEXT = 3;
+	public static final int	UPDATE = 4;
+	public static final int	DELETE_ATTRIBUTE = 5;
+	public static final int	INSERT_ATTRIBUTE = 6;
+	public static final int	UPDATE_ATTRIBUTE = 7;
+	public static final int	MOVE = 8;
+
+	// Flags of the hash function byte: the ordered tags follow, and
+	// the prolog of the new document follows.
+	public static final int	ORDERED = 0x80;
+	public static final int	PROLOG = 0x40;
+
+	private int		_format;
+	private Writer		_out;		// JSON
+	private OutputStream	_bout;		// binary
+	private StringBuffer	_xml = new StringBuffer();
+
+	/**
+	  * Constructor
+	  * @param	out	output stream, which is not closed
+	  * @param	format	XOptions.JSON or XOptions.BINARY
+	  */
+	public XDelta(OutputStream out, int format)
+	{
+		if (format == XOptions.JSON)
+			_out = new XOutput(Channels.newChannel(out), "UTF-8");
+		else if (format == XOptions.BINARY)
+			_bout = new BufferedOutputStream(out, 1 << 16);
+		else
+			throw new IllegalArgumentException("Not a delta format: " + format);
+		_format = format;
+	}
+
+	/**
+	  * Write the header.
+	  * @param	algorithm	the hash function of the trees
+	  * @param	ordered		the tags of the elements whose children
+	  *				are ordered, which the hash values
+	  *				depend on, as XOptions has them, or null
+	  * @param	prolog		the prolog of the new document, or null
+	  * @param	hash1		the hash value of the old root
+	  * @param	hash2		the hash value of the new root
+	  */
+	public void start(int algorithm, String ordered, String prolog,
+			  long hash1, long hash2) throws IOException
+	{
+		if ((prolog != null) && (prolog.length() == 0))
+			prolog = null;
+
+		if (_format == XOptions.JSON)
+		{
+			_out.write("{\"delta\":" + VERSION + ",\"hash\":\"");
+			_out.write((algorithm == XHash.DES) ? "des" : "fast");
+			_out.write('"');
+			if (ordered != null)
+				_writeString("ordered", ordered);
+			if (prolog != null)
+				_writeString("prolog", prolog);
+			_out.write(",\"root1\":\"" + Long.toHexString(hash1) +
+				   "\",\"root2\":\"" + Long.toHexString(hash2) +
+				   "\"}\n");
+		}
+		else
+		{
+			_bout.write(new byte[] { 'X', 'D', 'L', 'T' });
+			_writeNumber(VERSION);
+			_bout.write(algorithm | ((ordered == null) ? 0 : ORDERED) |
+				    ((prolog == null) ? 0 : PROLOG));
+			if (ordered != null)
+				_writeString("ordered", ordered);
+			if (prolog != null)
+				_writeString("prolog", prolog);
+			_writeLong(hash1);
+			_writeLong(hash2);
+		}
+	}
+
+	/**
+	  * Delete a node, and its subtree.
+	  * @param	path	the path of the node
+	  * @param	depth	the length of the path
+	  */
+	public void delete(int path[], int depth) throws IOException
+	{
+		_startOperation(DELETE, "delete", path, depth);
+		_endOperation();
+	}
+
+	/**
+	  * Insert a node of the new document, and its subtree.
+	  * @param	path	the path of the parent
+	  * @param	depth	the length of the path
+	  * @param	index	the position of the node among its siblings
+	  * @param	xtree	the new tree
+	  * @param	node	the node
+	  */
+	public void insert(int path[], int depth, int index, XTree xtree,
+			   int node) throws IOException
+	{
+		boolean	element = xtree.isElement(node);
+		_startOperation(element ? INSERT_ELEMENT : INSERT_TEXT,
+				"insert", path, depth);
+		_writeNumber("index", index);
+		if (element)
+		{
+			_xml.setLength(0);
+			_appendElement(xtree, node);
+			_writeString("xml", _xml);
+		}
+		else
+			_writeString("text", xtree.getText(node));
+		_endOperation();
+	}
+
+	/**
+	  * Change the value of a text node.
+	  * @param	path	the path of the text node
+	  * @param	depth	the length of the path
+	  * @param	oldText	the old value
+	  * @param	newText	the new value
+	  */
+	public void update(int path[], int depth, String oldText,
+			   String newText) throws IOException
+	{
+		_startOperation(UPDATE, "update", path, depth);
+		_writeString("old", oldText);
+		_writeString("new", newText);
+		_endOperation();
+	}
+
+	/**
+	  * Delete an attribute.
+	  * @param	path	the path of the element
+	  * @param	depth	the length of the path
+	  * @param	name	the name of the attribute
+	  * @param	value	its old value
+	  */
+	public void deleteAttribute(int path[], int depth, String name,
+				    String value) throws IOException
+	{
+		_startOperation(DELETE_ATTRIBUTE, "delete-attribute", path,
+				depth);
+		_writeString("name", name);
+		_writeString("old", value);
+		_endOperation();
+	}
+
+	/**
+	  * Insert an attribute.
+	  * @param	path	the path of the element
+	  * @param	depth	the length of the path
+	  * @param	name	the name of the attribute
+	  * @param	value	its value
+	  */
+	public void insertAttribute(int path[], int depth, String name,
+				    String value) throws IOException
+	{
+		_startOperation(INSERT_ATTRIBUTE, "insert-attribute", path,
+				depth);
+		_writeString("name", name);
+		_writeString("new", value);
+		_endOperation();
+	}
+
+	/**
+	  * Change the value of an attribute.
+	  * @param	path	the path of the element
+	  * @param	depth	the length of the path
+	  * @param	name	the name of the attribute
+	  * @param	oldValue	the old value
+	  * @param	newValue	the new value
+	  */
+	public void updateAttribute(int path[], int depth, String name,
+				    String oldValue,
+				    String newValue) throws IOException
+	{
+		_startOperation(UPDATE_ATTRIBUTE, "update-attribute", path,
+				depth);
+		_writeString("name", name);
+		_writeString("old", oldValue);
+		_writeString("new", newValue);
+		_endOperation();
+	}
+
+	/**
+	  * Move a node, and its subtree, among the children of its parent.
+	  * @param	path	the path of the node
+	  * @param	depth	the length of the path
+	  * @param	index	its position among the new children
+	  */
+	public void move(int path[], int depth, int index) throws IOException
+	{
+		_startOperation(MOVE, "move", path, depth);
+		_writeNumber("index", index);
+		_endOperation();
+	}
+
+	/**
+	  * End the script, and flush it to the output stream.
+	  */
+	public void finish() throws IOException
+	{
+		if (_format == XOptions.JSON)
+			_out.flush();
+		else
+		{
+			_bout.write(END);
+			_bout.flush();
+		}
+	}
+
+	private void _startOperation(int code, String op, int path[],
+				     int depth) throws IOException
+	{
+		if (_format == XOptions.JSON)
+		{
+			_out.write("{\"op\":\"");
+			_out.write(op);
+			_out.write("\",\"path\":\"");
+			for (int i = 0; i < depth; i++)
+			{
+				_out.write('/');
+				_out.write(Integer.toString(path[i]));
+			}
+			_out.write('"');
+		}
+		else
+		{
+			_bout.write(code);
+			_writeNumber(depth);
+			for (int i = 0; i < depth; i++)
+				_writeNumber(path[i]);
+		}
+	}
+
+	private void _endOperation() throws IOException
+	{
+		if (_format == XOptions.JSON)
+			_out.write("}\n");
+	}
+
+	private void _writeNumber(String name, int n) throws IOException
+	{
+		if (_format == XOptions.JSON)
+		{
+			_out.write(",\"");
+			_out.write(name);
+			_out.write("\":");
+			_out.write(Integer.toString(n));
+		}
+		else
+			_writeNumber(n);
+	}
+
+	private void _writeNumber(long n) throws IOException
+	{
+		while ((n & ~0x7fL) != 0)
+		{
+			_bout.write((int)((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		_bout.write((int)n);
+	}
+
+	private void _writeLong(long n) throws IOException
+	{
+		for (int shift = 56; shift >= 0; shift -= 8)
+			_bout.write((int)(n >>> shift));
+	}
+
+	private void _writeString(String name,
+				  CharSequence s) throws IOException
+	{
+		if (_format == XOptions.JSON)
+		{
+			_out.write(",\"");
+			_out.write(name);
+			_out.write("\":\"");
+			int	length = s.length();
+			for (int i = 0; i < length; i++)
+			{
+				char	c = s.charAt(i);
+				switch (c)
+				{
+				case '"':
+					_out.write("\\\"");
+					break;
+				case '\\':
+					_out.write("\\\\");
+					break;
+				case '\n':
+					_out.write("\\n");
+					break;
+				case '\r':
+					_out.write("\\r");
+					break;
+				case '\t':
+					_out.write("\\t");
+					break;
+				default:
+					if (c < ' ')
+						_out.write(String.format("\\u%04x", (int)c));
+					else
+						_out.write(c);
+				}
+			}
+			_out.write('"');
+		}
+		else
+		{
+			byte	bytes[] = s.toString().getBytes(StandardCharsets.UTF_8);
+			_writeNumber(bytes.length);
+			_bout.write(bytes);
+		}
+	}
+
+	/**
+	  * Append an inserted element as XML, escaped so that parsing it
+	  * again gives the same subtree.  CDATA sections are escaped too.
+	  */
+	private void _appendElement(XTree xtree, int node)
+	{
+		String	tag = xtree.getTag(node);
+		_xml.append('<').append(tag);
+		int	attr = xtree.getFirstAttribute(node);
+		while (attr > 0)
+		{
+			_xml.append(' ').append(xtree.getTag(attr)).append("=\"");
+			escape(_xml, xtree.getAttributeValue(attr), true);
+			_xml.append('"');
+			attr = xtree.getNextAttribute(attr);
+		}
+
+		// An empty element has an empty text node.
+		int	child = xtree.getFirstChild(node);
+		if ((child < 0) ||
+		    (!xtree.isElement(child) && (xtree.getText(child).length() == 0) &&
+		     (xtree.getNextSibling(child) <= 0)))
+		{
+			_xml.append("/>");
+			return;
+		}
+
+		_xml.append('>');
+		while (child > 0)
+		{
+			if (xtree.isElement(child))
+				_appendElement(xtree, child);
+			else
+				escape(_xml, xtree.getText(child), false);
+			child = xtree.getNextSibling(child);
+		}
+		_xml.append("</").append(tag).append('>');
+	}
+
+	/**
+	  * Append text as XML, escaped so that a parser reads it back.
+	  * @param	xml		where to append it
+	  * @param	text		the text
+	  * @param	attribute	true for an attribute value
+	  */
+	static void escape(StringBuffer xml, String text, boolean attribute)
+	{
+		int	length = text.length();
+		int	i = 0;
+		while (i < length)
+		{
+			char	c = text.charAt(i);
+			if ((c == '&') || (c == '<') || (c == '>') || (c == '\r') ||
+			    (attribute && ((c == '"') || (c == '\t') || (c == '\n'))))
+				break;
+			i++;
+		}
+		if (i == length)
+		{
+			xml.append(text);
+			return;
+		}
+
+		xml.append(text, 0, i);
+		for (; i < length; i++)
+		{
+			char	c = text.charAt(i);
+			switch (c)
+			{
+			case '&':
+				xml.append("&amp;");
+				break;
+			case '<':
+				xml.append("&lt;");
+				break;
+			case '>':
+				xml.append("&gt;");
+				break;
+			case '\r':
+				xml.append("&#13;");
+				break;
+			case '"':
+			case '\t':
+			case '\n':
+				// Attribute values are normalized by parsers.
+				if (attribute)
+					xml.append("&#").append((int)c).append(';');
+				else
+					xml.append(c);
+				break;
+			default:
+				xml.append(c);
+			}
+		}
+	}
+}
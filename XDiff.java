@@ -36,132 +36,441 @@
   */
 
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Hashtable;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
   * <code>XDiff</code> computes the difference of two input XML documents.
   */
 class XDiff
 {
-	private static String	_usage = "java XDiff [-o|-g] [-p percent] [-e encoding] xml_file1 xml_file2 diff_result\nOptions:\n  The default setting is \"-o -p 0.3 -e UTF8\"\n  -o\tThe optimal mode, to get the minimum editing distance.\n  -g\tThe greedy mode, to find a difference quickly.\n  -p\tThe maximum change percentage allowed.\n\tDefault value: 1.0 for -o mode; 0.3 for -g mode.\n  -e\tThe encoding of the output file.\n\tDefault value: UTF8.";
-
-	private static final int	_CIRCUIT_SIZE = 2048;
-	private static final int	_MATRIX_SIZE = 1024;
-	private	static final int	_ATTRIBUTE_SIZE = 1024;
-	private static final int	_TEXT_SIZE = 1024;
-	private static boolean		_oFlag = false, _gFlag = false;
-	private static double		_NO_MATCH_THRESHOLD = 0.3;
-	private static final int	_sampleCount = 3;
+	private static String	_usage = "java XDiff [-o|-g] [-p percent] [-e encoding] [-m engine] [-j threads] [-c cutoff] [-a hash] [-l] [-d] [-i] [-k keys] [-r tags] [-seed seed] [-n samples] [-t millis] [-b cells] [-f format] xml_file1 xml_file2 diff_result\n       java XDiff -s [-a hash] [-r tags] xml_file snapshot_file\nThe options may come in any order, before the files.\nEither input may be a snapshot made by -s instead of an XML document,\nif made with the same -a and -r options as the diff.\nOptions:\n  The default setting is \"-o -p 0.3 -e UTF8 -m hungarian\"\n  -o\tThe optimal mode, to get the minimum editing distance.\n  -g\tThe greedy mode, to find a difference quickly.\n  -p\tThe maximum change percentage allowed.\n\tDefault value: 1.0 for -o mode; 0.3 for -g mode.\n  -e\tThe encoding of the output file.\n\tDefault value: UTF8.\n  -m\tThe minimal-cost matching engine, \"hungarian\" or \"ncc\"\n\t(negative cost circuit, the original algorithm).\n\tDefault value: hungarian.\n  -j\tThe # of threads that diff matched subtrees in parallel.\n\tDefault value: 1.\n  -c\tThe minimal size (in nodes) of a subtree pair that is\n\tdiffed in its own parallel task.\n\tDefault value: 1024.\n  -a\tThe hash function, \"fast\" or \"des\" (the original one,\n\tto reproduce the results of earlier versions).\n\tDefault value: fast.\n  -l\tKeep text values in a memory-mapped temporary file instead\n\tof the heap, and only read them back when needed.\n  -d\tKeep the node columns of the trees in direct buffers, out\n\tof the heap.\n  -i\tIndex identical subtrees across the whole trees, and take\n\ta subtree (of 16 nodes or more) found under another parent\n\tas moved: deleted and inserted without computing distances.\n  -k\tMatch elements by key attributes, e.g., \"item@sku,@id\": the\n\tsku of item elements, and the id of the other elements.\n\tSiblings with the same tag and key are matched without\n\tcomputing distances, and a key that is gone is deleted.\n  -r\tTake the children of elements as ordered, as in documents,\n\te.g., \"p,li,section\", or \"*\" for all elements.  Children\n\tare aligned by hash, then by tag, as sequences; only those\n\taligned but different are diffed, and identical ones out of\n\torder are moved.\n  -seed\tThe seed of the sampling in the -g mode, for the same\n\tresult from run to run. Default: the current time.\n  -n\tThe # of nodes the -g mode samples from a list.\n\tDefault value: 3.\n  -t\tThe time budget of the diff after parsing, in ms. Once spent,\n\tunmatched children are deleted and inserted, and the lists\n\tbeing matched are matched greedily. Default: none.\n  -b\tThe budget of distance, matrix and matching cells to\n\tcompute, with the same effect. Default: none.\n  -f\tThe format of the diff result: \"xml\", the first document\n\tannotated with the changes, or an edit script of the changes\n\talone, \"json\" (JSON lines) or \"binary\".\n\tDefault value: xml.\n  -s\tParse an XML document and save its tree as a snapshot, to\n\tskip parsing when diffing it again.  The hash function and\n\tthe ordered tags are recorded in the snapshot, and a diff\n\twith others rejects it.";
+
+	private static final int	_LIST_SIZE = 16;
 	private static final boolean	_DEBUG = false;
-	private static String		_encoding = "UTF8";
+	// Below this many pairs, exact matching of hashes just scans.
+	private static final int	_SCAN_SIZE = 64;
+	// Min size of a subtree taken as moved, with the subtree index.
+	private static final int	_MOVED_SIZE = 16;
+	// Elements without a key, and with a key found in no sibling of
+	// the other tree, as told by _matchKeys.
+	private static final int	_NO_KEY = -1;
+	private static final int	_NO_PARTNER = -2;
+	// Max # of deletions and insertions to align ordered children by.
+	private static final int	_MAX_ALIGN = 1024;
+
+	// The options; the ones read all along the diff are kept apart.
+	private XOptions	_options;
+	private boolean		_oFlag, _gFlag;
+	private double		_noMatchThreshold;
+	private int		_sampleCount;
+	private int		_parallelCutoff;
+	private boolean		_subtreeIndex;
+	private boolean		_keyed;
+	private boolean		_ordered;
 
 	private XTree	_xtree1, _xtree2;
+	// Matching info of the nodes of each tree, by node id: MATCH,
+	// NO_MATCH, or the matched node id + 1.  The trees themselves are
+	// only read, so that they can be diffed by several diffs at once.
+	private int	_matching1[], _matching2[];
+	// Partner + 1 of the nodes moved among ordered children, else 0.
+	private int	_moves1[], _moves2[];
 	private XLut	_xlut;
-	private int	_leastCostMatrix[][], _pathMatrix[][], _circuit[];
+	// Where distances computed by _xdiff are recorded; a worker keeps
+	// its own table, which is merged into _xlut by the main diff.
+	private XLut	_localLut;
+	// Row-major (count x count) matrices of the NCC matching engine.
+	private int	_leastCostMatrix[], _pathMatrix[], _circuit[];
 
 	private int	_attrList1[], _attrList2[], _textList1[], _textList2[];
 	private boolean _attrMatch[], _textMatch1[], _textMatch2[];
-	private long	_attrHash[], _textHash[];
+	private long	_attrHash[], _textHash1[], _textHash[];
 	private String	_attrTag[];
 
 	private int	_matchp[];
 	private boolean	_needNewLine;
-	
+	// Changes to the attributes of an element, written after its tag.
+	private StringBuffer	_annotation;
+	// Positions of the node written in the edit script, from the root.
+	private int	_path[];
+	// Positions of the children of the node written, in tree #2.
+	private int	_position2[];
+
+	// Each thread of the pool diffs with its own worker, which shares
+	// the trees and the lookup table but has its own scratch space.
+	private ForkJoinPool	_pool;
+	private ThreadLocal	_workers;
+	private Vector		_workerList;
+
+	// Budget state, shared with the workers; null without a budget.
+	private AtomicBoolean	_exhausted;
+	private AtomicLong	_cells;
+	private boolean		_hasDeadline;
+	private long		_deadline;	// System.nanoTime()
+	private Vector		_degraded;	// parents in tree #1
+	// Set when the last matching was cut short by the budget.
+	private boolean		_cutShort;
+
 
 	/**
-	  * Constructor
-	  * @param	input1		input file #1
-	  * @param	input2		input file #2
-	  * @param	output		output file
+	  * Constructor of a diff engine.  An engine keeps nothing but its
+	  * options, and each diff works with state of its own, so that one
+	  * engine can diff from many threads at once.
+	  * @param	options		the options of the diffs
 	  */
-	public XDiff(String input1, String input2, String output)
+	public XDiff(XOptions options)
 	{
-		// Parse input files
-		System.out.println("Parsing input1");
-		XParser parser = new XParser();
-		long	t0 = System.currentTimeMillis();
-		_xtree1 = parser.parse(input1);
-		long	t1 = System.currentTimeMillis();
-		System.out.println("Parsing input2");
-		parser = new XParser();
-		_xtree2 = parser.parse(input2);
-		long	t2 = System.currentTimeMillis();
+		_options = options;
+	}
+
+	/**
+	  * Diff two trees.  The trees are only read, so that a tree, e.g.,
+	  * a baseline document, may be diffed by several diffs at once.
+	  * @param	xtree1		the tree of the first/old document
+	  * @param	xtree2		the tree of the second/new document
+	  * @return	the result, which can be written out
+	  */
+	public XResult diff(XTree xtree1, XTree xtree2)
+	{
+		XDiff	diff = new XDiff(_options, xtree1, xtree2);
+		boolean	different = diff._diff();
+		return new XResult(diff, different, _options);
+	}
+
+	/**
+	  * Constructor of a single diff of two trees.
+	  * @param	options		the options
+	  * @param	xtree1		tree #1
+	  * @param	xtree2		tree #2
+	  */
+	private XDiff(XOptions options, XTree xtree1, XTree xtree2)
+	{
+		_useOptions(options);
+		_xtree1 = xtree1;
+		_xtree2 = xtree2;
+		_matching1 = new int[xtree1.getNodeCount()];
+		_matching2 = new int[xtree2.getNodeCount()];
+		if (options.isOrdered())
+		{
+			_moves1 = new int[xtree1.getNodeCount()];
+			_moves2 = new int[xtree2.getNodeCount()];
+		}
+		_matchp = new int[2];
+		_annotation = new StringBuffer();
+		if ((options.getTimeBudget() > 0) || (options.getCellBudget() > 0))
+		{
+			_exhausted = new AtomicBoolean(false);
+			_cells = new AtomicLong(0);
+			_degraded = new Vector();
+			_hasDeadline = (options.getTimeBudget() > 0);
+		}
+	}
+
+	// Keep the options, and the ones read all along the diff apart.
+	private void _useOptions(XOptions options)
+	{
+		_options = options;
+		_oFlag = (options.getMode() == XOptions.OPTIMAL);
+		_gFlag = (options.getMode() == XOptions.GREEDY);
+		_noMatchThreshold = options.getNoMatchThreshold();
+		_sampleCount = options.getSampleCount();
+		_parallelCutoff = options.getParallelCutoff();
+		_subtreeIndex = options.isSubtreeIndex();
+		_keyed = options.isKeyed();
+		_ordered = options.isOrdered();
+	}
 
+	/**
+	  * Diff the trees, recording the matching info of their nodes.
+	  * @return	false if there is no difference
+	  */
+	private boolean _diff()
+	{
 		// check both root nodes.
 		int	root1 = _xtree1.getRoot();
 		int	root2 = _xtree2.getRoot();
 		if (_xtree1.getHashValue(root1) == _xtree2.getHashValue(root2))
+			return false;
+
+		// Pre-size the lookup table for about one node pair
+		// per node of the larger tree.
+		int	size1 = _xtree1.getDecendentsCount(root1) + 1;
+		int	size2 = _xtree2.getDecendentsCount(root2) + 1;
+		_xlut = new XLut(Math.max(size1, size2));
+		_localLut = _xlut;
+
+		if (_xtree1.getTag(root1).compareTo(_xtree2.getTag(root2)) != 0)
 		{
-			System.out.println("No difference!");
-			System.out.println("Execution time: " + (t2 - t0) + " ms");
-			System.out.println("Parsing " + input1 + ": " +
-					   (t1 - t0) + " ms");
-			System.out.println("Parsing " + input2 + ": " + (t2 - t1) + " ms");
+			_matchp[0] = XTree.NO_MATCH;
+			_addMatching(_matching1, root1, _matchp);
+			_addMatching(_matching2, root2, _matchp);
+			return true;
 		}
-		else
+
+		if (_subtreeIndex)
 		{
-			_xlut = new XLut();
-			_matchp = new int[2];
+			_xtree1.buildSubtreeIndex(_MOVED_SIZE);
+			_xtree2.buildSubtreeIndex(_MOVED_SIZE);
+		}
 
-			if (_xtree1.getTag(root1).compareTo(_xtree2.getTag(root2)) != 0)
+		int	parallelism = _options.getParallelism();
+		if (parallelism > 1)
+		{
+			_pool = new ForkJoinPool(parallelism);
+			_workerList = new Vector(parallelism);
+			_workers = new ThreadLocal()
 			{
-				System.out.println("The root is changed!");
-				_matchp[0] = XTree.NO_MATCH;
-				_xtree1.addMatching(root1, _matchp);
-				_xtree2.addMatching(root2, _matchp);
-			}
-			else
+				protected Object initialValue()
+				{
+					XDiff	worker = new XDiff(XDiff.this);
+					_workerList.addElement(worker);
+					return worker;
+				}
+			};
+		}
+
+		_matchp[0] = XTree.CHANGE;
+		_matchp[1] = root2;
+		_addMatching(_matching1, root1, _matchp);
+		_matchp[1] = root1;
+		_addMatching(_matching2, root2, _matchp);
+		_deadline = System.nanoTime() +
+			    _options.getTimeBudget() * 1000000L;
+		try
+		{
+			xdiff(root1, root2, false);
+		}
+		finally
+		{
+			if (_pool != null)
 			{
-				// initialize data structures.
-				_attrList1	= new int[_ATTRIBUTE_SIZE];
-				_attrList2	= new int[_ATTRIBUTE_SIZE];
-				_attrMatch	= new boolean[_ATTRIBUTE_SIZE];
-				_attrHash	= new long[_ATTRIBUTE_SIZE];
-				_attrTag	= new String[_ATTRIBUTE_SIZE];
+				_pool.shutdown();
+				_pool = null;
+			}
+		}
 
-				_textList1	= new int[_TEXT_SIZE];
-				_textList2	= new int[_TEXT_SIZE];
-				_textMatch1	= new boolean[_TEXT_SIZE];
-				_textMatch2	= new boolean[_TEXT_SIZE];
-				_textHash	= new long[_TEXT_SIZE];
+		return true;
+	}
 
-				_leastCostMatrix = new int[_MATRIX_SIZE][];
-				_pathMatrix	 = new int[_MATRIX_SIZE][];
-				_circuit	 = new int[_CIRCUIT_SIZE];
+	/**
+	  * Read an input: parse an XML document, or load a snapshot.
+	  * XServer reads its input files with it too.
+	  * @param	input	XML document or snapshot file
+	  * @param	options	the options of the tree
+	  * @return	the tree
+	  */
+	static XTree readTree(String input,
+			      XOptions options) throws IOException
+	{
+		if (!XTree.isSnapshot(input))
+			return new XParser(options).parse(input);
 
-				for (int i = 0; i < _MATRIX_SIZE; i++)
-				{
-					_leastCostMatrix[i] = new int[_MATRIX_SIZE];
-					_pathMatrix[i] = new int[_MATRIX_SIZE];
-				}
+		return XTree.load(input, options);
+	}
 
-				_matchp[0] = XTree.CHANGE;
-				_matchp[1] = root2;
-				_xtree1.addMatching(root1, _matchp);
-				_matchp[1] = root1;
-				_xtree2.addMatching(root2, _matchp);
-				xdiff(root1, root2, false);
-			}
+	/**
+	  * Constructor of a worker that diffs subtrees in a thread of the
+	  * pool: it shares the trees and the lookup table with the main
+	  * diff, but has its own scratch space.
+	  * @param	parent	the main diff
+	  */
+	private XDiff(XDiff parent)
+	{
+		_useOptions(parent._options);
+		_xtree1 = parent._xtree1;
+		_xtree2 = parent._xtree2;
+		_matching1 = parent._matching1;
+		_matching2 = parent._matching2;
+		_moves1 = parent._moves1;
+		_moves2 = parent._moves2;
+		_xlut = parent._xlut;
+		_localLut = new XLut();
+		_pool = parent._pool;
+		_workers = parent._workers;
+		_exhausted = parent._exhausted;
+		_cells = parent._cells;
+		_hasDeadline = parent._hasDeadline;
+		_deadline = parent._deadline;
+		_degraded = parent._degraded;
+		_matchp = new int[2];
+	}
 
-			long	t3 = System.currentTimeMillis();
-			writeDiff(input1, output);
-			long	t4 = System.currentTimeMillis();
+	/**
+	  * Check if the budget of the diff is exhausted.  Once it is, the
+	  * children of the parents still to diff are deleted and inserted
+	  * rather than matched, and distances still to compute are
+	  * replaced by the cost of deleting and inserting.
+	  */
+	private boolean _budgetExhausted()
+	{
+		if (_exhausted == null)
+			return false;
+		if (_exhausted.get())
+			return true;
 
-			System.out.println("Difference detected!");
-			System.out.println("Execution time: " + (t4 - t0) + " ms");
-			System.out.println("Parsing " + input1 + ": " + (t1 - t0) + " ms");
-			System.out.println("Parsing " + input2 + ": " + (t2 - t1) + " ms");
-			System.out.println("Diffing: " + (t3 - t2) + " ms");
-			System.out.println("Writing result: " + (t4 - t3) + " ms");
+		long	cellBudget = _options.getCellBudget();
+		if ((_hasDeadline && (System.nanoTime() - _deadline > 0)) ||
+		    ((cellBudget > 0) && (_cells.get() > cellBudget)))
+		{
+			_exhausted.set(true);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	  * Check if the budget allows the steps of a matching, and count
+	  * them against it.  If they would go past the cell budget, it is
+	  * exhausted at once rather than spent on a matching that cannot
+	  * finish.
+	  * @param	cells	# of cells, as estimated
+	  */
+	private boolean _budgetAllows(long cells)
+	{
+		if (_exhausted == null)
+			return true;
+		if (_budgetExhausted())
+			return false;
+
+		long	cellBudget = _options.getCellBudget();
+		if ((cellBudget > 0) && (_cells.get() + cells > cellBudget))
+		{
+			_exhausted.set(true);
+			return false;
+		}
+		_charge(cells);
+		return true;
+	}
+
+	/**
+	  * Count distance or matrix cells against the budget.
+	  * @param	cells	# of cells
+	  */
+	private void _charge(long cells)
+	{
+		if (_cells != null)
+			_cells.addAndGet(cells);
+	}
+
+	/**
+	  * Check if the budget ran out, so that the children of some
+	  * subtrees were deleted and inserted, or matched with distances
+	  * or a matching cut short.
+	  */
+	boolean isDegraded()
+	{
+		return (_degraded != null) && (_degraded.size() > 0);
+	}
+
+	/**
+	  * Get the degraded subtrees.
+	  * @return	the ids, in tree #1, of the parents whose children
+	  *		were not diffed minimally for lack of budget
+	  */
+	Vector getDegradedNodes()
+	{
+		return _degraded;
+	}
+
+	/**
+	  * Record matching information.
+	  * Only the slot of eid is written, so that different threads may
+	  * record matching info of disjoint nodes.
+	  * @param	matching	matching info of a tree
+	  * @param	eid		element id
+	  * @param	match		?match and matched element id
+	  */
+	private static void _addMatching(int matching[], int eid, int match[])
+	{
+		if (match[0] == XTree.NO_MATCH)
+			matching[eid] = XTree.NO_MATCH;
+		else if (match[0] == XTree.MATCH)
+			matching[eid] = XTree.MATCH;
+		else
+			matching[eid] = match[1] + 1;
+	}
+
+	/**
+	  * Get matching information.
+	  * @param	matching	matching info of a tree
+	  * @param	eid		element id
+	  * @param	match		?change and matched element id
+	  */
+	private static void _getMatching(int matching[], int eid, int match[])
+	{
+		int	mid = matching[eid];
+		if (mid == XTree.NO_MATCH)
+			match[0] = XTree.NO_MATCH;
+		else if (mid == XTree.MATCH)
+			match[0] = XTree.MATCH;
+		else
+		{
+			match[0] = XTree.CHANGE;
+			match[1] = mid - 1;
 		}
 	}
 
+	/**
+	  * Make sure the attribute and text lists can hold the children of
+	  * both parents.  The lists are allocated on first need and only
+	  * grow, to the largest children count seen so far.
+	  * @param	pid1		parent id #1
+	  * @param	pid2		parent id #2
+	  */
+	private void _ensureLists(int pid1, int pid2)
+	{
+		int	size = Math.max(_xtree1.getChildrenCount(pid1),
+					_xtree2.getChildrenCount(pid2));
+		if ((_attrList1 != null) && (size <= _attrList1.length))
+			return;
+
+		if (size < _LIST_SIZE)
+			size = _LIST_SIZE;
+		if ((_attrList1 != null) && (size < _attrList1.length * 2))
+			size = _attrList1.length * 2;
+
+		_attrList1	= new int[size];
+		_attrList2	= new int[size];
+		_attrMatch	= new boolean[size];
+		_attrHash	= new long[size];
+		_attrTag	= new String[size];
+
+		_textList1	= new int[size];
+		_textList2	= new int[size];
+		_textMatch1	= new boolean[size];
+		_textMatch2	= new boolean[size];
+		_textHash1	= new long[size];
+		_textHash	= new long[size];
+	}
+
+	/**
+	  * Make sure the matrices of the NCC engine can hold a flow network
+	  * of the given # of nodes.
+	  * @param	nodeCount	node count
+	  */
+	private void _ensureMatrices(int nodeCount)
+	{
+		int	size = nodeCount * nodeCount;
+		if ((_leastCostMatrix != null) && (size <= _leastCostMatrix.length))
+			return;
+
+		_leastCostMatrix = new int[size];
+		_pathMatrix	 = new int[size];
+		_circuit	 = new int[nodeCount * 2 + 2];
+	}
+
 	/**
 	  * Diff two element lists
 	  * This is the official one that records matching top-down
@@ -171,6 +480,8 @@ class XDiff
 	  */
 	private void xdiff(int pid1, int pid2, boolean matchFlag)
 	{
+		_ensureLists(pid1, pid2);
+
 		// diff attributes.
 		int	attrCount1 = 0;
 		int	attrCount2 = 0;
@@ -195,15 +506,15 @@ class XDiff
 			{
 				_matchp[0] = XTree.NO_MATCH;
 				for (int i = 0; i < attrCount1; i++)
-					_xtree1.addMatching(_attrList1[i],
-							    _matchp);
+					_addMatching(_matching1, _attrList1[i],
+						     _matchp);
 			}
 		}
 		else if (attrCount2 > 0)	// attrCount1 == 0
 		{
 			_matchp[0] = XTree.NO_MATCH;
 			for (int i = 0; i < attrCount2; i++)
-				_xtree2.addMatching(_attrList2[i], _matchp);
+				_addMatching(_matching2, _attrList2[i], _matchp);
 		}
 
 		// Match element nodes.
@@ -214,22 +525,22 @@ class XDiff
 		{
 			_matchp[0] = XTree.NO_MATCH;
 			int	node2 = _xtree2.getFirstChild(pid2);
-			_xtree2.addMatching(node2, _matchp);
+			_addMatching(_matching2, node2, _matchp);
 			for (int i = 1; i < count2; i++)
 			{
 				node2 = _xtree2.getNextSibling(node2);
-				_xtree2.addMatching(node2, _matchp);
+				_addMatching(_matching2, node2, _matchp);
 			}
 		}
 		else if (count2 == 0)
 		{
 			_matchp[0] = XTree.NO_MATCH;
 			int	node1 = _xtree1.getFirstChild(pid1);
-			_xtree1.addMatching(node1, _matchp);
+			_addMatching(_matching1, node1, _matchp);
 			for (int i = 1; i < count1; i++)
 			{
 				node1 = _xtree1.getNextSibling(node1);
-				_xtree1.addMatching(node1, _matchp);
+				_addMatching(_matching1, node1, _matchp);
 			}
 		}
 		else if ((count1 == 1) && (count2 == 1))
@@ -251,34 +562,36 @@ class XDiff
 				{
 					_matchp[0] = XTree.CHANGE;
 					_matchp[1] = node2;
-					_xtree1.addMatching(node1, _matchp);
+					_addMatching(_matching1, node1, _matchp);
 					_matchp[1] = node1;
-					_xtree2.addMatching(node2, _matchp);
+					_addMatching(_matching2, node2, _matchp);
 
 					xdiff(node1, node2, matchFlag);
 				}
 				else
 				{
 					_matchp[0] = XTree.NO_MATCH;
-					_xtree1.addMatching(node1, _matchp);
-					_xtree2.addMatching(node2, _matchp);
+					_addMatching(_matching1, node1, _matchp);
+					_addMatching(_matching2, node2, _matchp);
 				}
 			}
 			else if (!isE1 && !isE2)
 			{
 				_matchp[0] = XTree.CHANGE;
 				_matchp[1] = node2;
-				_xtree1.addMatching(node1, _matchp);
+				_addMatching(_matching1, node1, _matchp);
 				_matchp[1] = node1;
-				_xtree2.addMatching(node2, _matchp);
+				_addMatching(_matching2, node2, _matchp);
 			}
 			else
 			{
 				_matchp[0] = XTree.NO_MATCH;
-				_xtree1.addMatching(node1, _matchp);
-				_xtree2.addMatching(node2, _matchp);
+				_addMatching(_matching1, node1, _matchp);
+				_addMatching(_matching2, node2, _matchp);
 			}
 		}
+		else if (_ordered && _options.isOrdered(_xtree1.getTag(pid1)))
+			xdiffOrdered(pid1, pid2, count1, count2, matchFlag);
 		else
 		{
 			int[]		elements1 = new int[count1];
@@ -323,15 +636,15 @@ class XDiff
 				{
 					_matchp[0] = XTree.NO_MATCH;
 					for (int i = 0; i < textCount1; i++)
-						_xtree1.addMatching(_textList1[i], _matchp);
+						_addMatching(_matching1, _textList1[i], _matchp);
 				}
 			}
 			else if (textCount2 > 0)
 			{
 				_matchp[0] = XTree.NO_MATCH;
 				for (int i = 0; i < textCount2; i++)
-					_xtree2.addMatching(_textList2[i],
-							    _matchp);
+					_addMatching(_matching2, _textList2[i],
+						     _matchp);
 			}
 
 			boolean[]	matched1 = new boolean[elementCount1];
@@ -339,39 +652,111 @@ class XDiff
 			int	mcount = _matchFilter(elements1, elementCount1,
 						      elements2, elementCount2,
 						      matched1, matched2);
+			int	mcount1 = mcount, mcount2 = mcount;
+			if (_subtreeIndex)
+			{
+				// Moved subtrees are deleted and inserted.
+				int	moved[] = new int[Math.max(elementCount1,
+								   elementCount2)];
+				int	mv = _pruneMoved(_xtree1, _xtree2, elements1,
+							 elementCount1, matched1, moved);
+				mcount1 += mv;
+				_matchp[0] = XTree.NO_MATCH;
+				for (int i = 0; i < mv; i++)
+					_addMatching(_matching1, moved[i], _matchp);
+				mv = _pruneMoved(_xtree2, _xtree1, elements2,
+						 elementCount2, matched2, moved);
+				mcount2 += mv;
+				for (int i = 0; i < mv; i++)
+					_addMatching(_matching2, moved[i], _matchp);
+			}
+
+			if (_keyed)
+			{
+				// Elements with keys are matched by key.
+				int	keyed1[] = new int[elementCount1];
+				int	keyed2[] = new int[elementCount2];
+				_matchKeys(elements1, elementCount1, matched1, keyed1,
+					   elements2, elementCount2, matched2, keyed2);
+				int	todo1[] = new int[Math.min(elementCount1,
+								   elementCount2)];
+				int	todo2[] = new int[todo1.length];
+				int	todoCount = 0;
+				for (int i = 0; i < elementCount1; i++)
+				{
+					if (keyed1[i] == _NO_KEY)
+						continue;
+					mcount1++;
+					if (keyed1[i] == _NO_PARTNER)
+					{
+						_matchp[0] = XTree.NO_MATCH;
+						_addMatching(_matching1, elements1[i], _matchp);
+						continue;
+					}
+
+					int	node2 = elements2[keyed1[i]];
+					_matchp[0] = XTree.CHANGE;
+					_matchp[1] = node2;
+					_addMatching(_matching1, elements1[i], _matchp);
+					_matchp[1] = elements1[i];
+					_addMatching(_matching2, node2, _matchp);
+					todo1[todoCount] = elements1[i];
+					todo2[todoCount++] = node2;
+				}
+				_matchp[0] = XTree.NO_MATCH;
+				for (int i = 0; i < elementCount2; i++)
+				{
+					if (keyed2[i] == _NO_KEY)
+						continue;
+					mcount2++;
+					if (keyed2[i] == _NO_PARTNER)
+						_addMatching(_matching2, elements2[i], _matchp);
+				}
+
+				// Only distances computed for the parents are in
+				// the lookup table.
+				if (matchFlag)
+					diffSubtrees(todo1, todo2, todoCount);
+				else
+				{
+					for (int i = 0; i < todoCount; i++)
+						xdiff(todo1[i], todo2[i], false);
+				}
+			}
 
-			if ((elementCount1 == mcount) &&
-			    (elementCount2 == mcount))
+			if ((elementCount1 == mcount1) &&
+			    (elementCount2 == mcount2))
 				return;
 
-			if (elementCount1 == mcount)
+			if (elementCount1 == mcount1)
 			{
 				_matchp[0] = XTree.NO_MATCH;
 				for (int i = 0; i < elementCount2; i++)
 				{
 					if (!matched2[i])
-						_xtree2.addMatching(elements2[i], _matchp);
+						_addMatching(_matching2, elements2[i], _matchp);
 				}
 				return;
 			}
-			if (elementCount2 == mcount)
+			if (elementCount2 == mcount2)
 			{
 				_matchp[0] = XTree.NO_MATCH;
 				for (int i = 0; i < elementCount1; i++)
 				{
 					if (!matched1[i])
-						_xtree1.addMatching(elements1[i], _matchp);
+						_addMatching(_matching1, elements1[i], _matchp);
 				}
 				return;
 			}
 
 			// Write the list of unmatched nodes.
-			int	ucount1 = elementCount1 - mcount;
-			int	ucount2 = elementCount2 - mcount;
+			int	ucount1 = elementCount1 - mcount1;
+			int	ucount2 = elementCount2 - mcount2;
 			int[]	unmatched1 = new int[ucount1];
 			int[]	unmatched2 = new int[ucount2];
 			int	muc1 = 0, muc2 = 0;
 			int	start = 0;
+			boolean	degraded = false;
 
 			while ((muc1 < ucount1) && (muc2 < ucount2))
 			{
@@ -406,17 +791,30 @@ class XDiff
 				{
 					_matchp[0] = XTree.NO_MATCH;
 					for (int i = 0; i < uele1; i++)
-						_xtree1.addMatching(unmatched1[i], _matchp);
+						_addMatching(_matching1, unmatched1[i], _matchp);
+				}
+				else if (!matchFlag && _budgetExhausted())
+				{
+					// Out of budget: delete and insert.
+					_matchp[0] = XTree.NO_MATCH;
+					for (int i = 0; i < uele1; i++)
+						_addMatching(_matching1, unmatched1[i], _matchp);
+					for (int i = 0; i < uele2; i++)
+						_addMatching(_matching2, unmatched2[i], _matchp);
+					if (!degraded)
+						_degraded.addElement(Integer.valueOf(pid1));
+					degraded = true;
 				}
 				else
 				{
+					boolean	cutShort = false;
 					if ((uele1 == 1) && (uele2 == 1))
 					{
 						_matchp[0] = XTree.CHANGE;
 						_matchp[1] = unmatched2[0];
-						_xtree1.addMatching(unmatched1[0], _matchp);
+						_addMatching(_matching1, unmatched1[0], _matchp);
 						_matchp[1] = unmatched1[0];
-						_xtree2.addMatching(unmatched2[0], _matchp);
+						_addMatching(_matching2, unmatched2[0], _matchp);
 						xdiff(unmatched1[0],
 						      unmatched2[0],
 						      matchFlag);
@@ -425,16 +823,24 @@ class XDiff
 					else if (uele1 >= uele2)
 					{
 						if ((uele2 <= _sampleCount) || !_gFlag)
-							matchListO(unmatched1, unmatched2, uele1, uele2, true, matchFlag);
+							cutShort = matchListO(unmatched1, unmatched2, uele1, uele2, true, matchFlag);
 						else
-							matchList(unmatched1, unmatched2, uele1, uele2, true, matchFlag);
+							cutShort = matchList(unmatched1, unmatched2, uele1, uele2, true, matchFlag);
 					}	
 					else
 					{
 						if ((uele1 <= _sampleCount) || !_gFlag)
-							matchListO(unmatched2, unmatched1, uele2, uele1, false, matchFlag);
+							cutShort = matchListO(unmatched2, unmatched1, uele2, uele1, false, matchFlag);
 						else
-							matchList(unmatched2, unmatched1, uele2, uele1, false, matchFlag);
+							cutShort = matchList(unmatched2, unmatched1, uele2, uele1, false, matchFlag);
+					}
+
+					// Matched, but with distances or a matching
+					// cut short by the budget.
+					if (cutShort && !degraded)
+					{
+						_degraded.addElement(Integer.valueOf(pid1));
+						degraded = true;
 					}
 				}
 			}
@@ -445,7 +851,7 @@ class XDiff
 				for (int i = start; i < elementCount1; i++)
 				{
 					if (!matched1[i])
-						_xtree1.addMatching(elements1[i], _matchp);
+						_addMatching(_matching1, elements1[i], _matchp);
 				}
 			}
 			else if (muc2 < ucount2)
@@ -454,102 +860,446 @@ class XDiff
 				for (int i = 0; i < elementCount2; i++)
 				{
 					if (!matched2[i])
-						_xtree2.addMatching(elements2[i], _matchp);
+						_addMatching(_matching2, elements2[i], _matchp);
 				}
 			}
 		}
 	}
 
 	/**
-	  * Diff and match two lists of attributes
-	  * @param	attrCount1	number of attributes in the 1st list
-	  * @param	attrCount2	number of attributes in the 2nd list
+	  * Diff two ordered child lists, recording the matching top-down:
+	  * identical children, aligned or moved, are matched, children paired
+	  * up in the gaps between aligned ones are changed, and the others
+	  * are deleted and inserted.
+	  * @param	pid1		parent id #1
+	  * @param	pid2		parent id #2
+	  * @param	count1		# of children of pid1
+	  * @param	count2		# of children of pid2
+	  * @param	matchFlag	indicates if distance computation needed
 	  */
-	private void diffAttributes(int attrCount1, int attrCount2)
+	private void xdiffOrdered(int pid1, int pid2, int count1, int count2,
+				  boolean matchFlag)
 	{
-		if ((attrCount1 == 1) && (attrCount2 == 1))
+		int	children1[] = new int[count1];
+		int	children2[] = new int[count2];
+		int	pair1[] = new int[count1];
+		int	pair2[] = new int[count2];
+		boolean	moved1[] = new boolean[count1];
+		_alignChildren(pid1, pid2, children1, count1, children2, count2,
+			       pair1, pair2, moved1);
+
+		int	todo1[] = new int[Math.min(count1, count2)];
+		int	todo2[] = new int[todo1.length];
+		int	todoCount = 0;
+		for (int i = 0; i < count1; i++)
 		{
-			long	ah1 = _xtree1.getHashValue(_attrList1[0]);
-			long	ah2 = _xtree2.getHashValue(_attrList2[0]);
-			if (ah1 == ah2)
-				return;
+			int	node1 = children1[i];
+			if (pair1[i] < 0)
+			{
+				_matchp[0] = XTree.NO_MATCH;
+				_addMatching(_matching1, node1, _matchp);
+				continue;
+			}
 
-			String	tag1 = _xtree1.getTag(_attrList1[0]);
-			String	tag2 = _xtree2.getTag(_attrList2[0]);
-			if (tag1.compareTo(tag2) == 0)
+			int	node2 = children2[pair1[i]];
+			if (moved1[i])
+			{
+				_moves1[node1] = node2 + 1;
+				_moves2[node2] = node1 + 1;
+			}
+			else if (_xtree1.getHashValue(node1) !=
+				 _xtree2.getHashValue(node2))
 			{
 				_matchp[0] = XTree.CHANGE;
-				_matchp[1] = _attrList2[0];
-				_xtree1.addMatching(_attrList1[0], _matchp);
+				_matchp[1] = node2;
+				_addMatching(_matching1, node1, _matchp);
+				_matchp[1] = node1;
+				_addMatching(_matching2, node2, _matchp);
+				if (_xtree1.isElement(node1))
+				{
+					todo1[todoCount] = node1;
+					todo2[todoCount++] = node2;
+				}
+			}
+		}
+		_matchp[0] = XTree.NO_MATCH;
+		for (int j = 0; j < count2; j++)
+		{
+			if (pair2[j] < 0)
+				_addMatching(_matching2, children2[j], _matchp);
+		}
 
-				_matchp[1] = _attrList1[0];
-				_xtree2.addMatching(_attrList2[0], _matchp);
+		// Only distances computed for the parents are in the lookup
+		// table.
+		if (matchFlag)
+			diffSubtrees(todo1, todo2, todoCount);
+		else
+		{
+			for (int i = 0; i < todoCount; i++)
+				xdiff(todo1[i], todo2[i], false);
+		}
+	}
 
-				int tid1 = _xtree1.getFirstChild(_attrList1[0]);
-				int tid2 = _xtree2.getFirstChild(_attrList2[0]);
-				_matchp[1] = tid2;
-				_xtree1.addMatching(tid1, _matchp);
+	/**
+	  * Align two ordered child lists.  Identical children are aligned as
+	  * sequences; those left over, identical but out of order, have
+	  * moved.  In the gaps between aligned children, elements of the
+	  * same tag and text nodes are aligned in turn, to be diffed.
+	  * @param	pid1		parent id #1
+	  * @param	pid2		parent id #2
+	  * @param	children1	the children of pid1, output
+	  * @param	count1		# of children of pid1
+	  * @param	children2	the children of pid2, output
+	  * @param	count2		# of children of pid2
+	  * @param	pair1		for each child of pid1, the position of
+	  *				its partner among the children of pid2,
+	  *				or -1; output
+	  * @param	pair2		the same for the children of pid2
+	  * @param	moved1		flags of the children of pid1 that have
+	  *				moved, output
+	  */
+	private void _alignChildren(int pid1, int pid2,
+				    int children1[], int count1,
+				    int children2[], int count2,
+				    int pair1[], int pair2[], boolean moved1[])
+	{
+		long	codes1[] = new long[count1];
+		long	codes2[] = new long[count2];
+		int	child1 = _xtree1.getFirstChild(pid1);
+		for (int i = 0; i < count1; i++)
+		{
+			children1[i] = child1;
+			codes1[i] = _xtree1.getHashValue(child1);
+			child1 = _xtree1.getNextSibling(child1);
+		}
+		int	child2 = _xtree2.getFirstChild(pid2);
+		for (int j = 0; j < count2; j++)
+		{
+			children2[j] = child2;
+			codes2[j] = _xtree2.getHashValue(child2);
+			child2 = _xtree2.getNextSibling(child2);
+		}
+		_align(codes1, count1, codes2, count2, pair1, pair2);
 
-				_matchp[1] = tid1;
-				_xtree2.addMatching(tid2, _matchp);
+		// Positions of list #2 left over by hash, chained backwards
+		// so that identical children pair up in order.
+		Hashtable	index = new Hashtable();
+		int	next[] = new int[count2];
+		for (int j = count2 - 1; j >= 0; j--)
+		{
+			if (pair2[j] >= 0)
+				continue;
 
-				return;
-			}
-			else
-			{
-				_matchp[0] = XTree.NO_MATCH;
-				_xtree1.addMatching(_attrList1[0], _matchp);
-				_xtree2.addMatching(_attrList2[0], _matchp);
-				return;
-			}
+			Long	hash = Long.valueOf(codes2[j]);
+			Integer	head = (Integer)index.put(hash, Integer.valueOf(j));
+			next[j] = (head == null) ? -1 : head.intValue();
 		}
-
-		for (int i = 0; i < attrCount2; i++)
+		for (int i = 0; (i < count1) && !index.isEmpty(); i++)
 		{
-			_attrHash[i] = _xtree2.getHashValue(_attrList2[i]);
-			_attrTag[i] = _xtree2.getTag(_attrList2[i]);
-			_attrMatch[i] = false;
+			if (pair1[i] >= 0)
+				continue;
+
+			Long	hash = Long.valueOf(codes1[i]);
+			Integer	head = (Integer)index.get(hash);
+			if (head == null)
+				continue;
+
+			int	j = head.intValue();
+			if (next[j] < 0)
+				index.remove(hash);
+			else
+				index.put(hash, Integer.valueOf(next[j]));
+			pair1[i] = j;
+			pair2[j] = i;
+			moved1[i] = true;
 		}
 
-		int	matchCount = 0;
-		for (int i = 0; i < attrCount1; i++)
+		// The gaps between aligned children, aligned by tag.
+		Hashtable	tags = new Hashtable();
+		int	gap1[] = new int[count1];
+		int	gap2[] = new int[count2];
+		int	gapPair1[] = new int[count1];
+		int	gapPair2[] = new int[count2];
+		int	start1 = 0, start2 = 0;
+		while ((start1 < count1) || (start2 < count2))
 		{
-			int	attr1 = _attrList1[i];
-			long	ah1 = _xtree1.getHashValue(attr1);
-			String	tag1 = _xtree1.getTag(attr1);
+			int	end1 = start1;
+			while ((end1 < count1) && ((pair1[end1] < 0) || moved1[end1]))
+				end1++;
+			int	end2 = (end1 < count1) ? pair1[end1] : count2;
 
-			boolean	found = false;
-			for (int j = 0; j < attrCount2; j++)
+			int	gapCount1 = 0, gapCount2 = 0;
+			for (int i = start1; i < end1; i++)
 			{
-				int	attr2 = _attrList2[j];
-				if (_attrMatch[j])
+				if (pair1[i] >= 0)
 					continue;
-				else if (ah1 == _attrHash[j])
+				gap1[gapCount1] = i;
+				codes1[gapCount1++] = _tagCode(_xtree1, children1[i],
+							       tags);
+			}
+			for (int j = start2; j < end2; j++)
+			{
+				if (pair2[j] >= 0)
+					continue;
+				gap2[gapCount2] = j;
+				codes2[gapCount2++] = _tagCode(_xtree2, children2[j],
+							       tags);
+			}
+
+			if ((gapCount1 > 0) && (gapCount2 > 0))
+			{
+				_align(codes1, gapCount1, codes2, gapCount2,
+				       gapPair1, gapPair2);
+				for (int k = 0; k < gapCount1; k++)
 				{
-					_attrMatch[j] = true;
-					matchCount++;
-					found = true;
-					break;
+					if (gapPair1[k] < 0)
+						continue;
+					pair1[gap1[k]] = gap2[gapPair1[k]];
+					pair2[gap2[gapPair1[k]]] = gap1[k];
 				}
-				else if (tag1.compareTo(_attrTag[j]) == 0)
-				{
-					_attrMatch[j] = true;
-					matchCount++;
+			}
 
-					_matchp[0] = XTree.CHANGE;
+			start1 = end1 + 1;
+			start2 = end2 + 1;
+		}
+	}
+
+	/**
+	  * Get the code of a node to align by tag: the same for all text
+	  * nodes, and for all elements of a tag.
+	  * @param	tags	codes of the tags so far, updated
+	  */
+	private static long _tagCode(XTree xtree, int node, Hashtable tags)
+	{
+		if (!xtree.isElement(node))
+			return 0;
+
+		String	tag = xtree.getTag(node);
+		Long	code = (Long)tags.get(tag);
+		if (code == null)
+		{
+			code = Long.valueOf(tags.size() + 1);
+			tags.put(tag, code);
+		}
+		return code.longValue();
+	}
+
+	/**
+	  * Align two sequences with the fewest deletions and insertions:
+	  * their common prefix and suffix, and the middle by Myers' O((N+M)D)
+	  * algorithm.  Past _MAX_ALIGN deletions and insertions, the middle
+	  * is left unaligned.
+	  * @param	seq1	sequence #1
+	  * @param	count1	length of sequence #1
+	  * @param	seq2	sequence #2
+	  * @param	count2	length of sequence #2
+	  * @param	pair1	for each position of sequence #1, the position
+	  *			aligned with it in sequence #2, or -1; output
+	  * @param	pair2	the same for sequence #2
+	  */
+	private static void _align(long seq1[], int count1, long seq2[],
+				   int count2, int pair1[], int pair2[])
+	{
+		for (int i = 0; i < count1; i++)
+			pair1[i] = -1;
+		for (int j = 0; j < count2; j++)
+			pair2[j] = -1;
+
+		int	start = 0;
+		while ((start < count1) && (start < count2) &&
+		       (seq1[start] == seq2[start]))
+		{
+			pair1[start] = start;
+			pair2[start] = start;
+			start++;
+		}
+		int	end1 = count1, end2 = count2;
+		while ((end1 > start) && (end2 > start) &&
+		       (seq1[end1 - 1] == seq2[end2 - 1]))
+		{
+			end1--;
+			end2--;
+			pair1[end1] = end2;
+			pair2[end2] = end1;
+		}
+
+		int	n = end1 - start, m = end2 - start;
+		if ((n == 0) || (m == 0))
+			return;
+
+		// The furthest x reached on each diagonal k = x - y, and a
+		// copy of them after each round, to trace the path back.
+		int	limit = Math.min(n + m, _MAX_ALIGN);
+		int	offset = limit + 1;
+		int	v[] = new int[2 * limit + 3];
+		int	trace[][] = new int[limit + 1][];
+		for (int d = 0; d <= limit; d++)
+		{
+			for (int k = -d; k <= d; k += 2)
+			{
+				int	x;
+				if ((k == -d) ||
+				    ((k != d) && (v[offset + k - 1] < v[offset + k + 1])))
+					x = v[offset + k + 1];
+				else
+					x = v[offset + k - 1] + 1;
+				int	y = x - k;
+				while ((x < n) && (y < m) &&
+				       (seq1[start + x] == seq2[start + y]))
+				{
+					x++;
+					y++;
+				}
+				v[offset + k] = x;
+
+				if ((x >= n) && (y >= m))
+				{
+					_traceBack(trace, d, n, m, start, pair1, pair2);
+					return;
+				}
+			}
+
+			trace[d] = new int[2 * d + 1];
+			System.arraycopy(v, offset - d, trace[d], 0, 2 * d + 1);
+		}
+	}
+
+	/**
+	  * Trace back the path found by _align, from its end, pairing up
+	  * the positions on its diagonal runs.
+	  * @param	trace	the furthest x on each diagonal after each round
+	  * @param	d	the # of deletions and insertions
+	  * @param	x	the end of the path in sequence #1
+	  * @param	y	the end of the path in sequence #2
+	  * @param	start	the length of the common prefix
+	  * @param	pair1	pairs of sequence #1, output
+	  * @param	pair2	pairs of sequence #2, output
+	  */
+	private static void _traceBack(int trace[][], int d, int x, int y,
+				       int start, int pair1[], int pair2[])
+	{
+		for (; d > 0; d--)
+		{
+			int	prev[] = trace[d - 1];	// by k + d - 1
+			int	k = x - y;
+			int	pk;
+			if ((k == -d) ||
+			    ((k != d) && (prev[k + d - 2] < prev[k + d])))
+				pk = k + 1;
+			else
+				pk = k - 1;
+			int	px = prev[pk + d - 1];
+			int	sx = (pk == k + 1) ? px : px + 1;
+			while (x > sx)
+			{
+				x--;
+				y--;
+				pair1[start + x] = start + y;
+				pair2[start + y] = start + x;
+			}
+			x = px;
+			y = px - pk;
+		}
+
+		while (x > 0)
+		{
+			x--;
+			y--;
+			pair1[start + x] = start + y;
+			pair2[start + y] = start + x;
+		}
+	}
+
+	/**
+	  * Diff and match two lists of attributes
+	  * @param	attrCount1	number of attributes in the 1st list
+	  * @param	attrCount2	number of attributes in the 2nd list
+	  */
+	private void diffAttributes(int attrCount1, int attrCount2)
+	{
+		if ((attrCount1 == 1) && (attrCount2 == 1))
+		{
+			long	ah1 = _xtree1.getHashValue(_attrList1[0]);
+			long	ah2 = _xtree2.getHashValue(_attrList2[0]);
+			if (ah1 == ah2)
+				return;
+
+			String	tag1 = _xtree1.getTag(_attrList1[0]);
+			String	tag2 = _xtree2.getTag(_attrList2[0]);
+			if (tag1.compareTo(tag2) == 0)
+			{
+				_matchp[0] = XTree.CHANGE;
+				_matchp[1] = _attrList2[0];
+				_addMatching(_matching1, _attrList1[0], _matchp);
+
+				_matchp[1] = _attrList1[0];
+				_addMatching(_matching2, _attrList2[0], _matchp);
+
+				int tid1 = _xtree1.getFirstChild(_attrList1[0]);
+				int tid2 = _xtree2.getFirstChild(_attrList2[0]);
+				_matchp[1] = tid2;
+				_addMatching(_matching1, tid1, _matchp);
+
+				_matchp[1] = tid1;
+				_addMatching(_matching2, tid2, _matchp);
+
+				return;
+			}
+			else
+			{
+				_matchp[0] = XTree.NO_MATCH;
+				_addMatching(_matching1, _attrList1[0], _matchp);
+				_addMatching(_matching2, _attrList2[0], _matchp);
+				return;
+			}
+		}
+
+		for (int i = 0; i < attrCount2; i++)
+		{
+			_attrHash[i] = _xtree2.getHashValue(_attrList2[i]);
+			_attrTag[i] = _xtree2.getTag(_attrList2[i]);
+			_attrMatch[i] = false;
+		}
+
+		int	matchCount = 0;
+		for (int i = 0; i < attrCount1; i++)
+		{
+			int	attr1 = _attrList1[i];
+			long	ah1 = _xtree1.getHashValue(attr1);
+			String	tag1 = _xtree1.getTag(attr1);
+
+			boolean	found = false;
+			for (int j = 0; j < attrCount2; j++)
+			{
+				int	attr2 = _attrList2[j];
+				if (_attrMatch[j])
+					continue;
+				else if (ah1 == _attrHash[j])
+				{
+					_attrMatch[j] = true;
+					matchCount++;
+					found = true;
+					break;
+				}
+				else if (tag1.compareTo(_attrTag[j]) == 0)
+				{
+					_attrMatch[j] = true;
+					matchCount++;
+
+					_matchp[0] = XTree.CHANGE;
 					_matchp[1] = attr2;
-					_xtree1.addMatching(attr1, _matchp);
+					_addMatching(_matching1, attr1, _matchp);
 
 					_matchp[1] = attr1;
-					_xtree2.addMatching(attr2, _matchp);
+					_addMatching(_matching2, attr2, _matchp);
 
 					int tid1 = _xtree1.getFirstChild(attr1);
 					int tid2 = _xtree2.getFirstChild(attr2);
 					_matchp[1] = tid2;
-					_xtree1.addMatching(tid1, _matchp);
+					_addMatching(_matching1, tid1, _matchp);
 
 					_matchp[1] = tid1;
-					_xtree2.addMatching(tid2, _matchp);
+					_addMatching(_matching2, tid2, _matchp);
 
 					found = true;
 					break;
@@ -559,7 +1309,7 @@ class XDiff
 			if (!found)
 			{
 				_matchp[0] = XTree.NO_MATCH;
-				_xtree1.addMatching(attr1, _matchp);
+				_addMatching(_matching1, attr1, _matchp);
 			}
 		}
 
@@ -569,8 +1319,8 @@ class XDiff
 			for (int i = 0; i < attrCount2; i++)
 			{
 				if (!_attrMatch[i])
-					_xtree2.addMatching(_attrList2[i],
-							    _matchp);
+					_addMatching(_matching2, _attrList2[i],
+						     _matchp);
 			}
 		}
 	}
@@ -585,31 +1335,13 @@ class XDiff
 	private void diffText(int textCount1, int textCount2)
 	{
 		for (int i = 0; i < textCount1; i++)
-			_textMatch1[i] = false;
+			_textHash1[i] = _xtree1.getHashValue(_textList1[i]);
 		for (int i = 0; i < textCount2; i++)
-		{
-			_textMatch2[i] = false;
 			_textHash[i] = _xtree2.getHashValue(_textList2[i]);
-		}
-
-		int	mcount = 0;
-		for (int i = 0; i < textCount1; i++)
-		{
-			long	hash1 = _xtree1.getHashValue(_textList1[i]);
-			for (int j = 0; j < textCount2; j++)
-			{
-				if (!_textMatch2[j] && (hash1 == _textHash[j]))
-				{
-					_textMatch1[i] = true;
-					_textMatch2[j] = true;
-					mcount++;
-					break;
-				}
-			}
 
-			if (mcount == textCount2)
-				break;
-		}
+		int	mcount = _matchHashes(_textHash1, textCount1, _textHash,
+					      textCount2, _textMatch1,
+					      _textMatch2);
 
 		if ((mcount < textCount1) && (textCount1 <= textCount2))
 		{
@@ -621,10 +1353,10 @@ class XDiff
 					continue;
 				for (; _textMatch2[j]; j++);
 				_matchp[1] = _textList2[j];
-				_xtree1.addMatching(_textList1[i], _matchp);
+				_addMatching(_matching1, _textList1[i], _matchp);
 				_textMatch1[i] = true;
 				_matchp[1] = _textList1[i];
-				_xtree2.addMatching(_textList2[j], _matchp);
+				_addMatching(_matching2, _textList2[j], _matchp);
 				_textMatch2[j] = true;
 				mcount++;
 			}
@@ -639,10 +1371,10 @@ class XDiff
 					continue;
 				for (; _textMatch1[j]; j++);
 				_matchp[1] = _textList1[j];
-				_xtree2.addMatching(_textList2[i], _matchp);
+				_addMatching(_matching2, _textList2[i], _matchp);
 				_textMatch2[i] = true;
 				_matchp[1] = _textList2[i];
-				_xtree1.addMatching(_textList1[j], _matchp);
+				_addMatching(_matching1, _textList1[j], _matchp);
 				_textMatch1[j] = true;
 				mcount++;
 			}
@@ -654,8 +1386,8 @@ class XDiff
 			for (int i = 0; i < textCount1; i++)
 			{
 				if (!_textMatch1[i])
-					_xtree1.addMatching(_textList1[i],
-							    _matchp);
+					_addMatching(_matching1, _textList1[i],
+						     _matchp);
 			}
 		}
 		else if (mcount < textCount2)
@@ -663,10 +1395,135 @@ class XDiff
 			for (int i = 0; i < textCount2; i++)
 			{
 				if (!_textMatch2[i])
-					_xtree2.addMatching(_textList2[i],
-							    _matchp);
+					_addMatching(_matching2, _textList2[i],
+						     _matchp);
+			}
+		}
+	}
+
+	/**
+	  * Take out of a list of unmatched element nodes those whose subtree
+	  * is found, identical, elsewhere in the other tree.  Such a
+	  * subtree has moved to another parent, which cannot be matched;
+	  * it is deleted (or inserted) without computing its distances.
+	  * Only subtrees unique in both trees are taken out.
+	  * @param	xtree	the tree of the list
+	  * @param	other	the other tree
+	  * @param	elements	element nodes
+	  * @param	count	# of element nodes
+	  * @param	matched	flags of matched nodes, updated
+	  * @param	moved	the moved nodes, output
+	  * @return	the # of moved nodes
+	  */
+	private static int _pruneMoved(XTree xtree, XTree other,
+				       int elements[], int count,
+				       boolean matched[], int moved[])
+	{
+		int	mv = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (matched[i])
+				continue;
+
+			long	hash = xtree.getHashValue(elements[i]);
+			if ((xtree.getUniqueSubtree(hash) == elements[i]) &&
+			    (other.getUniqueSubtree(hash) != XTree.NULL_NODE))
+			{
+				matched[i] = true;
+				moved[mv++] = elements[i];
+			}
+		}
+
+		return mv;
+	}
+
+	/**
+	  * Pair up the elements of two sibling lists that have keys, by tag
+	  * and key value, in order as _matchHashes does.  Every element with
+	  * a key is marked as matched, with a partner or not.
+	  * @param	elements1	node list #1
+	  * @param	count1		# of nodes in node list #1
+	  * @param	matched1	match list #1
+	  * @param	keyed1		for each node of list #1, the position
+	  *				of its partner in list #2, _NO_KEY or
+	  *				_NO_PARTNER
+	  * @param	elements2	node list #2
+	  * @param	count2		# of nodes in node list #2
+	  * @param	matched2	match list #2
+	  * @param	keyed2		the same for list #2
+	  */
+	private void _matchKeys(int elements1[], int count1,
+				boolean matched1[], int keyed1[],
+				int elements2[], int count2,
+				boolean matched2[], int keyed2[])
+	{
+		// Positions of list #2 by key, chained backwards so that
+		// every key lists its positions in order.
+		Hashtable	index = new Hashtable();
+		int	next[] = new int[count2];
+		for (int j = count2 - 1; j >= 0; j--)
+		{
+			String	key = matched2[j] ? null :
+					_keyOf(_xtree2, elements2[j]);
+			if (key == null)
+			{
+				keyed2[j] = _NO_KEY;
+				continue;
 			}
+
+			keyed2[j] = _NO_PARTNER;
+			matched2[j] = true;
+			Integer	head = (Integer)index.put(key, Integer.valueOf(j));
+			next[j] = (head == null) ? -1 : head.intValue();
+		}
+
+		for (int i = 0; i < count1; i++)
+		{
+			String	key = matched1[i] ? null :
+					_keyOf(_xtree1, elements1[i]);
+			if (key == null)
+			{
+				keyed1[i] = _NO_KEY;
+				continue;
+			}
+
+			keyed1[i] = _NO_PARTNER;
+			matched1[i] = true;
+			Integer	head = (Integer)index.get(key);
+			if (head == null)
+				continue;
+
+			int	j = head.intValue();
+			if (next[j] < 0)
+				index.remove(key);
+			else
+				index.put(key, Integer.valueOf(next[j]));
+			keyed1[i] = j;
+			keyed2[j] = i;
+		}
+	}
+
+	/**
+	  * Get the key of an element: its tag and the value of its key
+	  * attribute.
+	  * @return	the key, or null if the element has none
+	  */
+	private String _keyOf(XTree xtree, int eid)
+	{
+		String	tag = xtree.getTag(eid);
+		String	name = _options.getKey(tag);
+		if (name == null)
+			return null;
+
+		int	attr = xtree.getFirstAttribute(eid);
+		while (attr != XTree.NULL_NODE)
+		{
+			if (name.equals(xtree.getTag(attr)))
+				return tag + '\u0000' + xtree.getAttributeValue(attr);
+			attr = xtree.getNextAttribute(attr);
 		}
+
+		return null;
 	}
 
 	/**
@@ -685,29 +1542,97 @@ class XDiff
 		long[]	value2 = new long[count2];
 
 		for (int i = 0; i < count1; i++)
-		{
 			value1[i] = _xtree1.getHashValue(elements1[i]);
-			matched1[i] = false;
-		}
 		for (int i = 0; i < count2; i++)
-		{
 			value2[i] = _xtree2.getHashValue(elements2[i]);
-			matched2[i] = false;
-		}
+
+		return _matchHashes(value2, count2, value1, count1,
+				    matched2, matched1);
+	}
+
+	/**
+	  * Pair up equal hash values of two lists: each value of the probe
+	  * list, in order, is matched with the first unmatched equal value
+	  * of the indexed list.  The indexed list is put in a hash index
+	  * whose buckets keep positions in order, so this takes linear time
+	  * and pairs up exactly as scanning would.
+	  * @param	probe		hash values of the probe list
+	  * @param	probeCount	length of the probe list
+	  * @param	indexed		hash values of the indexed list
+	  * @param	indexedCount	length of the indexed list
+	  * @param	probeMatched	match list of the probe list
+	  * @param	indexedMatched	match list of the indexed list
+	  * @return	how many matched pairs found
+	  */
+	private static int _matchHashes(long probe[], int probeCount,
+					long indexed[], int indexedCount,
+					boolean probeMatched[],
+					boolean indexedMatched[])
+	{
+		for (int i = 0; i < probeCount; i++)
+			probeMatched[i] = false;
+		for (int i = 0; i < indexedCount; i++)
+			indexedMatched[i] = false;
 
 		int	mcount = 0;
-		for (int i = 0; i < count2; i++)
-			for (int j = 0; j < count1; j++)
+		if ((long)probeCount * indexedCount <= _SCAN_SIZE)
+		{
+			for (int i = 0; (i < probeCount) && (mcount < indexedCount); i++)
 			{
-				if (!matched1[j] && !matched2[i] &&
-				    (value1[j] == value2[i]))
+				for (int j = 0; j < indexedCount; j++)
 				{
-					matched1[j] = true;
-					matched2[i] = true;
+					if (!indexedMatched[j] &&
+					    (probe[i] == indexed[j]))
+					{
+						probeMatched[i] = true;
+						indexedMatched[j] = true;
+						mcount++;
+						break;
+					}
+				}
+			}
+			return mcount;
+		}
+
+		// Bucket heads and chains, chained backwards so that every
+		// bucket lists its positions in order.
+		int	capacity = 16;
+		while (capacity < indexedCount * 2)
+			capacity <<= 1;
+		int	shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		int[]	head = new int[capacity];
+		int[]	next = new int[indexedCount];
+		for (int i = 0; i < capacity; i++)
+			head[i] = -1;
+		for (int j = indexedCount - 1; j >= 0; j--)
+		{
+			int	bucket = (int)((indexed[j] * 0x9E3779B97F4A7C15L) >>> shift);
+			next[j] = head[bucket];
+			head[bucket] = j;
+		}
+
+		for (int i = 0; (i < probeCount) && (mcount < indexedCount); i++)
+		{
+			long	value = probe[i];
+			int	bucket = (int)((value * 0x9E3779B97F4A7C15L) >>> shift);
+			for (int j = head[bucket], prev = -1; j >= 0;
+			     prev = j, j = next[j])
+			{
+				if (indexed[j] == value)
+				{
+					// Unlink the matched position.
+					if (prev < 0)
+						head[bucket] = next[j];
+					else
+						next[prev] = next[j];
+
+					probeMatched[i] = true;
+					indexedMatched[j] = true;
 					mcount++;
 					break;
 				}
 			}
+		}
 
 		return mcount;
 	}
@@ -722,11 +1647,14 @@ class XDiff
 	  * @param	count2		# of nodes in node list #2
 	  * @param	treeOrder	true for original, false for inverse
 	  * @param	matchFlag	indicates if distance computation needed
+	  * @return	true if the distances or the matching were cut short
+	  *		by the budget
 	  */
-	private void matchListO(int nodes1[], int nodes2[], int count1,
-				int count2, boolean treeOrder,
-				boolean matchFlag)
+	private boolean matchListO(int nodes1[], int nodes2[], int count1,
+				   int count2, boolean treeOrder,
+				   boolean matchFlag)
 	{
+		boolean	exhausted = _budgetExhausted();
 		int[][]	distance = new int[count1+1][];
 		int[]	matching1 = new int[count1];
 		int[]	matching2 = new int[count2];
@@ -737,8 +1665,16 @@ class XDiff
 			distance[count1][i] = (treeOrder ? _xtree2.getDecendentsCount(nodes2[i]) : _xtree1.getDecendentsCount(nodes2[i])) + 1;
 
 		for (int i = 0; i < count1; i++)
-		{
 			distance[i] = new int[count2+1];
+		if (!matchFlag)
+		{
+			_charge((long)(count1 + 1) * (count2 + 1));
+			computeDistances(nodes1, nodes2, count1, count2,
+					 treeOrder, distance);
+		}
+
+		for (int i = 0; i < count1; i++)
+		{
 			int	deleteCost = (treeOrder ? _xtree1.getDecendentsCount(nodes1[i]) : _xtree2.getDecendentsCount(nodes1[i])) + 1;
 			for (int j = 0; j < count2; j++)
 			{
@@ -747,9 +1683,9 @@ class XDiff
 					dist = treeOrder ? _xlut.get(nodes1[i], nodes2[j]) : _xlut.get(nodes2[j], nodes1[i]);
 				else
 				{
-					dist = treeOrder ? distance(nodes1[i], nodes2[j], true, XTree.NO_CONNECTION) : distance(nodes2[j], nodes1[i], true, XTree.NO_CONNECTION);
+					dist = distance[i][j];
 					// the default mode.
-					if (!_oFlag && (dist > 1) && (dist >= _NO_MATCH_THRESHOLD * (deleteCost + distance[count1][j])))
+					if (!_oFlag && (dist > 1) && (dist >= _noMatchThreshold * (deleteCost + distance[count1][j])))
 						dist = XTree.NO_CONNECTION;
 					if (dist < XTree.NO_CONNECTION)
 						if (treeOrder)
@@ -769,6 +1705,8 @@ class XDiff
 
 		// compute the minimal cost matching.
 		findMatching(count1, count2, distance, matching1, matching2);
+		boolean	cutShort = _cutShort ||
+				   (!exhausted && _budgetExhausted());
 
 		for (int i = 0; i < count1; i++)
 		{
@@ -780,9 +1718,9 @@ class XDiff
 				_matchp[1] = nodes2[matching1[i]];
 			}
 			if (treeOrder)
-				_xtree1.addMatching(nodes1[i], _matchp);
+				_addMatching(_matching1, nodes1[i], _matchp);
 			else
-				_xtree2.addMatching(nodes1[i], _matchp);
+				_addMatching(_matching2, nodes1[i], _matchp);
 		}
 
 		for (int i = 0; i < count2; i++)
@@ -795,31 +1733,54 @@ class XDiff
 				_matchp[1] = nodes1[matching2[i]];
 			}
 			if (treeOrder)
-				_xtree2.addMatching(nodes2[i], _matchp);
+				_addMatching(_matching2, nodes2[i], _matchp);
 			else
-				_xtree1.addMatching(nodes2[i], _matchp);
+				_addMatching(_matching1, nodes2[i], _matchp);
 		}
 
+		int[]	todo1 = new int[count1];
+		int[]	todo2 = new int[count1];
+		int	todoCount = 0;
 		for (int i = 0; i < count1; i++)
 		{
 			if (matching1[i] != XTree.NO_MATCH)
 			{
-				int	todo1 = nodes1[i];
-				int	todo2 = nodes2[matching1[i]];
-				if (treeOrder)
-				{
-					if (_xtree1.isElement(todo1) &&
-					    _xtree2.isElement(todo2))
-						xdiff(todo1, todo2, true);
-				}
-				else
+				int	node1 = treeOrder ? nodes1[i] : nodes2[matching1[i]];
+				int	node2 = treeOrder ? nodes2[matching1[i]] : nodes1[i];
+				if (_xtree1.isElement(node1) &&
+				    _xtree2.isElement(node2))
 				{
-					if (_xtree1.isElement(todo2) &&
-					    _xtree2.isElement(todo1))
-						xdiff(todo2, todo1, true);
+					todo1[todoCount] = node1;
+					todo2[todoCount++] = node2;
 				}
 			}
 		}
+
+		diffSubtrees(todo1, todo2, todoCount);
+		return cutShort;
+	}
+
+	/**
+	  * Make the random generator that samples a list in the greedy
+	  * mode.  Once seeded, it only depends on the seed and the lists,
+	  * so that results are the same from run to run, whichever thread
+	  * diffs which subtree first.
+	  * @param	nodes1	node list #1
+	  * @param	nodes2	node list #2
+	  * @param	count1	# of nodes in node list #1
+	  * @param	count2	# of nodes in node list #2
+	  */
+	private Random _sampler(int nodes1[], int nodes2[],
+				int count1, int count2)
+	{
+		if (!_options.isSeeded())
+			return new Random(System.currentTimeMillis());
+
+		long	key = _options.getSeed();
+		key = (key ^ nodes1[0]) * 0x9E3779B97F4A7C15L;
+		key = (key ^ nodes2[0]) * 0x9E3779B97F4A7C15L;
+		key = (key ^ (((long)count1 << 32) | count2)) * 0x9E3779B97F4A7C15L;
+		return new Random(key);
 	}
 
 	/**
@@ -832,10 +1793,13 @@ class XDiff
 	  * @param	count2		# of nodes in node list #2
 	  * @param	treeOrder	true for original, false for inverse
 	  * @param	matchFlag	indicates if distance computation needed
+	  * @return	true if the distances were cut short by the budget
 	  */
-	private void matchList(int nodes1[], int nodes2[], int count1,
-			       int count2, boolean treeOrder, boolean matchFlag)
+	private boolean matchList(int nodes1[], int nodes2[], int count1,
+				  int count2, boolean treeOrder,
+				  boolean matchFlag)
 	{
+		boolean	exhausted = _budgetExhausted();
 		int[]	matching1 = new int[count1];
 		int[]	matching2 = new int[count2];
 		for (int i = 0; i < count1; i++)
@@ -861,7 +1825,7 @@ class XDiff
 		}
 		else
 		{
-			Random	r = new Random(System.currentTimeMillis());
+			Random	r = _sampler(nodes1, nodes2, count1, count2);
 			int	scount1 = 0;
 			int	scount2 = 0;
 			int	matchingThreshold = 0;
@@ -884,7 +1848,7 @@ class XDiff
 
 				int	deleteCost = (treeOrder ? _xtree2.getDecendentsCount(nodes2[snode]) : _xtree1.getDecendentsCount(nodes2[snode])) + 1;
 				if ((dist > 1) &&
-				    (dist > (_NO_MATCH_THRESHOLD * deleteCost)))
+				    (dist > (_noMatchThreshold * deleteCost)))
 				{
 					int	tmp = nodes2[snode];
 					nodes2[snode] = nodes2[scount2];
@@ -949,6 +1913,7 @@ class XDiff
 				}
 			}
 		}
+		boolean	cutShort = !exhausted && _budgetExhausted();
 
 		// Record matching
 		for (int i = 0; i < count1; i++)
@@ -961,9 +1926,9 @@ class XDiff
 				_matchp[1] = nodes2[matching1[i]];
 			}
 			if (treeOrder)
-				_xtree1.addMatching(nodes1[i], _matchp);
+				_addMatching(_matching1, nodes1[i], _matchp);
 			else
-				_xtree2.addMatching(nodes1[i], _matchp);
+				_addMatching(_matching2, nodes1[i], _matchp);
 		}
 
 		for (int i = 0; i < count2; i++)
@@ -976,60 +1941,268 @@ class XDiff
 				_matchp[1] = nodes1[matching2[i]];
 			}
 			if (treeOrder)
-				_xtree2.addMatching(nodes2[i], _matchp);
+				_addMatching(_matching2, nodes2[i], _matchp);
 			else
-				_xtree1.addMatching(nodes2[i], _matchp);
+				_addMatching(_matching1, nodes2[i], _matchp);
 		}
 
+		int[]	todo1 = new int[count1];
+		int[]	todo2 = new int[count1];
+		int	todoCount = 0;
 		for (int i = 0; i < count1; i++)
 		{
 			if (matching1[i] != XTree.NO_MATCH)
 			{
-				int	todo1 = nodes1[i];
-				int	todo2 = nodes2[matching1[i]];
-				if (treeOrder)
-				{
-					if (_xtree1.isElement(todo1) &&
-					    _xtree2.isElement(todo2))
-						xdiff(todo1, todo2, true);
-				}
-				else
+				int	node1 = treeOrder ? nodes1[i] : nodes2[matching1[i]];
+				int	node2 = treeOrder ? nodes2[matching1[i]] : nodes1[i];
+				if (_xtree1.isElement(node1) &&
+				    _xtree2.isElement(node2))
 				{
-					if (_xtree1.isElement(todo2) &&
-					    _xtree2.isElement(todo1))
-						xdiff(todo2, todo1, true);
+					todo1[todoCount] = node1;
+					todo2[todoCount++] = node2;
 				}
 			}
 		}
+
+		diffSubtrees(todo1, todo2, todoCount);
+		return cutShort;
 	}
 
 	/**
-	  * Compute (minimal-editing) distance between two nodes.
-	  * @param	eid1		element id #1
-	  * @param	eid2		element id #2
-	  * @param	toRecord	whether or not to keep the result
-	  * @param	threshold	No need to return a distance higher
-	  *				than this threshold
-	  * @return	the distance
+	  * Diff matched subtree pairs, in parallel if a pool is set up.
+	  * The pairs are disjoint and their distances are already in the
+	  * lookup table, so the tasks only read the table and each of them
+	  * writes matching info to its own nodes.
+	  * @param	todo1		node list #1
+	  * @param	todo2		node list #2, matched with list #1
+	  * @param	count		# of node pairs
 	  */
-	private int distance(int eid1, int eid2, boolean toRecord,
-			     int threshold)
+	private void diffSubtrees(int todo1[], int todo2[], int count)
 	{
-		boolean	isE1 = _xtree1.isElement(eid1);
-		boolean isE2 = _xtree2.isElement(eid2);
-		if (isE1 && isE2)
+		if ((_pool == null) || (count == 0))
 		{
-			if (_xtree1.getTag(eid1).compareTo(_xtree2.getTag(eid2)) != 0)
-				return XTree.NO_CONNECTION;
-			else 
+			for (int i = 0; i < count; i++)
+				xdiff(todo1[i], todo2[i], true);
+		}
+		else if (ForkJoinTask.getPool() != _pool)
+			_pool.invoke(new SubtreeTask(todo1, todo2, count));
+		else
+		{
+			// Fork the large pairs, and diff the small ones here.
+			SubtreeTask[]	tasks = new SubtreeTask[count];
+			int		taskCount = 0;
+			for (int i = 0; i < count; i++)
 			{
-				int	dist = _xdiff(eid1, eid2, threshold);
-				if (toRecord && (dist < XTree.NO_CONNECTION))
-					_xlut.add(eid1, eid2, dist);
-				return dist;
+				int	size = _xtree1.getDecendentsCount(todo1[i]) +
+					       _xtree2.getDecendentsCount(todo2[i]);
+				if (size >= _parallelCutoff)
+				{
+					tasks[taskCount] = new SubtreeTask(todo1[i], todo2[i]);
+					tasks[taskCount++].fork();
+				}
+				else
+					xdiff(todo1[i], todo2[i], true);
 			}
+
+			for (int i = taskCount - 1; i >= 0; i--)
+				tasks[i].join();
 		}
-		else if (!isE1 && !isE2)
+	}
+
+	/**
+	  * <code>SubtreeTask</code> diffs a list of matched subtree pairs with
+	  * the worker of the thread that runs it.
+	  */
+	private class SubtreeTask extends RecursiveAction
+	{
+		private int	_todo1[], _todo2[];
+		private int	_count;
+
+		SubtreeTask(int todo1[], int todo2[], int count)
+		{
+			_todo1 = todo1;
+			_todo2 = todo2;
+			_count = count;
+		}
+
+		SubtreeTask(int node1, int node2)
+		{
+			this(new int[] {node1}, new int[] {node2}, 1);
+		}
+
+		protected void compute()
+		{
+			XDiff	worker = (XDiff)_workers.get();
+			if (_count == 1)
+				worker.xdiff(_todo1[0], _todo2[0], true);
+			else
+				worker.diffSubtrees(_todo1, _todo2, _count);
+		}
+	}
+
+	/**
+	  * Fill the distance matrix between two node lists, row-blocked in
+	  * parallel if a pool is set up.
+	  * Each cell only records the distances of node pairs under its own
+	  * two nodes, so the cells are independent of each other and the
+	  * result is the same as computing them one by one.
+	  * @param	nodes1		node list #1
+	  * @param	nodes2		node list #2
+	  * @param	count1		# of nodes in node list #1
+	  * @param	count2		# of nodes in node list #2
+	  * @param	treeOrder	true for original, false for inverse
+	  * @param	distance	the distance matrix to fill
+	  */
+	private void computeDistances(int nodes1[], int nodes2[], int count1,
+				      int count2, boolean treeOrder,
+				      int distance[][])
+	{
+		if ((_pool == null) || (count1 * count2 < 2))
+		{
+			_computeDistances(nodes1, nodes2, 0, count1, count2,
+					  treeOrder, distance);
+			return;
+		}
+
+		int	colSize = 0;
+		for (int j = 0; j < count2; j++)
+			colSize += _getSize(nodes2[j], !treeOrder) + 1;
+		DistanceTask	task = new DistanceTask(nodes1, nodes2, 0,
+							count1, count2,
+							colSize, treeOrder,
+							distance);
+
+		if (ForkJoinTask.getPool() == _pool)
+			task.invoke();
+		else
+		{
+			_pool.invoke(task);
+
+			// Collect what the workers have recorded.
+			for (int i = 0; i < _workerList.size(); i++)
+			{
+				XDiff	worker = (XDiff)_workerList.elementAt(i);
+				_xlut.addAll(worker._localLut);
+				worker._localLut.clear();
+			}
+		}
+	}
+
+	/**
+	  * Fill some rows of the distance matrix one cell after another.
+	  * @param	nodes1		node list #1
+	  * @param	nodes2		node list #2
+	  * @param	start		the first row
+	  * @param	end		the row after the last one
+	  * @param	count2		# of nodes in node list #2
+	  * @param	treeOrder	true for original, false for inverse
+	  * @param	distance	the distance matrix to fill
+	  */
+	private void _computeDistances(int nodes1[], int nodes2[], int start,
+				       int end, int count2, boolean treeOrder,
+				       int distance[][])
+	{
+		for (int i = start; i < end; i++)
+		{
+			for (int j = 0; j < count2; j++)
+				distance[i][j] = treeOrder ? distance(nodes1[i], nodes2[j], true, XTree.NO_CONNECTION) : distance(nodes2[j], nodes1[i], true, XTree.NO_CONNECTION);
+		}
+	}
+
+	// Get the # of decendents of a node in tree #1 or tree #2.
+	private int _getSize(int eid, boolean inTree1)
+	{
+		return inTree1 ? _xtree1.getDecendentsCount(eid) :
+				 _xtree2.getDecendentsCount(eid);
+	}
+
+	/**
+	  * <code>DistanceTask</code> fills a block of rows of a distance matrix,
+	  * splitting it in halves while it is large enough.
+	  */
+	private class DistanceTask extends RecursiveAction
+	{
+		private int	_nodes1[], _nodes2[], _distance[][];
+		private int	_start, _end, _count2, _colSize;
+		private boolean	_treeOrder;
+
+		DistanceTask(int nodes1[], int nodes2[], int start, int end,
+			     int count2, int colSize, boolean treeOrder,
+			     int distance[][])
+		{
+			_nodes1 = nodes1;
+			_nodes2 = nodes2;
+			_start = start;
+			_end = end;
+			_count2 = count2;
+			_colSize = colSize;
+			_treeOrder = treeOrder;
+			_distance = distance;
+		}
+
+		protected void compute()
+		{
+			XDiff	worker = (XDiff)_workers.get();
+
+			// Each cell costs about the sizes of its two nodes.
+			int	rowSize = 0;
+			for (int i = _start; i < _end; i++)
+				rowSize += worker._getSize(_nodes1[i], _treeOrder) + 1;
+			long	work = (long)rowSize * _count2 +
+				       (long)(_end - _start) * _colSize;
+
+			if ((_end - _start > 1) && (work >= _parallelCutoff))
+			{
+				int	mid = (_start + _end) / 2;
+				invokeAll(new DistanceTask(_nodes1, _nodes2, _start,
+							   mid, _count2, _colSize,
+							   _treeOrder, _distance),
+					  new DistanceTask(_nodes1, _nodes2, mid,
+							   _end, _count2, _colSize,
+							   _treeOrder, _distance));
+			}
+			else
+				worker._computeDistances(_nodes1, _nodes2, _start,
+							 _end, _count2,
+							 _treeOrder, _distance);
+		}
+	}
+
+	/**
+	  * Compute (minimal-editing) distance between two nodes.
+	  * @param	eid1		element id #1
+	  * @param	eid2		element id #2
+	  * @param	toRecord	whether or not to keep the result
+	  * @param	threshold	No need to return a distance higher
+	  *				than this threshold
+	  * @return	the distance
+	  */
+	private int distance(int eid1, int eid2, boolean toRecord,
+			     int threshold)
+	{
+		boolean	isE1 = _xtree1.isElement(eid1);
+		boolean isE2 = _xtree2.isElement(eid2);
+		if (isE1 && isE2)
+		{
+			if (_xtree1.getTag(eid1).compareTo(_xtree2.getTag(eid2)) != 0)
+				return XTree.NO_CONNECTION;
+			else 
+			{
+				int	dist;
+				if (_budgetExhausted())
+					dist = _xtree1.getDecendentsCount(eid1) +
+					       _xtree2.getDecendentsCount(eid2);
+				else
+				{
+					_charge(1);
+					dist = _xdiff(eid1, eid2, threshold);
+				}
+				if (toRecord && (dist < XTree.NO_CONNECTION))
+					_localLut.add(eid1, eid2, dist);
+				return dist;
+			}
+		}
+		else if (!isE1 && !isE2)
 			return 1;
 		else
 			return XTree.NO_CONNECTION;
@@ -1046,6 +2219,7 @@ class XDiff
 	private int _xdiff(int pid1, int pid2, int threshold)
 	{
 		int	dist = 0;
+		_ensureLists(pid1, pid2);
 
 		// diff attributes.
 		int	attrCount1 = 0;
@@ -1123,6 +2297,9 @@ class XDiff
 			else
 				dist += _xtree1.getDecendentsCount(node1) + _xtree2.getDecendentsCount(node2) + 2;
 		}
+		else if (_ordered && _options.isOrdered(_xtree1.getTag(pid1)))
+			return _xdiffOrdered(pid1, pid2, count1, count2, dist,
+					     threshold);
 		else
 		{
 			int[]		elements1 = new int[count1];
@@ -1178,11 +2355,63 @@ class XDiff
 			int	mcount = _matchFilter(elements1, elementCount1,
 						      elements2, elementCount2,
 						      matched1, matched2);
+			int	mcount1 = mcount, mcount2 = mcount;
+			if (_subtreeIndex)
+			{
+				// Moved subtrees are deleted and inserted.
+				int	moved[] = new int[Math.max(elementCount1,
+								   elementCount2)];
+				int	mv = _pruneMoved(_xtree1, _xtree2, elements1,
+							 elementCount1, matched1, moved);
+				mcount1 += mv;
+				for (int i = 0; i < mv; i++)
+					dist += _xtree1.getDecendentsCount(moved[i]) + 1;
+				mv = _pruneMoved(_xtree2, _xtree1, elements2,
+						 elementCount2, matched2, moved);
+				mcount2 += mv;
+				for (int i = 0; i < mv; i++)
+					dist += _xtree2.getDecendentsCount(moved[i]) + 1;
+				if (_gFlag && (dist >= threshold))
+					return XTree.NO_CONNECTION;
+			}
+
+			if (_keyed)
+			{
+				// Elements with keys are matched by key.
+				int	keyed1[] = new int[elementCount1];
+				int	keyed2[] = new int[elementCount2];
+				_matchKeys(elements1, elementCount1, matched1, keyed1,
+					   elements2, elementCount2, matched2, keyed2);
+				for (int i = 0; i < elementCount1; i++)
+				{
+					if (keyed1[i] == _NO_KEY)
+						continue;
+					mcount1++;
+					if (keyed1[i] == _NO_PARTNER)
+						dist += _xtree1.getDecendentsCount(elements1[i]) + 1;
+					else
+						dist += distance(elements1[i],
+								 elements2[keyed1[i]],
+								 false, threshold - dist);
+					if (_gFlag && (dist >= threshold))
+						return XTree.NO_CONNECTION;
+				}
+				for (int i = 0; i < elementCount2; i++)
+				{
+					if (keyed2[i] == _NO_KEY)
+						continue;
+					mcount2++;
+					if (keyed2[i] == _NO_PARTNER)
+						dist += _xtree2.getDecendentsCount(elements2[i]) + 1;
+				}
+				if (_gFlag && (dist >= threshold))
+					return XTree.NO_CONNECTION;
+			}
 
-			if ((elementCount1 == mcount) &&
-			    (elementCount2 == mcount))
+			if ((elementCount1 == mcount1) &&
+			    (elementCount2 == mcount2))
 				return dist;
-			if (elementCount1 == mcount)
+			if (elementCount1 == mcount1)
 			{
 				for (int i = 0; i < elementCount2; i++)
 				{
@@ -1195,7 +2424,7 @@ class XDiff
 				}
 				return dist;
 			}
-			if (elementCount2 == mcount)
+			if (elementCount2 == mcount2)
 			{
 				for (int i = 0; i < elementCount1; i++)
 				{
@@ -1210,8 +2439,8 @@ class XDiff
 			}
 
 			// Write the list of unmatched nodes.
-			int	ucount1 = elementCount1 - mcount;
-			int	ucount2 = elementCount2 - mcount;
+			int	ucount1 = elementCount1 - mcount1;
+			int	ucount2 = elementCount2 - mcount2;
 			int[]	unmatched1 = new int[ucount1];
 			int[]	unmatched2 = new int[ucount2];
 			int	muc1 = 0, muc2 = 0;
@@ -1251,6 +2480,14 @@ class XDiff
 					for (int i = 0; i < uele1; i++)
 						dist += _xtree1.getDecendentsCount(unmatched1[i]);
 				}
+				else if (_budgetExhausted())
+				{
+					// Out of budget: delete and insert.
+					for (int i = 0; i < uele1; i++)
+						dist += _xtree1.getDecendentsCount(unmatched1[i]) + 1;
+					for (int i = 0; i < uele2; i++)
+						dist += _xtree2.getDecendentsCount(unmatched2[i]) + 1;
+				}
 				else
 				{
 /*
@@ -1307,6 +2544,60 @@ class XDiff
 			return XTree.NO_CONNECTION;
 	}
 
+	/**
+	  * Compute the distance between two ordered child lists, aligned as
+	  * xdiffOrdered does: a moved child costs 1, like an update.
+	  * @param	pid1		parent id #1
+	  * @param	pid2		parent id #2
+	  * @param	count1		# of children of pid1
+	  * @param	count2		# of children of pid2
+	  * @param	dist		the distance so far, of the attributes
+	  * @param	threshold	No need to return a distance higher
+	  *				than this threshold
+	  * @return	the distance
+	  */
+	private int _xdiffOrdered(int pid1, int pid2, int count1, int count2,
+				  int dist, int threshold)
+	{
+		int	children1[] = new int[count1];
+		int	children2[] = new int[count2];
+		int	pair1[] = new int[count1];
+		int	pair2[] = new int[count2];
+		boolean	moved1[] = new boolean[count1];
+		_alignChildren(pid1, pid2, children1, count1, children2, count2,
+			       pair1, pair2, moved1);
+
+		for (int i = 0; i < count1; i++)
+		{
+			int	node1 = children1[i];
+			if (pair1[i] < 0)
+				dist += _xtree1.getDecendentsCount(node1) + 1;
+			else if (moved1[i])
+				dist++;
+			else
+			{
+				int	node2 = children2[pair1[i]];
+				if (_xtree1.getHashValue(node1) !=
+				    _xtree2.getHashValue(node2))
+					dist += distance(node1, node2, false,
+							 threshold - dist);
+			}
+			if (_gFlag && (dist >= threshold))
+				return XTree.NO_CONNECTION;
+		}
+		for (int j = 0; j < count2; j++)
+		{
+			if (pair2[j] < 0)
+			{
+				dist += _xtree2.getDecendentsCount(children2[j]) + 1;
+				if (_gFlag && (dist >= threshold))
+					return XTree.NO_CONNECTION;
+			}
+		}
+
+		return dist;
+	}
+
 	/**
 	  * Diff two lists of attributes
 	  * @param	attrCount1	number of attributes in the 1st list
@@ -1384,29 +2675,14 @@ class XDiff
 	  */
 	private int _diffText(int textCount1, int textCount2)
 	{
+		for (int i = 0; i < textCount1; i++)
+			_textHash1[i] = _xtree1.getHashValue(_textList1[i]);
 		for (int i = 0; i < textCount2; i++)
-		{
-			_textMatch2[i] = false;
 			_textHash[i] = _xtree2.getHashValue(_textList2[i]);
-		}
-
-		int	mcount = 0;
-		for (int i = 0; i < textCount1; i++)
-		{
-			long	hash1 = _xtree1.getHashValue(_textList1[i]);
-			for (int j = 0; j < textCount2; j++)
-			{
-				if (!_textMatch2[j] && (hash1 == _textHash[j]))
-				{
-					_textMatch2[j] = true;
-					mcount++;
-					break;
-				}
-			}
 
-			if (mcount == textCount2)
-				break;
-		}
+		int	mcount = _matchHashes(_textHash1, textCount1, _textHash,
+					      textCount2, _textMatch1,
+					      _textMatch2);
 
 		if (textCount1 >= textCount2)
 			return textCount1 - mcount;
@@ -1436,26 +2712,31 @@ class XDiff
 			distance[count1][i] = (treeOrder ? _xtree2.getDecendentsCount(nodes2[i]) : _xtree1.getDecendentsCount(nodes2[i])) + 1;
 
 		for (int i = 0; i < count1; i++)
-		{
 			distance[i] = new int[count2+1];
+		_charge((long)(count1 + 1) * (count2 + 1));
+		computeDistances(nodes1, nodes2, count1, count2, treeOrder,
+				 distance);
+
+		for (int i = 0; i < count1; i++)
+		{
 			int	deleteCost = (treeOrder ? _xtree1.getDecendentsCount(nodes1[i]) : _xtree2.getDecendentsCount(nodes1[i])) + 1;
 			for (int j = 0; j < count2; j++)
 			{
-				int	dist = treeOrder ? distance(nodes1[i], nodes2[j], true, XTree.NO_CONNECTION) : distance(nodes2[j], nodes1[i], true, XTree.NO_CONNECTION);
+				int	dist = distance[i][j];
 				// the default mode.
 				if (!_oFlag && (dist > 1) &&
 				    (dist < XTree.NO_CONNECTION) &&
-				    (dist >= _NO_MATCH_THRESHOLD *
+				    (dist >= _noMatchThreshold *
 					(deleteCost + distance[count1][j])))
 					dist = XTree.NO_CONNECTION;
 
 				if (dist < XTree.NO_CONNECTION)
 				{
 					if (treeOrder)
-						_xlut.add(nodes1[i], nodes2[j],
+						_localLut.add(nodes1[i], nodes2[j],
 							  dist);
 			       		else
-					       	_xlut.add(nodes2[j], nodes1[i],
+					       	_localLut.add(nodes2[j], nodes1[i],
 							  dist);
 				}
 				distance[i][j] = dist;
@@ -1491,7 +2772,7 @@ class XDiff
 			matching2[i] = XTree.NO_MATCH;
 
 		int	distance = 0;
-		Random	r = new Random(System.currentTimeMillis());
+		Random	r = _sampler(nodes1, nodes2, count1, count2);
 		int	scount1 = 0;
 		int	scount2 = 0;
 		int	matchingThreshold = 0;
@@ -1516,7 +2797,7 @@ class XDiff
 			int	deleteCost = (treeOrder ? _xtree2.getDecendentsCount(nodes2[snode]) : _xtree1.getDecendentsCount(nodes2[snode])) + 1;
 
 			if ((dist > 1) &&
-			    (dist > (_NO_MATCH_THRESHOLD * deleteCost)))
+			    (dist > (_noMatchThreshold * deleteCost)))
 			{
 				int	tmp = nodes2[snode];
 				nodes2[snode] = nodes2[scount2];
@@ -1533,9 +2814,9 @@ class XDiff
 				nodes2[scount2] = tmp;
 
 				if (treeOrder)
-					_xlut.add(nodes1[scount1], nodes2[scount2], dist);
+					_localLut.add(nodes1[scount1], nodes2[scount2], dist);
 				else
-					_xlut.add(nodes2[scount2], nodes1[scount1], dist);
+					_localLut.add(nodes2[scount2], nodes1[scount1], dist);
 				matching1[scount1] = scount2;
 				matching2[scount2] = scount1;
 
@@ -1564,7 +2845,7 @@ class XDiff
 					bestmatch = i;
 					break;
 				}
-				else if ((d == 1) || ( d < (_NO_MATCH_THRESHOLD * dist)))
+				else if ((d == 1) || ( d < (_noMatchThreshold * dist)))
 				{
 					dist = d;
 					bestmatch = i;
@@ -1582,9 +2863,9 @@ class XDiff
 				nodes1[scount1] = tmp;
 
 				if (treeOrder)
-					_xlut.add(nodes1[scount1], nodes2[scount2], dist);
+					_localLut.add(nodes1[scount1], nodes2[scount2], dist);
 				else
-					_xlut.add(nodes2[scount2], nodes1[scount1], dist);
+					_localLut.add(nodes2[scount2], nodes1[scount1], dist);
 
 				matching1[scount1] = scount2;
 				matching2[scount2] = scount1;
@@ -1622,6 +2903,7 @@ class XDiff
 	private int findMatching(int count1, int count2, int dist[][],
 				 int matching1[], int matching2[])
 	{
+		_cutShort = false;
 		if (count1 == 1)
 		{
 			// count2 == 1
@@ -1738,15 +3020,32 @@ class XDiff
 				return distance2;
 			}
 		}
+		else if (_options.getMatchEngine() == XOptions.NCC)
+		{
+			// One search of a negative cost circuit.
+			long	count = count1 + count2 + 3;
+			if (_budgetAllows(count * count * count))
+				return optimalMatching(count1, count2, dist,
+						       matching1, matching2);
+		}
 		else
 		{
-			return optimalMatching(count1, count2, dist,
-					       matching1, matching2);
+			if (_budgetAllows((long)count2 * count2 * count1))
+				return hungarianMatching(count1, count2, dist,
+							 matching1, matching2);
 		}
+
+		// Out of budget.
+		_cutShort = true;
+		return greedyMatching(count1, count2, dist, matching1,
+				      matching2);
 	}
 
 	/**
-	  * Perform minimal-cost matching between two node lists
+	  * Perform a matching between two node lists greedily, in
+	  * O(count1 * count2), when the budget is exhausted: each node of
+	  * list #2 is matched with the node of list #1 left that it is
+	  * closest to, if that costs less than deleting and inserting.
 	  * @param	count1	length of node list #1
 	  * @param	count2	length of node list #2
 	  * @param	dist	distance matrix
@@ -1754,118 +3053,362 @@ class XDiff
 	  * @param	matching2	matching list (for node list #2)
 	  * @return	distance
 	  */
-	private int optimalMatching(int count1, int count2, int dist[][],
-				    int matching1[], int matching2[])
+	private static int greedyMatching(int count1, int count2, int dist[][],
+					  int matching1[], int matching2[])
 	{
-		// Initialize matching. 
-		// Initial guess will be pair-matching between two lists.
-		// Others will be insertion or deletion
-		for (int i = 0; i < count2; i++)
-			matching1[i] = i;
-		for (int i = count2; i < count1; i++)
+		for (int i = 0; i < count1; i++)
 			matching1[i] = XTree.DELETE;
 
-		// Three artificial nodes: "start", "end" and "delete".
-		int count = count1 + count2 + 3;
-
-		// Initialize least cost matrix and path matrix.
-		// Both have been initialized at the very beginning.
-
-		// Start algorithm.
-		while (true)
+		int	distance = 0;
+		for (int j = 0; j < count2; j++)
 		{
-			// Construct least cost matrix.
-			constructLCM(dist, matching1, count1, count2);
-
-			// Initialize path matrix.
-			for (int i = 0; i < count; i++)
-				for (int j = 0; j < count; j++)
-					_pathMatrix[i][j] = i;
-
-			// Search negative cost circuit.
-			int	clen = searchNCC(count);
-			if (clen > 0)
+			int	insertCost = dist[count1][j];
+			int	mate = XTree.INSERT;
+			int	gain = 0;
+			for (int i = 0; i < count1; i++)
 			{
-				// Modify matching.
-				for (int i = 0, next = 0; i < clen - 1; i++)
+				int	d = dist[i][j];
+				if ((matching1[i] != XTree.DELETE) ||
+				    (d >= XTree.NO_CONNECTION))
+					continue;
+				int	g = d - dist[i][count2] - insertCost;
+				if (g < gain)
 				{
-					int	n1 = _circuit[next];
-					next = _circuit[next+1];
-					// Node in node list 1.
-					if ((n1 > 0) && (n1 <= count1))
-					{
-						int	nid1 = n1 - 1;
-						int	nid2 = _circuit[next] - count1 - 1;
-						if (nid2 == count2)
-							nid2 = XTree.DELETE;
-
-						matching1[nid1] = nid2;
-					}
+					gain = g;
+					mate = i;
 				}
 			}
-			else // Stop.
-				break;
-		}
 
-		int	distance = 0;
-		// Suppose all insertion on list2
-		for (int i = 0; i < count2; i++)
-		{
-			matching2[i] = XTree.INSERT;
-			distance += dist[count1][i];
+			matching2[j] = mate;
+			if (mate == XTree.INSERT)
+				distance += insertCost;
+			else
+			{
+				matching1[mate] = j;
+				distance += dist[mate][j];
+			}
 		}
 
-		// update distance by looking at matching pairs.
 		for (int i = 0; i < count1; i++)
 		{
-			int	mmm = matching1[i];
-			if (mmm == XTree.DELETE)
+			if (matching1[i] == XTree.DELETE)
 				distance += dist[i][count2];
-			else
-			{
-				matching2[mmm] = i;
-				distance += dist[i][mmm] -
-					    dist[count1][mmm];
-			}
 		}
 
 		return distance;
 	}
 
 	/**
-	  * Construct a least cost matrix (of the flow network) based on
-	  * the cost matrix
-	  * @param	costMatrix	cost matrix
-	  * @param	matching	matching information
-	  * @param	nodeCount1	# of nodes in node list 1
-	  * @param	nodeCount2	# of nodes in node list 2
+	  * Perform minimal-cost matching between two node lists with the
+	  * engine of the options, as a diff does, e.g., to check the
+	  * engines against each other.  Node list #2 must not be longer
+	  * than node list #1.
+	  * @param	count1	length of node list #1
+	  * @param	count2	length of node list #2
+	  * @param	dist	distance matrix, with the delete costs in
+	  *			column count2 and the insert costs in row count1
+	  * @param	matching1	matching list (for node list #1)
+	  * @param	matching2	matching list (for node list #2)
+	  * @return	distance
 	  */
-	private void constructLCM(int costMatrix[][], int matching[],
-				  int nodeCount1, int nodeCount2)
+	int matchLists(int count1, int count2, int dist[][],
+		       int matching1[], int matching2[])
 	{
-		// Three artificial nodes: "start", "end" and "delete".
-		int nodeCount = nodeCount1 + nodeCount2 + 3;
-
-		// Initialize.
-		for (int i = 0; i < nodeCount; i++)
-		{
-			for (int j = 0; j < nodeCount; j++)
-			_leastCostMatrix[i][j] = XTree.NO_CONNECTION;
+		return findMatching(count1, count2, dist, matching1, matching2);
+	}
 
-			// self.
-			_leastCostMatrix[i][i] = 0;
-		}
+	/**
+	  * Perform minimal-cost matching between two node lists with the
+	  * Hungarian algorithm (shortest augmenting paths with potentials).
+	  * Matching node1 with node2 is only worthwhile if it costs less
+	  * than deleting node1 and inserting node2, so the assignment is
+	  * solved over the "gain" of each pair, clamped to 0.  Node list #2
+	  * must not be longer than node list #1.
+	  * O(count2 * count2 * count1).
+	  * @param	count1	length of node list #1
+	  * @param	count2	length of node list #2
+	  * @param	dist	distance matrix
+	  * @param	matching1	matching list (for node list #1)
+	  * @param	matching2	matching list (for node list #2)
+	  * @return	distance
+	  */
+	private int hungarianMatching(int count1, int count2, int dist[][],
+				      int matching1[], int matching2[])
+	{
+		// Rows are nodes in list 2, columns are nodes in list 1.
+		int	rows = count2;
+		int	cols = count1;
+		int[]	gain = new int[rows * cols];
+		for (int r = 0; r < rows; r++)
+		{
+			int	insertCost = dist[count1][r];
+			for (int c = 0; c < cols; c++)
+			{
+				int	d = dist[c][r];
+				int	g = 0;
+				if (d < XTree.NO_CONNECTION)
+				{
+					g = d - dist[c][count2] - insertCost;
+					if (g > 0)
+						g = 0;
+				}
+				gain[r * cols + c] = g;
+			}
+		}
+
+		// Potentials, column owners and augmenting path links;
+		// index 0 is the artificial column/row.
+		int[]		u = new int[rows + 1];
+		int[]		v = new int[cols + 1];
+		int[]		owner = new int[cols + 1];
+		int[]		way = new int[cols + 1];
+		int[]		minv = new int[cols + 1];
+		boolean[]	used = new boolean[cols + 1];
+
+		int	done = rows;
+		for (int r = 1; r <= rows; r++)
+		{
+			// Past the deadline, the rows left are matched
+			// greedily below.
+			if (_budgetExhausted())
+			{
+				_cutShort = true;
+				done = r - 1;
+				break;
+			}
+
+			owner[0] = r;
+			int	c0 = 0;
+			for (int c = 0; c <= cols; c++)
+			{
+				minv[c] = Integer.MAX_VALUE;
+				used[c] = false;
+			}
+
+			do
+			{
+				used[c0] = true;
+				int	r0 = owner[c0];
+				int	base = (r0 - 1) * cols - 1;
+				int	delta = Integer.MAX_VALUE;
+				int	c1 = 0;
+				for (int c = 1; c <= cols; c++)
+				{
+					if (used[c])
+						continue;
+					int	cur = gain[base + c] - u[r0] - v[c];
+					if (cur < minv[c])
+					{
+						minv[c] = cur;
+						way[c] = c0;
+					}
+					if (minv[c] < delta)
+					{
+						delta = minv[c];
+						c1 = c;
+					}
+				}
+
+				for (int c = 0; c <= cols; c++)
+				{
+					if (used[c])
+					{
+						u[owner[c]] += delta;
+						v[c] -= delta;
+					}
+					else
+						minv[c] -= delta;
+				}
+				c0 = c1;
+			} while (owner[c0] != 0);
+
+			// Flip the augmenting path.
+			do
+			{
+				int	c1 = way[c0];
+				owner[c0] = owner[c1];
+				c0 = c1;
+			} while (c0 != 0);
+		}
+
+		for (int r = done + 1; r <= rows; r++)
+		{
+			int	base = (r - 1) * cols - 1;
+			int	best = 0, bestGain = 0;
+			for (int c = 1; c <= cols; c++)
+			{
+				if ((owner[c] == 0) && (gain[base + c] < bestGain))
+				{
+					best = c;
+					bestGain = gain[base + c];
+				}
+			}
+			if (best > 0)
+				owner[best] = r;
+		}
+
+		for (int i = 0; i < count1; i++)
+			matching1[i] = XTree.DELETE;
+
+		int	distance = 0;
+		// Suppose all insertion on list2
+		for (int i = 0; i < count2; i++)
+		{
+			matching2[i] = XTree.INSERT;
+			distance += dist[count1][i];
+		}
+
+		// Only pairs with a real gain are matched.
+		for (int c = 1; c <= cols; c++)
+		{
+			int	r = owner[c];
+			if ((r > 0) && (gain[(r - 1) * cols + c - 1] < 0))
+			{
+				matching1[c-1] = r - 1;
+				matching2[r-1] = c - 1;
+			}
+		}
+
+		// update distance by looking at matching pairs.
+		for (int i = 0; i < count1; i++)
+		{
+			int	mmm = matching1[i];
+			if (mmm == XTree.DELETE)
+				distance += dist[i][count2];
+			else
+				distance += dist[i][mmm] - dist[count1][mmm];
+		}
+
+		return distance;
+	}
+
+	/**
+	  * Perform minimal-cost matching between two node lists
+	  * @param	count1	length of node list #1
+	  * @param	count2	length of node list #2
+	  * @param	dist	distance matrix
+	  * @param	matching1	matching list (for node list #1)
+	  * @param	matching2	matching list (for node list #2)
+	  * @return	distance
+	  */
+	private int optimalMatching(int count1, int count2, int dist[][],
+				    int matching1[], int matching2[])
+	{
+		// Initialize matching. 
+		// Initial guess will be pair-matching between two lists.
+		// Others will be insertion or deletion
+		for (int i = 0; i < count2; i++)
+			matching1[i] = i;
+		for (int i = count2; i < count1; i++)
+			matching1[i] = XTree.DELETE;
+
+		// Three artificial nodes: "start", "end" and "delete".
+		int count = count1 + count2 + 3;
+
+		// Allocate least cost matrix and path matrix.
+		_ensureMatrices(count);
+
+		// Start algorithm.
+		while (true)
+		{
+			// Construct least cost matrix.
+			constructLCM(dist, matching1, count1, count2);
+
+			// Initialize path matrix.
+			for (int i = 0, ij = 0; i < count; i++)
+				for (int j = 0; j < count; j++)
+					_pathMatrix[ij++] = i;
+
+			// Search negative cost circuit.
+			int	clen = searchNCC(count);
+			if (clen > 0)
+			{
+				// Modify matching.
+				for (int i = 0, next = 0; i < clen - 1; i++)
+				{
+					int	n1 = _circuit[next];
+					next = _circuit[next+1];
+					// Node in node list 1.
+					if ((n1 > 0) && (n1 <= count1))
+					{
+						int	nid1 = n1 - 1;
+						int	nid2 = _circuit[next] - count1 - 1;
+						if (nid2 == count2)
+							nid2 = XTree.DELETE;
+
+						matching1[nid1] = nid2;
+					}
+				}
+			}
+			else // Stop, or out of budget.
+				break;
+
+			if (!_budgetAllows((long)count * count * count))
+			{
+				_cutShort = true;
+				break;
+			}
+		}
+
+		int	distance = 0;
+		// Suppose all insertion on list2
+		for (int i = 0; i < count2; i++)
+		{
+			matching2[i] = XTree.INSERT;
+			distance += dist[count1][i];
+		}
+
+		// update distance by looking at matching pairs.
+		for (int i = 0; i < count1; i++)
+		{
+			int	mmm = matching1[i];
+			if (mmm == XTree.DELETE)
+				distance += dist[i][count2];
+			else
+			{
+				matching2[mmm] = i;
+				distance += dist[i][mmm] -
+					    dist[count1][mmm];
+			}
+		}
+
+		return distance;
+	}
+
+	/**
+	  * Construct a least cost matrix (of the flow network) based on
+	  * the cost matrix
+	  * @param	costMatrix	cost matrix
+	  * @param	matching	matching information
+	  * @param	nodeCount1	# of nodes in node list 1
+	  * @param	nodeCount2	# of nodes in node list 2
+	  */
+	private void constructLCM(int costMatrix[][], int matching[],
+				  int nodeCount1, int nodeCount2)
+	{
+		// Three artificial nodes: "start", "end" and "delete".
+		int nodeCount = nodeCount1 + nodeCount2 + 3;
+
+		// Initialize.
+		for (int i = 0; i < nodeCount; i++)
+		{
+			for (int j = 0; j < nodeCount; j++)
+			_leastCostMatrix[i * nodeCount + j] = XTree.NO_CONNECTION;
+
+			// self.
+			_leastCostMatrix[i * nodeCount + i] = 0;
+		}
 
 		// Between start node and nodes in list 1.
 		// Start -> node1 = Infinity; node1 -> Start = -0.
 		for (int i = 0; i < nodeCount1; i++)
-			_leastCostMatrix[i+1][0] = 0;
+			_leastCostMatrix[(i+1) * nodeCount] = 0;
 
 		// Between nodes in list2 and the end node.
 		// Unless matched (later), node2 -> end = 0;
 		// end -> node2 = Infinity.
 		for (int i = 0; i < nodeCount2; i++)
-			_leastCostMatrix[i+nodeCount1+1][nodeCount-1] = 0;
+			_leastCostMatrix[(i+nodeCount1+1) * nodeCount + nodeCount-1] = 0;
 
 		int deleteCount = 0;
 
@@ -1883,7 +3426,7 @@ class XDiff
 			for (int j = 0; j < nodeCount2; j++)
 			{
 				node2 = j + nodeCount1 + 1;
-				_leastCostMatrix[node1][node2] = costMatrix[i][j];
+				_leastCostMatrix[node1 * nodeCount + node2] = costMatrix[i][j];
 			}
 
 			// According to matching.
@@ -1893,37 +3436,37 @@ class XDiff
 
 				// node1 -> Delete = Infinity;
 				// Delete -> node1 = -1 * DELETE_COST
-				_leastCostMatrix[nodeCount-2][node1] = -1 * costMatrix[i][nodeCount2];
+				_leastCostMatrix[(nodeCount-2) * nodeCount + node1] = -1 * costMatrix[i][nodeCount2];
 			}
 			else
 			{
 				node2 = matching[i] + nodeCount1 + 1;
 
 				// Between node1 and node2.
-				_leastCostMatrix[node1][node2] = XTree.NO_CONNECTION;
-				_leastCostMatrix[node2][node1] = costMatrix[i][matching[i]] * -1;
+				_leastCostMatrix[node1 * nodeCount + node2] = XTree.NO_CONNECTION;
+				_leastCostMatrix[node2 * nodeCount + node1] = costMatrix[i][matching[i]] * -1;
 
 				// Between node1 and delete.
-				_leastCostMatrix[node1][nodeCount-2] = costMatrix[i][nodeCount2];
+				_leastCostMatrix[node1 * nodeCount + nodeCount-2] = costMatrix[i][nodeCount2];
 
 				// Between node2 and end.
-				_leastCostMatrix[node2][nodeCount-1] = XTree.NO_CONNECTION;
-				_leastCostMatrix[nodeCount-1][node2] = costMatrix[nodeCount1][matching[i]];
+				_leastCostMatrix[node2 * nodeCount + nodeCount-1] = XTree.NO_CONNECTION;
+				_leastCostMatrix[(nodeCount-1) * nodeCount + node2] = costMatrix[nodeCount1][matching[i]];
 			}
 		}
 
 		// Between the "Delete" and the "End".
 		// If delete all, delete -> end = Infinity; end -> delete = 0.
 		if (deleteCount == nodeCount1)
-			_leastCostMatrix[nodeCount-1][nodeCount-2] = 0;
+			_leastCostMatrix[(nodeCount-1) * nodeCount + nodeCount-2] = 0;
 		// if no delete, delete -> end = 0; end -> delete = Infinity.
 		else if (deleteCount == 0)
-			_leastCostMatrix[nodeCount-2][nodeCount-1] = 0;
+			_leastCostMatrix[(nodeCount-2) * nodeCount + nodeCount-1] = 0;
 		// else, both 0;
 		else
 		{
-			_leastCostMatrix[nodeCount-2][nodeCount-1] = 0;
-			_leastCostMatrix[nodeCount-1][nodeCount-2] = 0;
+			_leastCostMatrix[(nodeCount-2) * nodeCount + nodeCount-1] = 0;
+			_leastCostMatrix[(nodeCount-1) * nodeCount + nodeCount-2] = 0;
 		}
 	}
 
@@ -1936,19 +3479,30 @@ class XDiff
 	{
 	  for (int k = 0; k < nodeCount; k++)
 	  {
+	    // Past the deadline, stop with the matching so far.
+	    if (_budgetExhausted())
+	    {
+	      _cutShort = true;
+	      return 0;
+	    }
+
+	    int	krow = k * nodeCount;
 	    for (int i = 0; i < nodeCount; i++)
 	    {
-	      if ((i != k) && (_leastCostMatrix[i][k] != XTree.NO_CONNECTION))
+	      int	irow = i * nodeCount;
+	      int	ik = _leastCostMatrix[irow + k];
+	      if ((i != k) && (ik != XTree.NO_CONNECTION))
 	      {
 		for (int j = 0; j < nodeCount; j++)
 		{
-		  if ((j != k) && (_leastCostMatrix[k][j] != XTree.NO_CONNECTION))
+		  int	kj = _leastCostMatrix[krow + j];
+		  if ((j != k) && (kj != XTree.NO_CONNECTION))
 		  {
-		    int	less = _leastCostMatrix[i][k] + _leastCostMatrix[k][j];
-		    if (less < _leastCostMatrix[i][j])
+		    int	less = ik + kj;
+		    if (less < _leastCostMatrix[irow + j])
 		    {
-		      _leastCostMatrix[i][j] = less;
-		      _pathMatrix[i][j] = k;
+		      _leastCostMatrix[irow + j] = less;
+		      _pathMatrix[irow + j] = k;
 
 		      // Found!
 		      if ((i == j) && (less < 0))
@@ -1961,7 +3515,7 @@ class XDiff
 			_circuit[1] = 2;
 
 			//circuit.addElement(new Integer(pathMatrix[i][i]));
-			_circuit[2] = _pathMatrix[i][i];
+			_circuit[2] = _pathMatrix[irow + i];
 			_circuit[3] = 4;
 
 			//circuit.addElement(new Integer(i));
@@ -1982,7 +3536,7 @@ class XDiff
 			    int	right = (next == -1)?-1:_circuit[next];
 
 			    //int middle = pathMatrix[circuit[n-1]][circuit[n]];
-			    int	middle = _pathMatrix[left][right];
+			    int	middle = _pathMatrix[left * nodeCount + right];
 
 			    if (middle != left)
 			    {
@@ -2019,8 +3573,9 @@ class XDiff
 		{
 			for (int j = 0; j < nodeCount; j++)
 			{
-				if (_leastCostMatrix[i][j] < XTree.NO_CONNECTION)
-					System.out.print(_leastCostMatrix[i][j] + "\t");
+				int	cost = _leastCostMatrix[i * nodeCount + j];
+				if (cost < XTree.NO_CONNECTION)
+					System.out.print(cost + "\t");
 				else
 					System.out.print("\t");
 			}
@@ -2031,55 +3586,255 @@ class XDiff
 		for (int i = 0; i < nodeCount; i++)
 		{
 			for (int j = 0; j < nodeCount - 1; j++)
-				System.out.print(_pathMatrix[i][j] + "\t");
-			System.out.println(_pathMatrix[i][nodeCount-1]);
+				System.out.print(_pathMatrix[i * nodeCount + j] + "\t");
+			System.out.println(_pathMatrix[i * nodeCount + nodeCount - 1]);
 		}
 	}
 
 	/**
-	  * Write out the diff result -- how doc1 is changed to doc2
-	  * @param	input		the first/old xml document
-	  * @param	output		output file name
+	  * Write out the diff result -- how doc1 is changed to doc2.
+	  * It starts with the prolog of doc1, if its tree has one.
+	  * @param	out		output writer
 	  */
-	private void writeDiff(String input, String output)
+	void writeDiff(Writer out) throws IOException
 	{
-		try
+		int	root1 = _xtree1.getRoot();
+		int	root2 = _xtree2.getRoot();
+
+		String	prolog = _xtree1.getProlog();
+		if (prolog != null)
+			out.write(prolog);
+
+		if (_moves1 != null)
+			_position2 = new int[_xtree2.getNodeCount()];
+
+		_getMatching(_matching1, root1, _matchp);
+		if (_matchp[0] == XTree.DELETE)
 		{
-			BufferedReader	br = new BufferedReader(new FileReader(input));
-			FileOutputStream	fos =
-				new FileOutputStream(output);
-			OutputStreamWriter	out =
-				new OutputStreamWriter(fos, _encoding);
+			writeDeleteNode(out, root1);
+			writeInsertNode(out, root2);
+		}
+		else
+			writeDiffNode(out, root1, root2);
+	}
 
-			int	root1 = _xtree1.getRoot();
-			int	root2 = _xtree2.getRoot();
+	/**
+	  * Write out the diff result as an edit script.
+	  * @param	delta	the writer of the script, in its format
+	  */
+	void writeDelta(XDelta delta) throws IOException
+	{
+		int	root1 = _xtree1.getRoot();
+		int	root2 = _xtree2.getRoot();
 
-			// XXX <root > is as valid as <root>,
-			// but < root> is NOT!
-			String	rootTag = "<" + _xtree1.getTag(root1);
-			String	line = br.readLine();
-			while (line != null)
-			{
-				if (line.indexOf(rootTag) >= 0)
-					break;
-				out.write(line + "\n");
-				line = br.readLine();
-			}
+		delta.start(_options.getHashAlgorithm(),
+			    _options.getOrderedTags(), _xtree2.getProlog(),
+			    _xtree1.getHashValue(root1),
+			    _xtree2.getHashValue(root2));
+		_path = new int[16];
+		_path[0] = 0;
+		if (_moves1 != null)
+			_position2 = new int[_xtree2.getNodeCount()];
+		_getMatching(_matching1, root1, _matchp);
+		if (_matchp[0] == XTree.DELETE)
+		{
+			delta.delete(_path, 1);
+			delta.insert(_path, 0, 0, _xtree2, root2);
+		}
+		else if (_matchp[0] == XTree.CHANGE)
+			writeDeltaNode(delta, root1, root2, 1);
+		delta.finish();
+	}
+
+	/**
+	  * Write the changes to one node, whose path is the first
+	  * <code>depth</code> positions of <code>_path</code>.
+	  * @param	delta	the writer of the script
+	  * @param	node1	the node in the first tree
+	  * @param	node2	node1's conterpart in the second tree
+	  * @param	depth	the length of the path
+	  */
+	private void writeDeltaNode(XDelta delta, int node1, int node2,
+				    int depth) throws IOException
+	{
+		if (!_xtree1.isElement(node1))
+		{
+			delta.update(_path, depth, _xtree1.getText(node1),
+				     _xtree2.getText(node2));
+			return;
+		}
 
-			_xtree1.getMatching(root1, _matchp);
+		int	attr1 = _xtree1.getFirstAttribute(node1);
+		while (attr1 > 0)
+		{
+			_getMatching(_matching1, attr1, _matchp);
 			if (_matchp[0] == XTree.DELETE)
-			{
-				writeDeleteNode(out, root1);
-				writeInsertNode(out, root2);
-			}
-			else
-				writeDiffNode(out, root1, root2);
+				delta.deleteAttribute(_path, depth,
+					_xtree1.getTag(attr1),
+					_xtree1.getAttributeValue(attr1));
+			else if (_matchp[0] != XTree.MATCH)
+				delta.updateAttribute(_path, depth,
+					_xtree1.getTag(attr1),
+					_xtree1.getAttributeValue(attr1),
+					_xtree2.getAttributeValue(_matchp[1]));
 
-			out.close();
+			attr1 = _xtree1.getNextAttribute(attr1);
 		}
-		catch (IOException ioe)
+
+		int	attr2 = _xtree2.getFirstAttribute(node2);
+		while (attr2 > 0)
 		{
-			System.err.println(ioe.getMessage());
+			_getMatching(_matching2, attr2, _matchp);
+			if (_matchp[0] == XTree.INSERT)
+				delta.insertAttribute(_path, depth,
+					_xtree2.getTag(attr2),
+					_xtree2.getAttributeValue(attr2));
+
+			attr2 = _xtree2.getNextAttribute(attr2);
+		}
+
+		if (depth == _path.length)
+		{
+			int	path[] = new int[2 * depth];
+			System.arraycopy(_path, 0, path, 0, depth);
+			_path = path;
+		}
+
+		if (_position2 != null)
+			_numberChildren(node2);
+
+		int	index = 0;
+		int	child1 = _xtree1.getFirstChild(node1);
+		while (child1 > 0)
+		{
+			_path[depth] = index++;
+			_getMatching(_matching1, child1, _matchp);
+			if (_matchp[0] == XTree.DELETE)
+				delta.delete(_path, depth + 1);
+			else if (_matchp[0] != XTree.MATCH)
+				writeDeltaNode(delta, child1, _matchp[1],
+					       depth + 1);
+			else if ((_moves1 != null) && (_moves1[child1] > 0))
+				delta.move(_path, depth + 1,
+					   _position2[_moves1[child1] - 1]);
+
+			child1 = _xtree1.getNextSibling(child1);
+		}
+
+		index = 0;
+		int	child2 = _xtree2.getFirstChild(node2);
+		while (child2 > 0)
+		{
+			_getMatching(_matching2, child2, _matchp);
+			if (_matchp[0] == XTree.INSERT)
+				delta.insert(_path, depth, index, _xtree2, child2);
+
+			index++;
+			child2 = _xtree2.getNextSibling(child2);
+		}
+	}
+
+	/**
+	  * Count the edits of the edit script, as writeDelta writes them,
+	  * and their cost in the cost model of the distances: a subtree is
+	  * deleted or inserted for its # of nodes, an attribute for 2, and
+	  * a text, an attribute value or a move for 1.
+	  * @param	counts	the cost and the # of edits, output
+	  */
+	void countEdits(int counts[])
+	{
+		int	root1 = _xtree1.getRoot();
+		int	root2 = _xtree2.getRoot();
+
+		counts[0] = 0;
+		counts[1] = 0;
+		_getMatching(_matching1, root1, _matchp);
+		if (_matchp[0] == XTree.DELETE)
+		{
+			_countEdit(counts, _xtree1.getDecendentsCount(root1) + 1);
+			_countEdit(counts, _xtree2.getDecendentsCount(root2) + 1);
+		}
+		else if (_matchp[0] == XTree.CHANGE)
+			_countNodeEdits(counts, root1, root2);
+	}
+
+	// Count the edits of one node, as writeDeltaNode writes them.
+	private void _countNodeEdits(int counts[], int node1, int node2)
+	{
+		if (!_xtree1.isElement(node1))
+		{
+			_countEdit(counts, 1);
+			return;
+		}
+
+		int	attr1 = _xtree1.getFirstAttribute(node1);
+		while (attr1 > 0)
+		{
+			_getMatching(_matching1, attr1, _matchp);
+			if (_matchp[0] == XTree.DELETE)
+				_countEdit(counts, 2);
+			else if (_matchp[0] != XTree.MATCH)
+				_countEdit(counts, 1);
+
+			attr1 = _xtree1.getNextAttribute(attr1);
+		}
+
+		int	attr2 = _xtree2.getFirstAttribute(node2);
+		while (attr2 > 0)
+		{
+			_getMatching(_matching2, attr2, _matchp);
+			if (_matchp[0] == XTree.INSERT)
+				_countEdit(counts, 2);
+
+			attr2 = _xtree2.getNextAttribute(attr2);
+		}
+
+		int	child1 = _xtree1.getFirstChild(node1);
+		while (child1 > 0)
+		{
+			_getMatching(_matching1, child1, _matchp);
+			if (_matchp[0] == XTree.DELETE)
+				_countEdit(counts,
+					   _xtree1.getDecendentsCount(child1) + 1);
+			else if (_matchp[0] != XTree.MATCH)
+				_countNodeEdits(counts, child1, _matchp[1]);
+			else if ((_moves1 != null) && (_moves1[child1] > 0))
+				_countEdit(counts, 1);
+
+			child1 = _xtree1.getNextSibling(child1);
+		}
+
+		int	child2 = _xtree2.getFirstChild(node2);
+		while (child2 > 0)
+		{
+			_getMatching(_matching2, child2, _matchp);
+			if (_matchp[0] == XTree.INSERT)
+				_countEdit(counts,
+					   _xtree2.getDecendentsCount(child2) + 1);
+
+			child2 = _xtree2.getNextSibling(child2);
+		}
+	}
+
+	private static void _countEdit(int counts[], int cost)
+	{
+		counts[0] += cost;
+		counts[1]++;
+	}
+
+	/**
+	  * Number the children of a node of tree #2, for the nodes moved
+	  * to them.
+	  * @param	node2	the node
+	  */
+	private void _numberChildren(int node2)
+	{
+		int	index = 0;
+		int	child2 = _xtree2.getFirstChild(node2);
+		while (child2 > 0)
+		{
+			_position2[child2] = index++;
+			child2 = _xtree2.getNextSibling(child2);
 		}
 	}
 
@@ -2088,35 +3843,31 @@ class XDiff
 	  * @param	out	output file writer
 	  * @param	node	element id
 	  */
-	private void writeDeleteNode(OutputStreamWriter out,
+	private void writeDeleteNode(Writer out,
 				     int node) throws IOException
 	{
 		if (_xtree1.isElement(node))
 		{
 			String	tag = _xtree1.getTag(node);
-			out.write("<" + tag);
-
-			// Attributes.
-			int	attr = _xtree1.getFirstAttribute(node);
-			while (attr > 0)
-			{
-				String	atag = _xtree1.getTag(attr);
-				String	value = _xtree1.getAttributeValue(attr);
-				out.write(" " + atag + "=\"" + value + "\"");
-				attr = _xtree1.getNextAttribute(attr);
-			}
+			out.write('<');
+			out.write(tag);
+			writeAttributes(out, _xtree1, node);
 
 			// Child nodes.
 			int	child = _xtree1.getFirstChild(node);
 
 			if (child < 0)
 			{
-				out.write("/><?DELETE " + tag + "?>\n");
+				out.write("/><?DELETE ");
+				out.write(tag);
+				out.write("?>\n");
 				_needNewLine = false;
 				return;
 			}
 
-			out.write("><?DELETE " + tag + "?>\n");
+			out.write("><?DELETE ");
+			out.write(tag);
+			out.write("?>\n");
 			_needNewLine = false;
 
 			while (child > 0)
@@ -2127,16 +3878,17 @@ class XDiff
 
 			if (_needNewLine)
 			{
-				out.write("\n");
+				out.write('\n');
 				_needNewLine = false;
 			}
 
-			out.write("</" + tag + ">\n");
+			writeEndTag(out, tag);
 		}
 		else
 		{
-			out.write("<?DELETE \"" + constructText(_xtree1, node) +
-				  "\"?>\n");
+			out.write("<?DELETE \"");
+			writeText(out, _xtree1, node);
+			out.write("\"?>\n");
 			_needNewLine = false;
 		}
 	}
@@ -2146,34 +3898,30 @@ class XDiff
 	  * @param	out	output file writer
 	  * @param	node	element id
 	  */
-	private void writeInsertNode(OutputStreamWriter out,
+	private void writeInsertNode(Writer out,
 				     int node) throws IOException
 	{
 		if (_xtree2.isElement(node))
 		{
 			String	tag = _xtree2.getTag(node);
-			out.write("<" + tag);
-
-			// Attributes.
-			int	attr = _xtree2.getFirstAttribute(node);
-			while (attr > 0)
-			{
-				String	atag = _xtree2.getTag(attr);
-				String	value = _xtree2.getAttributeValue(attr);
-				out.write(" " + atag + "=\"" + value + "\"");
-				attr = _xtree2.getNextAttribute(attr);
-			}
+			out.write('<');
+			out.write(tag);
+			writeAttributes(out, _xtree2, node);
 
 			// Child nodes.
 			int	child = _xtree2.getFirstChild(node);
 			if (child < 0)
 			{
-				out.write("/><?INSERT " + tag + "?>\n");
+				out.write("/><?INSERT ");
+				out.write(tag);
+				out.write("?>\n");
 				_needNewLine = false;
 				return;
 			}
 
-			out.write("><?INSERT " + tag + "?>\n");
+			out.write("><?INSERT ");
+			out.write(tag);
+			out.write("?>\n");
 			_needNewLine = false;
 
 			while (child > 0)
@@ -2184,16 +3932,70 @@ class XDiff
 
 			if (_needNewLine)
 			{
-				out.write("\n");
+				out.write('\n');
+				_needNewLine = false;
+			}
+
+			writeEndTag(out, tag);
+		}
+		else
+		{
+			writeText(out, _xtree2, node);
+			out.write("<?INSERT?>\n");
+			_needNewLine = false;
+		}
+	}
+
+	/**
+	  * Write a node that has moved among ordered children, with the
+	  * position it has moved to.
+	  * @param	out	output file writer
+	  * @param	node	node id
+	  * @param	index	its position among the new children
+	  */
+	private void writeMoveNode(Writer out, int node,
+				   int index) throws IOException
+	{
+		if (_needNewLine)
+			out.write('\n');
+
+		if (_xtree1.isElement(node))
+		{
+			String	tag = _xtree1.getTag(node);
+			out.write('<');
+			out.write(tag);
+			writeAttributes(out, _xtree1, node);
+
+			// Child nodes.
+			int	child = _xtree1.getFirstChild(node);
+			if (child < 0)
+			{
+				out.write("/><?MOVE TO " + index + "?>\n");
+				_needNewLine = false;
+				return;
+			}
+
+			out.write("><?MOVE TO " + index + "?>\n");
+			_needNewLine = false;
+
+			while (child > 0)
+			{
+				writeMatchNode(out, _xtree1, child);
+				child = _xtree1.getNextSibling(child);
+			}
+
+			if (_needNewLine)
+			{
+				out.write('\n');
 				_needNewLine = false;
 			}
 
-			out.write("</" + tag + ">\n");
+			writeEndTag(out, tag);
 		}
 		else
 		{
-			out.write(constructText(_xtree2, node) +
-				  "<?INSERT?>\n");
+			writeText(out, _xtree1, node);
+			out.write("<?MOVE TO " + index + "?>\n");
 			_needNewLine = false;
 		}
 	}
@@ -2205,26 +4007,18 @@ class XDiff
 	  * @param	xtree	the document tree
 	  * @param	node	element id
 	  */
-	private void writeMatchNode(OutputStreamWriter out, XTree xtree,
+	private void writeMatchNode(Writer out, XTree xtree,
 				    int node) throws IOException
 	{
 		if (xtree.isElement(node))
 		{
 			String	tag = xtree.getTag(node);
 			if (_needNewLine)
-				out.write("\n");
+				out.write('\n');
 
-			out.write("<" + tag);
-
-			// Attributes.
-			int	attr = xtree.getFirstAttribute(node);
-			while (attr > 0)
-			{
-				String	atag = xtree.getTag(attr);
-				String	value = xtree.getAttributeValue(attr);
-				out.write(" " + atag + "=\"" + value + "\"");
-				attr = xtree.getNextAttribute(attr);
-			}
+			out.write('<');
+			out.write(tag);
+			writeAttributes(out, xtree, node);
 
 			// Child nodes.
 			int	child = xtree.getFirstChild(node);
@@ -2235,7 +4029,7 @@ class XDiff
 				return;
 			}
 
-			out.write(">");
+			out.write('>');
 			_needNewLine = true;
 
 			while (child > 0)
@@ -2246,15 +4040,15 @@ class XDiff
 
 			if (_needNewLine)
 			{
-				out.write("\n");
+				out.write('\n');
 				_needNewLine = false;
 			}
 
-			out.write("</" + tag + ">\n");
+			writeEndTag(out, tag);
 		}
 		else
 		{
-			out.write(constructText(xtree, node));
+			writeText(out, xtree, node);
 			_needNewLine = false;
 		}
 	}
@@ -2265,40 +4059,41 @@ class XDiff
 	  * @param	node1	the node in the first tree
 	  * @param	node2	node1's conterpart in the second tree
 	  */
-	private void writeDiffNode(OutputStreamWriter out, int node1,
+	private void writeDiffNode(Writer out, int node1,
 				   int node2) throws IOException
 	{
 		if (_xtree1.isElement(node1))
 		{
 			String	tag = _xtree1.getTag(node1);
 			if (_needNewLine)
-				out.write("\n");
-			out.write("<" + tag);
+				out.write('\n');
+			out.write('<');
+			out.write(tag);
 
-			// Attributes.
+			// Attributes, and the changes to them, which are written
+			// once the start tag is.
 			int	attr1 = _xtree1.getFirstAttribute(node1);
-			String	diffff = "";
+			_annotation.setLength(0);
 			while (attr1 > 0)
 			{
 				String	atag = _xtree1.getTag(attr1);
 				String	value = _xtree1.getAttributeValue(attr1);
-				_xtree1.getMatching(attr1, _matchp);
+				_getMatching(_matching1, attr1, _matchp);
 				if (_matchp[0] == XTree.MATCH)
-					out.write(" " + atag + "=\"" +
-						  value + "\"");
+					writeAttribute(out, atag, value);
 				else if (_matchp[0] == XTree.DELETE)
 				{
-					out.write(" " + atag + "=\"" +
-						  value + "\"");
-					diffff += "<?DELETE " + atag + "?>";
+					writeAttribute(out, atag, value);
+					_annotation.append("<?DELETE ").append(atag)
+						   .append("?>");
 				}
 				else
 				{
 					String	value2 = _xtree2.getAttributeValue(_matchp[1]);
-					out.write(" " + atag + "=\"" +
-						  value2 + "\"");
-					diffff += "<?UPDATE " + atag +
-						  " FROM \"" + value + "\"?>";
+					writeAttribute(out, atag, value2);
+					_annotation.append("<?UPDATE ").append(atag)
+						   .append(" FROM \"").append(value)
+						   .append("\"?>");
 				}
 
 				attr1 = _xtree1.getNextAttribute(attr1);
@@ -2307,14 +4102,14 @@ class XDiff
 			int	attr2 = _xtree2.getFirstAttribute(node2);
 			while (attr2 > 0)
 			{
-				_xtree2.getMatching(attr2, _matchp);
+				_getMatching(_matching2, attr2, _matchp);
 				if (_matchp[0] == XTree.INSERT)
 				{
 					String	atag = _xtree2.getTag(attr2);
 					String	value = _xtree2.getAttributeValue(attr2);
-					out.write(" " + atag + "=\"" +
-						  value + "\"");
-					diffff += "<?INSERT " + atag + "?>";
+					writeAttribute(out, atag, value);
+					_annotation.append("<?INSERT ").append(atag)
+						   .append("?>");
 				}
 
 				attr2 = _xtree2.getNextAttribute(attr2);
@@ -2324,31 +4119,73 @@ class XDiff
 			int	child1 = _xtree1.getFirstChild(node1);
 			if (child1 < 0)
 			{
-				out.write("/>" + diffff + "\n");
+				out.write("/>");
+				out.append(_annotation);
+				out.write('\n');
 				_needNewLine = false;
 				return;
 			}
 
-			out.write(">" + diffff);
+			out.write('>');
+			out.append(_annotation);
 			_needNewLine = true;
 
+			// Ordered children get the inserted ones in place: before
+			// the counterpart of each child kept in place, the
+			// inserted nodes that precede it.
+			boolean	ordered = (_moves1 != null) &&
+					  _options.isOrdered(tag);
+			if (ordered)
+				_numberChildren(node2);
+			int	child2 = _xtree2.getFirstChild(node2);
 			while (child1 > 0)
 			{
-				_xtree1.getMatching(child1, _matchp);
+				_getMatching(_matching1, child1, _matchp);
+				if (_matchp[0] == XTree.DELETE)
+				{
+					writeDeleteNode(out, child1);
+					child1 = _xtree1.getNextSibling(child1);
+					continue;
+				}
+				if (ordered && (_moves1[child1] > 0))
+				{
+					writeMoveNode(out, child1,
+						      _position2[_moves1[child1] - 1]);
+					child1 = _xtree1.getNextSibling(child1);
+					continue;
+				}
+
+				if (ordered)
+				{
+					int	match = _matchp[0];
+					int	partner = _matchp[1];
+					for (; child2 > 0; child2 = _xtree2.getNextSibling(child2))
+					{
+						_getMatching(_matching2, child2, _matchp);
+						if (_matchp[0] == XTree.INSERT)
+							writeInsertNode(out, child2);
+						else if (_moves2[child2] == 0)
+							break;
+					}
+					if (child2 > 0)
+						child2 = _xtree2.getNextSibling(child2);
+					_matchp[0] = match;
+					_matchp[1] = partner;
+				}
+
 				if (_matchp[0] == XTree.MATCH)
 					writeMatchNode(out, _xtree1, child1);
-				else if (_matchp[0] == XTree.DELETE)
-					writeDeleteNode(out, child1);
 				else
 					writeDiffNode(out, child1, _matchp[1]);
 
 				child1 = _xtree1.getNextSibling(child1);
 			}
 
-			int	child2 = _xtree2.getFirstChild(node2);
+			if (!ordered)
+				child2 = _xtree2.getFirstChild(node2);
 			while (child2 > 0)
 			{
-				_xtree2.getMatching(child2, _matchp);
+				_getMatching(_matching2, child2, _matchp);
 				if (_matchp[0] == XTree.INSERT)
 					writeInsertNode(out, child2);
 
@@ -2357,32 +4194,69 @@ class XDiff
 
 			if (_needNewLine)
 			{
-				out.write("\n");
+				out.write('\n');
 				_needNewLine = false;
 			}
 
-			out.write("</" + tag + ">\n");
+			writeEndTag(out, tag);
 		}
 		else
 		{
-			out.write(constructText(_xtree2, node2) +
-				  "<?UPDATE FROM \"" +
-				  constructText(_xtree1, node1) + "\"?>");
+			writeText(out, _xtree2, node2);
+			out.write("<?UPDATE FROM \"");
+			writeText(out, _xtree1, node1);
+			out.write("\"?>");
 			_needNewLine = false;
 		}
 	}
 
 	/**
-	  * Construct the text node -- to handle the possible CDATA sections.
+	  * Write the attributes of an element as they are.
 	  */
-	private String constructText(XTree xtree, int eid)
+	private static void writeAttributes(Writer out, XTree xtree,
+					    int node) throws IOException
+	{
+		int	attr = xtree.getFirstAttribute(node);
+		while (attr > 0)
+		{
+			writeAttribute(out, xtree.getTag(attr),
+				       xtree.getAttributeValue(attr));
+			attr = xtree.getNextAttribute(attr);
+		}
+	}
+
+	private static void writeAttribute(Writer out, String name,
+					   String value) throws IOException
+	{
+		out.write(' ');
+		out.write(name);
+		out.write("=\"");
+		out.write(value);
+		out.write('"');
+	}
+
+	private static void writeEndTag(Writer out,
+					String tag) throws IOException
+	{
+		out.write("</");
+		out.write(tag);
+		out.write(">\n");
+	}
+
+	/**
+	  * Write a text node -- to handle the possible CDATA sections.
+	  */
+	private static void writeText(Writer out, XTree xtree,
+				      int eid) throws IOException
 	{
 		String	text = xtree.getText(eid);
 		Vector	cdatalist = xtree.getCDATA(eid);
 		if (cdatalist == null)
-			return text;
+		{
+			out.write(text);
+			return;
+		}
 
-		StringBuffer	buf = new StringBuffer();
 		int		count = cdatalist.size();
 		int		lastEnd = 0;
 		for (int i = 0; i < count; i += 2)
@@ -2393,78 +4267,377 @@ class XDiff
 				((Integer)cdatalist.elementAt(i+1)).intValue();
 
 			if (cdataStart > lastEnd)
-				buf.append(text.substring(lastEnd, cdataStart));
-			buf.append("<![CDATA[" +
-				   text.substring(cdataStart, cdataEnd) +
-				   "]]>");
+				out.write(text, lastEnd, cdataStart - lastEnd);
+			out.write("<![CDATA[");
+			out.write(text, cdataStart, cdataEnd - cdataStart);
+			out.write("]]>");
 			lastEnd = cdataEnd;
 		}
 		if (lastEnd < text.length())
-			buf.append(text.substring(lastEnd));
-
-		return buf.toString();
+			out.write(text, lastEnd, text.length() - lastEnd);
 	}
 
 	public static void main(String args[])
 	{
 		Vector	parameters = new Vector();
-		if (!readParameters(args, parameters))
+		if ((args.length > 0) && args[0].equals("-s"))
+		{
+			String	rest[] = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			XOptions	options = readParameters(rest, 2, parameters);
+			if (options == null)
+				System.err.println(_usage);
+			else
+				writeSnapshot(options,
+					      (String)parameters.elementAt(0),
+					      (String)parameters.elementAt(1));
+			return;
+		}
+
+		XOptions	options = readParameters(args, 3, parameters);
+		if (options == null)
 		{
 			System.err.println(_usage);
 			return;
 		}
 
-		XDiff	mydiff = new XDiff((String)parameters.elementAt(0),
-					   (String)parameters.elementAt(1),
-					   (String)parameters.elementAt(2));
+		try
+		{
+			run(options, (String)parameters.elementAt(0),
+			    (String)parameters.elementAt(1),
+			    (String)parameters.elementAt(2));
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+		}
 	}
 
-	private static boolean readParameters(String args[], Vector parameters)
+	/**
+	  * Diff two input files and write the result, as the command does.
+	  * @param	options		the options
+	  * @param	input1		input file #1
+	  * @param	input2		input file #2
+	  * @param	output		output file
+	  */
+	private static void run(XOptions options, String input1,
+				String input2, String output) throws IOException
 	{
-		int	opid = 0;
-		if (args.length < 3)
-			return false;
-		else if (args[0].equals("-o"))
+		// Parse input files, input1 in a thread of its own while this
+		// thread takes care of input2, given more than one processor.
+		long	t0 = System.currentTimeMillis();
+		final String	file1 = input1;
+		final XOptions	options1 = options;
+		final long	parse1[] = new long[1];
+		FutureTask	task1 = new FutureTask(new Callable()
+		{
+			public Object call() throws IOException
+			{
+				System.out.println("Parsing input1");
+				XTree	xtree = readTree(file1, options1);
+				parse1[0] = System.currentTimeMillis();
+				return xtree;
+			}
+		});
+		if (Runtime.getRuntime().availableProcessors() > 1)
+			new Thread(task1, "XDiff parser").start();
+		else
+			task1.run();
+		long	start2 = System.currentTimeMillis();
+		XTree	xtree2 = null;
+		try
+		{
+			System.out.println("Parsing input2");
+			xtree2 = readTree(input2, options);
+		}
+		finally
+		{
+			// Failed: input1 may still be parsing.
+			if (xtree2 == null)
+				_closeTree(task1);
+		}
+		long	parse2 = System.currentTimeMillis() - start2;
+		XTree	xtree1;
+		try
+		{
+			xtree1 = (XTree)task1.get();
+		}
+		catch (ExecutionException ee)
+		{
+			xtree2.close();
+			if (ee.getCause() instanceof IOException)
+				throw (IOException)ee.getCause();
+			throw new IOException(ee.getCause().getMessage(), ee);
+		}
+		catch (InterruptedException ie)
+		{
+			xtree2.close();
+			throw new IOException(ie.getMessage(), ie);
+		}
+
+		long	t1 = parse1[0];
+		try
 		{
-			_oFlag = true;
-			opid++;
+			long	t2 = System.currentTimeMillis();
+
+			int	root1 = xtree1.getRoot();
+			int	root2 = xtree2.getRoot();
+			XResult	result = new XDiff(options).diff(xtree1, xtree2);
+			if (!result.isDifferent())
+			{
+				System.out.println("No difference!");
+				System.out.println("Execution time: " + (t2 - t0) + " ms");
+				System.out.println("Parsing " + input1 + ": " +
+						   (t1 - t0) + " ms");
+				System.out.println("Parsing " + input2 + ": " + parse2 + " ms");
+				return;
+			}
+
+			if (xtree1.getTag(root1).compareTo(xtree2.getTag(root2)) != 0)
+				System.out.println("The root is changed!");
+			long	t3 = System.currentTimeMillis();
+			result.write(output);
+			long	t4 = System.currentTimeMillis();
+
+			System.out.println("Difference detected!");
+			if (result.isDegraded())
+				System.out.println("Budget exhausted: " +
+						   result.getDegradedNodes().size() +
+						   " subtrees not diffed minimally");
+			System.out.println("Execution time: " + (t4 - t0) + " ms");
+			System.out.println("Parsing " + input1 + ": " + (t1 - t0) + " ms");
+			System.out.println("Parsing " + input2 + ": " + parse2 + " ms");
+			System.out.println("Diffing: " + (t3 - t2) + " ms");
+			System.out.println("Writing result: " + (t4 - t3) + " ms");
 		}
-		else if (args[0].equals("-g"))
+		finally
 		{
-			_gFlag = true;
-			opid++;
+			xtree1.close();
+			xtree2.close();
 		}
+	}
 
-		if (args[opid].equals("-p"))
+	// Wait for the tree of a parse, and close it.
+	private static void _closeTree(FutureTask task)
+	{
+		try
+		{
+			((XTree)task.get()).close();
+		}
+		catch (Exception e)
 		{
-			opid++;
-			double	p = 0;
+			// The parse failed: no tree.
+		}
+	}
+
+	/**
+	  * Parse an XML document and save its tree as a snapshot, which
+	  * can then be given instead of the document, to a diff with the
+	  * same hash function and ordered tags.
+	  * @param	options	the options the tree is hashed with
+	  * @param	input	XML document
+	  * @param	snapshot	snapshot file
+	  */
+	private static void writeSnapshot(XOptions options, String input,
+					  String snapshot)
+	{
+		try
+		{
+			XTree	xtree = new XParser(options).parse(input);
 			try
 			{
-				p = Double.valueOf(args[opid++]).doubleValue();
+				xtree.save(snapshot);
 			}
-			catch (NumberFormatException nfe)
+			finally
 			{
-				return false;
+				xtree.close();
 			}
-
-			if ((p <= 0) || (p > 1))
-				return false;
-			_NO_MATCH_THRESHOLD = p;
 		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	  * Read the options and the files of a command line.  The options
+	  * may come in any order, before the files.
+	  * @param	args	the command line
+	  * @param	fileCount	# of files after the options
+	  * @param	parameters	the files, output
+	  * @return	the options, or null if the command line is wrong
+	  */
+	static XOptions readParameters(String args[], int fileCount,
+				       Vector parameters)
+	{
+		XOptions	options = new XOptions();
+		int	opid = 0;
+		int	end = args.length - fileCount;
+		if (end < 0)
+			return null;
 
-		if (args[opid].equals("-e"))
+		int	threads = options.getParallelism();
+		int	cutoff = options.getParallelCutoff();
+		long	millis = 0, cells = 0;
+		try
 		{
-			opid++;
-			_encoding = args[opid++];
+			while (opid < end)
+			{
+				if (_isOption(args, opid, end, "-o", 0))
+				{
+					opid++;
+					options = options.withMode(XOptions.OPTIMAL);
+				}
+				else if (_isOption(args, opid, end, "-g", 0))
+				{
+					opid++;
+					options = options.withMode(XOptions.GREEDY);
+				}
+				else if (_isOption(args, opid, end, "-p", 1))
+				{
+					opid++;
+					double	p = Double.valueOf(args[opid++]).doubleValue();
+					if ((p <= 0) || (p > 1))
+						return null;
+					options = options.withNoMatchThreshold(p);
+				}
+				else if (_isOption(args, opid, end, "-e", 1))
+				{
+					opid++;
+					options = options.withEncoding(args[opid++]);
+				}
+				else if (_isOption(args, opid, end, "-m", 1))
+				{
+					opid++;
+					String	engine = args[opid++];
+					if (engine.equals("hungarian"))
+						options = options.withMatchEngine(XOptions.HUNGARIAN);
+					else if (engine.equals("ncc"))
+						options = options.withMatchEngine(XOptions.NCC);
+					else
+						return null;
+				}
+				else if (_isOption(args, opid, end, "-j", 1))
+				{
+					opid++;
+					threads = Integer.parseInt(args[opid++]);
+					if (threads < 1)
+						return null;
+				}
+				else if (_isOption(args, opid, end, "-c", 1))
+				{
+					opid++;
+					cutoff = Integer.parseInt(args[opid++]);
+				}
+				else if (_isOption(args, opid, end, "-a", 1))
+				{
+					opid++;
+					String	hash = args[opid++];
+					if (hash.equals("fast"))
+						options = options.withHashAlgorithm(XHash.FAST);
+					else if (hash.equals("des"))
+						options = options.withHashAlgorithm(XHash.DES);
+					else
+						return null;
+				}
+				else if (_isOption(args, opid, end, "-l", 0))
+				{
+					opid++;
+					options = options.withMappedText(true);
+				}
+				else if (_isOption(args, opid, end, "-d", 0))
+				{
+					opid++;
+					options = options.withDirectColumns(true);
+				}
+				else if (_isOption(args, opid, end, "-i", 0))
+				{
+					opid++;
+					options = options.withSubtreeIndex(true);
+				}
+				else if (_isOption(args, opid, end, "-k", 1))
+				{
+					opid++;
+					String	keys[] = args[opid++].split(",");
+					for (int i = 0; i < keys.length; i++)
+					{
+						int	at = keys[i].indexOf('@');
+						if ((at < 0) || (at == keys[i].length() - 1))
+							return null;
+						options = options.withKey(
+							(at == 0) ? null : keys[i].substring(0, at),
+							keys[i].substring(at + 1));
+					}
+				}
+				else if (_isOption(args, opid, end, "-r", 1))
+				{
+					opid++;
+					options = options.withOrderedTags(args[opid++]);
+				}
+				else if (_isOption(args, opid, end, "-seed", 1))
+				{
+					opid++;
+					options = options.withSeed(Long.parseLong(args[opid++]));
+				}
+				else if (_isOption(args, opid, end, "-n", 1))
+				{
+					opid++;
+					int	samples = Integer.parseInt(args[opid++]);
+					if (samples < 1)
+						return null;
+					options = options.withSampleCount(samples);
+				}
+				else if (_isOption(args, opid, end, "-t", 1))
+				{
+					opid++;
+					millis = Long.parseLong(args[opid++]);
+				}
+				else if (_isOption(args, opid, end, "-b", 1))
+				{
+					opid++;
+					cells = Long.parseLong(args[opid++]);
+				}
+				else if (_isOption(args, opid, end, "-f", 1))
+				{
+					opid++;
+					String	format = args[opid++];
+					if (format.equals("xml"))
+						options = options.withFormat(XOptions.XML);
+					else if (format.equals("json"))
+						options = options.withFormat(XOptions.JSON);
+					else if (format.equals("binary"))
+						options = options.withFormat(XOptions.BINARY);
+					else
+						return null;
+				}
+				else
+					return null;
+			}
+
+			if ((millis < 0) || (cells < 0))
+				return null;
+			options = options.withParallelism(threads, cutoff);
+			options = options.withBudget(millis, cells);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// Including NumberFormatException.
+			return null;
 		}
 
-		if ((args.length - opid) != 3)
-			return false;
-		parameters.add(args[opid++]);
-		parameters.add(args[opid++]);
-		parameters.add(args[opid]);
+		while (opid < args.length)
+			parameters.add(args[opid++]);
 
-		return true;
+		return options;
+	}
+
+	// Check if an option comes next, followed by the # of values it
+	// takes before the files, so that a value is never read past them.
+	private static boolean _isOption(String args[], int opid, int end,
+					 String option, int values)
+	{
+		return (opid + values < end) && args[opid].equals(option);
 	}
 }
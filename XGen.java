@@ -0,0 +1,455 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+  * <code>XGen</code> makes pairs of documents to test and time X-Diff
+  * with: a base document of a chosen shape, and a copy changed by an edit
+  * script of a chosen mix of inserts, deletes, updates, moves and
+  * attribute changes.  The script and its cost are printed.
+  *
+  * Edits never touch the same subtree twice, so the cost of the script
+  * is the sum of the costs of its edits, in the cost model of X-Diff:
+  * a subtree is inserted or deleted for its # of nodes (an attribute is
+  * two nodes, its name and its value), a text or an attribute value is
+  * updated for 1, and a move, which X-Diff has no operation for, is a
+  * delete and an insert.  It bounds the minimum editing distance, which
+  * it usually is when edits are sparse.
+  */
+class XGen
+{
+	private static String	_usage = "java XGen [-seed seed] [-f fanout] [-d depth] [-a attributes] [-t text] [-e inserts deletes updates moves attributes] base_file changed_file\nOptions:\n  -seed\tThe seed of the random choices. Default value: 0.\n  -f\tThe mean # of children of an element. Default value: 4.\n  -d\tThe # of levels below the root. Default value: 4.\n  -a\tThe # of attributes of an element. Default value: 1.\n  -t\tThe mean length of a text leaf. Default value: 16.\n  -e\tThe # of edits of each kind. Default value: 2 2 4 1 2.";
+
+	// Kinds of edits.
+	private static final int	_INSERT = 0;
+	private static final int	_DELETE = 1;
+	private static final int	_UPDATE = 2;
+	private static final int	_MOVE = 3;
+	private static final int	_ATTRIBUTE = 4;
+	private static final int	_KINDS = 5;
+	private static final String	_KIND_NAMES[] =
+		{"insert", "delete", "update", "move", "attribute"};
+
+	// Tries to find the node of an edit among the nodes not edited yet.
+	private static final int	_TRIES = 1000;
+
+	private Random	_random;
+	private int	_fanout, _depth, _attributes, _text;
+	private Node	_base, _changed;
+	// The nodes of the changed copy, all of them from the base.
+	private Vector	_nodes;
+	private int	_cost;
+
+	/**
+	  * <code>Node</code> is an element of a generated document, with its
+	  * attributes and either children or a text leaf.
+	  */
+	private static class Node
+	{
+		String	_tag;
+		String	_names[], _values[];
+		String	_text;
+		Vector	_children = new Vector();
+		Node	_parent;
+		int	_level;
+		String	_path;		// in the base document
+		// An edit touched this subtree, or one below.
+		boolean	_touched;
+		int	_touchedBelow;
+
+		// Copy a subtree, with the same paths.
+		Node copy(Node parent)
+		{
+			Node	node = new Node();
+			node._tag = _tag;
+			node._names = _names;
+			node._values = (String[])_values.clone();
+			node._text = _text;
+			node._parent = parent;
+			node._level = _level;
+			node._path = _path;
+			for (int i = 0; i < _children.size(); i++)
+				node._children.addElement(((Node)_children.elementAt(i)).copy(node));
+			return node;
+		}
+
+		// The # of nodes of the subtree, as X-Diff counts them.
+		int size()
+		{
+			int	size = 1 + 2 * _names.length + ((_text != null) ? 1 : 0);
+			for (int i = 0; i < _children.size(); i++)
+				size += ((Node)_children.elementAt(i)).size();
+			return size;
+		}
+	}
+
+	/**
+	  * Constructor
+	  * @param	seed		the seed of the random choices
+	  * @param	fanout		the mean # of children of an element
+	  * @param	depth		the # of levels below the root
+	  * @param	attributes	the # of attributes of an element
+	  * @param	text		the mean length of a text leaf
+	  */
+	public XGen(long seed, int fanout, int depth, int attributes, int text)
+	{
+		_random = new Random(seed);
+		_fanout = fanout;
+		_depth = depth;
+		_attributes = attributes;
+		_text = text;
+		_base = _makeNode(null, 0, "/e0");
+		_changed = _base.copy(null);
+		_nodes = new Vector();
+		_collect(_changed);
+	}
+
+	/**
+	  * Apply edits to the changed copy, and print them.
+	  * @param	counts	the # of edits of each kind
+	  * @param	out	where the script is printed
+	  */
+	public void edit(int counts[], Writer out) throws IOException
+	{
+		int	left[] = (int[])counts.clone();
+		int	total = 0;
+		for (int k = 0; k < _KINDS; k++)
+			total += left[k];
+
+		// Mix the kinds, in a random order.
+		for (; total > 0; total--)
+		{
+			int	pick = _random.nextInt(total);
+			int	kind = 0;
+			while (pick >= left[kind])
+				pick -= left[kind++];
+			left[kind]--;
+
+			String	edit = _edit(kind);
+			if (edit == null)
+				out.write("# no room left for a " +
+					  _KIND_NAMES[kind] + "\n");
+			else
+				out.write(edit + "\n");
+		}
+		out.write("cost " + _cost + "\n");
+	}
+
+	/**
+	  * Get the cost of the edits made so far.
+	  */
+	public int getCost()
+	{
+		return _cost;
+	}
+
+	/**
+	  * Write the base document.
+	  * @param	output	output file
+	  */
+	public void writeBase(String output) throws IOException
+	{
+		_write(_base, output);
+	}
+
+	/**
+	  * Write the changed document.
+	  * @param	output	output file
+	  */
+	public void writeChanged(String output) throws IOException
+	{
+		_write(_changed, output);
+	}
+
+	// Make a random subtree.
+	private Node _makeNode(Node parent, int level, String path)
+	{
+		Node	node = new Node();
+		node._tag = "e" + level;
+		node._parent = parent;
+		node._level = level;
+		node._path = path;
+		node._names = new String[_attributes];
+		node._values = new String[_attributes];
+		for (int i = 0; i < _attributes; i++)
+		{
+			node._names[i] = "a" + i;
+			node._values[i] = _makeText(8);
+		}
+
+		if (level == _depth)
+			node._text = _makeText(1 + _random.nextInt(2 * _text));
+		else
+		{
+			int	count = 1 + _random.nextInt(2 * _fanout - 1);
+			String	tag = "e" + (level + 1);
+			for (int i = 0; i < count; i++)
+				node._children.addElement(_makeNode(node, level + 1,
+					path + "/" + tag + "[" + (i + 1) + "]"));
+		}
+
+		return node;
+	}
+
+	private String _makeText(int length)
+	{
+		char	text[] = new char[length];
+		for (int i = 0; i < length; i++)
+			text[i] = (char)('a' + _random.nextInt(26));
+		return new String(text);
+	}
+
+	private void _collect(Node node)
+	{
+		_nodes.addElement(node);
+		for (int i = 0; i < node._children.size(); i++)
+			_collect((Node)node._children.elementAt(i));
+	}
+
+	/**
+	  * Make an edit of a kind on nodes that no edit touched yet.
+	  * @param	kind	the kind of edit
+	  * @return	the edit, or null if no node is left for it
+	  */
+	private String _edit(int kind)
+	{
+		for (int t = 0; t < _TRIES; t++)
+		{
+			Node	node = (Node)_nodes.elementAt(_random.nextInt(_nodes.size()));
+			if (!_isFree(node))
+				continue;
+
+			switch (kind)
+			{
+			case _INSERT:
+				if (node._level == _depth)
+					continue;
+				Node	child = _makeNode(node, node._level + 1, null);
+				_insert(node, child);
+				_cost += child.size();
+				return "insert " + node._path + " " + child.size();
+
+			case _DELETE:
+				if (node._parent == null)
+					continue;
+				_remove(node);
+				_cost += node.size();
+				return "delete " + node._path + " " + node.size();
+
+			case _UPDATE:
+				if (node._text == null)
+					continue;
+				node._text = _makeText(1 + _random.nextInt(2 * _text));
+				_touch(node);
+				_cost++;
+				return "update " + node._path;
+
+			case _MOVE:
+				if (node._parent == null)
+					continue;
+				Node	parent = _findParent(node);
+				if (parent == null)
+					continue;
+				_remove(node);
+				_insert(parent, node);
+				_cost += 2 * node.size();
+				return "move " + node._path + " " + parent._path +
+				       " " + node.size();
+
+			case _ATTRIBUTE:
+				if (node._names.length == 0)
+					continue;
+				int	i = _random.nextInt(node._names.length);
+				node._values[i] = _makeText(8);
+				_touch(node);
+				_cost++;
+				return "attribute " + node._path + " @" + node._names[i];
+			}
+		}
+
+		return null;
+	}
+
+	// Find a free parent, other than its own, for a moved node.
+	private Node _findParent(Node node)
+	{
+		for (int t = 0; t < _TRIES; t++)
+		{
+			Node	parent = (Node)_nodes.elementAt(_random.nextInt(_nodes.size()));
+			if ((parent._level == node._level - 1) &&
+			    (parent != node._parent) && _isFree(parent))
+				return parent;
+		}
+		return null;
+	}
+
+	// Check if neither the subtree, nor one of its ancestors, is touched.
+	private boolean _isFree(Node node)
+	{
+		if (node._touchedBelow > 0)
+			return false;
+		for (Node n = node; n != null; n = n._parent)
+			if (n._touched)
+				return false;
+		return true;
+	}
+
+	private void _touch(Node node)
+	{
+		node._touched = true;
+		for (Node n = node._parent; n != null; n = n._parent)
+			n._touchedBelow++;
+	}
+
+	private void _insert(Node parent, Node child)
+	{
+		parent._children.insertElementAt(child,
+			_random.nextInt(parent._children.size() + 1));
+		child._parent = parent;
+		_touch(child);
+	}
+
+	private void _remove(Node node)
+	{
+		node._parent._children.removeElement(node);
+		for (Node n = node._parent; n != null; n = n._parent)
+			n._touchedBelow++;
+		node._touched = true;
+	}
+
+	private static void _write(Node root, String output) throws IOException
+	{
+		Writer	out = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(output), "UTF8"));
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		_write(root, out);
+		out.write("\n");
+		out.close();
+	}
+
+	private static void _write(Node node, Writer out) throws IOException
+	{
+		out.write("<" + node._tag);
+		for (int i = 0; i < node._names.length; i++)
+			out.write(" " + node._names[i] + "=\"" + node._values[i] + "\"");
+		out.write(">");
+		if (node._text != null)
+			out.write(node._text);
+		for (int i = 0; i < node._children.size(); i++)
+			_write((Node)node._children.elementAt(i), out);
+		out.write("</" + node._tag + ">");
+	}
+
+	public static void main(String args[])
+	{
+		long	seed = 0;
+		int	fanout = 4, depth = 4, attributes = 1, text = 16;
+		int	counts[] = {2, 2, 4, 1, 2};
+		int	opid = 0;
+		try
+		{
+			if ((args.length > opid + 1) && args[opid].equals("-seed"))
+			{
+				seed = Long.parseLong(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + 1) && args[opid].equals("-f"))
+			{
+				fanout = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + 1) && args[opid].equals("-d"))
+			{
+				depth = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + 1) && args[opid].equals("-a"))
+			{
+				attributes = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + 1) && args[opid].equals("-t"))
+			{
+				text = Integer.parseInt(args[opid + 1]);
+				opid += 2;
+			}
+			if ((args.length > opid + _KINDS) && args[opid].equals("-e"))
+			{
+				for (int k = 0; k < _KINDS; k++)
+					counts[k] = Integer.parseInt(args[opid + 1 + k]);
+				opid += 1 + _KINDS;
+			}
+		}
+		catch (NumberFormatException nfe)
+		{
+			System.err.println(_usage);
+			return;
+		}
+		boolean	valid = (args.length == opid + 2) && (fanout >= 1) &&
+				(depth >= 0) && (attributes >= 0) && (text >= 1);
+		for (int k = 0; k < _KINDS; k++)
+			valid = valid && (counts[k] >= 0);
+		if (!valid)
+		{
+			System.err.println(_usage);
+			return;
+		}
+
+		try
+		{
+			XGen	gen = new XGen(seed, fanout, depth, attributes, text);
+			Writer	out = new OutputStreamWriter(System.out);
+			gen.edit(counts, out);
+			out.flush();
+			gen.writeBase(args[opid]);
+			gen.writeChanged(args[opid + 1]);
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -37,10 +37,23 @@
 
 
 /**
-  * <code>XHash</code> is an implementaion of DES
+  * <code>XHash</code> hashes the names and values of a document.
+  * Two hash functions are available: a fast 64-bit multiply-mix hash
+  * in the style of wyhash (the default), and the original one, which
+  * is an implementaion of DES and reproduces the results of earlier
+  * versions.
   */
 class XHash
 {
+	public static final int	FAST = 0;
+	public static final int	DES = 1;
+
+	// Constants of the fast hash.
+	private static final long	_P0 = 0xa0761d6478bd642fL;
+	private static final long	_P1 = 0xe7037ed1a0b428dbL;
+	private static final long	_P2 = 0x8ebc6af09c88c6e3L;
+	private static final long	_P3 = 0x589965cc75374cc3L;
+
 	private static final int	_initialPermutation[] =
 	{
  		57, 49, 41, 33 , 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3,
@@ -226,94 +239,186 @@ class XHash
 		}
 	};
 
-	private static long	_keys[];
-	private static char	_word[];
+	// The DES key.  It is fixed, as hash values are compared across
+	// diffs running at the same time and kept in snapshots.
+	private static final long	_KEY = 1007360890380L;
+	private static final long	_keys[] = makeKeys(_KEY);
 
-	private static long	_initialKey = 1007360890380L;
+	/**
+	  * Hash a string.
+	  * @param	word	the string
+	  * @param	algorithm	the hash function, FAST or DES
+	  * @return	the hash value
+	  */
+	public static long hash(String word, int algorithm)
+	{
+		int	len = word.length();
+		if (algorithm == FAST)
+			return _fastHash(word, len);
+
+		return _desHash(word.toCharArray(), 0, len);
+	}
 
 	/**
-	  * Initialization #1.
+	  * Hash a range of characters, e.g., as passed to a SAX handler.
+	  * Same as hashing the string of these characters.
+	  * @param	ch	the characters
+	  * @param	start	the start position in the array
+	  * @param	length	the number of characters
+	  * @param	algorithm	the hash function, FAST or DES
+	  * @return	the hash value
 	  */
-	public static void initialize()
+	public static long hash(char ch[], int start, int length,
+				int algorithm)
 	{
-		makeKeys(_initialKey);
-		_word = new char[64];
+		if (algorithm == FAST)
+			return _fastHash(ch, start, length);
+		else
+			return _desHash(ch, start, length);
 	}
 
 	/**
-	  * Initialization #2.
+	  * Add the hash value of a child to the value of the children before
+	  * it, for an element whose children are ordered: unlike a sum, the
+	  * result changes with the order of the children.  The value of one
+	  * child is its own.
+	  * @param	sequence	the value of the children before
+	  * @param	value		the hash value of the child
+	  * @return	the value of the children so far
 	  */
-	public static void initialize(long key)
+	public static long sequence(long sequence, long value)
 	{
-		makeKeys(key);
-		_word = new char[64];
+		return sequence * _P1 + value;
 	}
-	
-	public static long hash(String word)
+
+	/**
+	  * The DES hash of a range of characters, 64 characters at a time.
+	  */
+	private static long _desHash(char ch[], int start, int length)
 	{
-		int	len = word.length();
 		long	value = 0L;
-		for (int start = 0; start < len; start += 64)
+		for (int pos = 0; pos < length; pos += 64)
 		{
-			if (len - start > 64)
-				value += (_hash(word.substring(start, start + 64)) ^ 0xffffffffL);
-			else
-			{
-				value += (_hash(word.substring(start)) ^ 0xffffffffL);
-				break;
-			}
+			int	count = Math.min(64, length - pos);
+			value += (_hash(_keys, ch, start + pos, count) ^ 0xffffffffL);
 		}
 		return value;
 	}
 
 	/**
-	  * The actual hash function.
+	  * The fast hash of a string: four characters make a 64-bit word,
+	  * two words are folded into the state by a 128-bit multiply.
 	  */
-	private static long _hash(String word)
+	private static long _fastHash(String word, int len)
 	{
-		int	len = word.length();
-		for (int i = 0; i < len; i++)
-			_word[i] = word.charAt(i);
-		int	round = len / 8;
-		int	rest = len % 8;
-		if (rest > 0)
+		long	h = _P0 ^ (len * _P1);
+		int	i = 0;
+		for (; len - i >= 8; i += 8)
 		{
-			for (int i = 0; i < 8 - rest; i++)
-				_word[len+i] = 0;
-			round++;
+			long	a = word.charAt(i) |
+				    ((long)word.charAt(i+1) << 16) |
+				    ((long)word.charAt(i+2) << 32) |
+				    ((long)word.charAt(i+3) << 48);
+			long	b = word.charAt(i+4) |
+				    ((long)word.charAt(i+5) << 16) |
+				    ((long)word.charAt(i+6) << 32) |
+				    ((long)word.charAt(i+7) << 48);
+			h = _mix(a ^ _P1, b ^ h);
 		}
 
+		long	a = 0L, b = 0L;
+		for (int k = 0; i < len; i++, k++)
+		{
+			if (k < 4)
+				a |= (long)word.charAt(i) << (k * 16);
+			else
+				b |= (long)word.charAt(i) << ((k - 4) * 16);
+		}
+		h = _mix(a ^ _P1, b ^ h);
+
+		return _mix(h ^ _P2, len ^ _P3);
+	}
+
+	/**
+	  * The fast hash of a range of characters.
+	  */
+	private static long _fastHash(char ch[], int start, int len)
+	{
+		long	h = _P0 ^ (len * _P1);
+		int	i = start;
+		int	end = start + len;
+		for (; end - i >= 8; i += 8)
+		{
+			long	a = ch[i] | ((long)ch[i+1] << 16) |
+				    ((long)ch[i+2] << 32) | ((long)ch[i+3] << 48);
+			long	b = ch[i+4] | ((long)ch[i+5] << 16) |
+				    ((long)ch[i+6] << 32) | ((long)ch[i+7] << 48);
+			h = _mix(a ^ _P1, b ^ h);
+		}
+
+		long	a = 0L, b = 0L;
+		for (int k = 0; i < end; i++, k++)
+		{
+			if (k < 4)
+				a |= (long)ch[i] << (k * 16);
+			else
+				b |= (long)ch[i] << ((k - 4) * 16);
+		}
+		h = _mix(a ^ _P1, b ^ h);
+
+		return _mix(h ^ _P2, len ^ _P3);
+	}
+
+	// Fold the 128-bit product of two words.
+	private static long _mix(long a, long b)
+	{
+		return (a * b) ^ Math.multiplyHigh(a, b);
+	}
+
+	/**
+	  * The actual hash function, on len (at most 64) characters of a
+	  * word, padded with zeros to a multiple of 8.
+	  */
+	private static long _hash(long keys[], char word[], int start, int len)
+	{
+		int	round = (len + 7) / 8;
+
 		int	value = 0;
 		for (int i = 0, pos = 0; i < round; i++, pos += 8)
 		{
-			long	todo = 0L + (byte)_word[pos];
-			for (int j = 1; j < 8; j++)
-				todo = (todo << 8) + (byte)_word[pos+j];
-			value += des(todo);
+			long	todo = 0L;
+			for (int j = 0; j < 8; j++)
+			{
+				byte	c = (pos + j < len) ?
+					(byte)word[start+pos+j] : 0;
+				todo = (todo << 8) + c;
+			}
+			value += des(keys, todo);
 		}
 
 		return value;
 	}
 
-	private static void makeKeys(long key)
+	private static long[] makeKeys(long key)
 	{
 		long reduced = permutate(key, _keyReducePermutation);
 		int l = (int)(reduced >> 28);
 		int r = (int)(reduced & 0xfffffff);
-		_keys = new long[16];
+		long keys[] = new long[16];
 		for (int i = 0; i < 16; i++)
-			_keys[i] = permutate(rotate(l, r, _keyRot[i]),
+			keys[i] = permutate(rotate(l, r, _keyRot[i]),
 					    _keyCompressPermutation);
+		return keys;
 	}
 
-	private static long des(long w)
+	private static long des(long keys[], long w)
 	{
 		long	x = permutate(w, _initialPermutation);
 		int	l = (int)(x >>> 32);
 		int	r = (int)x;
 		for (int i = 0; i < 16; i++)
 		{
-			int	tmp = desFunc(r, _keys[i]) ^ l;
+			int	tmp = desFunc(r, keys[i]) ^ l;
 			l = r;
 			r = tmp;
 		}
@@ -36,21 +36,96 @@
   */
 
 
-import java.util.Hashtable;
-
 /**
   * <code>XLut</code> is the hash lookup table for node distance.
+  * It is an open-addressing table with linear probing on the packed
+  * (eid1, eid2) key, so that neither keys nor distances are boxed.
   */
 class XLut
 {
-	private Hashtable	_xTable;
+	private static final long	_EMPTY = -1L;
+	private static final int	_DEFAULT_CAPACITY = 65536;
+	private static final int	_MAX_CAPACITY = 1 << 30;
+
+	private long	_keys[];
+	private int	_values[];
+	private int	_size, _shift, _threshold;
 
 	/**
 	  * Constructor.
 	  */
 	public XLut()
 	{
-		_xTable = new Hashtable(65536);
+		this(_DEFAULT_CAPACITY);
+	}
+
+	/**
+	  * Constructor that pre-sizes the table.
+	  * @param	expected	expected # of node pairs
+	  */
+	public XLut(int expected)
+	{
+		int	capacity = 16;
+		while ((capacity < _MAX_CAPACITY) && (capacity < expected * 2))
+			capacity <<= 1;
+		_allocate(capacity);
+	}
+
+	// Allocate an empty table; capacity must be a power of two.
+	private void _allocate(int capacity)
+	{
+		_keys = new long[capacity];
+		_values = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			_keys[i] = _EMPTY;
+
+		_shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		_threshold = capacity / 2;
+		_size = 0;
+	}
+
+	/**
+	  * Double the table and rehash all entries.
+	  */
+	private void _grow()
+	{
+		long[]	keys = _keys;
+		int[]	values = _values;
+		int	size = _size;
+
+		_allocate(keys.length * 2);
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] != _EMPTY)
+				_put(keys[i], values[i]);
+		}
+		_size = size;
+	}
+
+	// Fibonacci hashing spreads the packed ids over the table.
+	private int _slot(long key)
+	{
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> _shift);
+	}
+
+	// Insert or overwrite, without checking the load.
+	private boolean _put(long key, int dist)
+	{
+		int	mask = _keys.length - 1;
+		int	slot = _slot(key);
+		while (_keys[slot] != _EMPTY)
+		{
+			if (_keys[slot] == key)
+			{
+				_values[slot] = dist;
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		_keys[slot] = key;
+		_values[slot] = dist;
+		return true;
 	}
 
 	/**
@@ -65,14 +140,16 @@ class XLut
 		key = key << 32;
 		key += eid2;
 
-		_xTable.put(new Long(key), new Integer(dist));
+		if (_put(key, dist) && (++_size > _threshold) &&
+		    (_keys.length < _MAX_CAPACITY))
+			_grow();
 	}
 
 	/**
 	  * Get the distance of a node pair.
 	  * @param	eid1	element id #1
 	  * @param	eid2	element id #2
-	  * @return	distance or -1 if not found
+	  * @return	distance or NO_CONNECTION if not found
 	  */
 	public int get(int eid1, int eid2)
 	{
@@ -80,10 +157,62 @@ class XLut
 		key = key << 32;
 		key += eid2;
 
-		Integer	value = (Integer)_xTable.get(new Long(key));
-		if (value == null)
-			return XTree.NO_CONNECTION;
-		else
-			return value.intValue();
+		int	mask = _keys.length - 1;
+		int	slot = _slot(key);
+		long	k;
+		while ((k = _keys[slot]) != _EMPTY)
+		{
+			if (k == key)
+				return _values[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		return XTree.NO_CONNECTION;
+	}
+
+	/**
+	  * Add all node pairs of another table to this table.
+	  * @param	xlut	the other table
+	  */
+	public void addAll(XLut xlut)
+	{
+		long[]	keys = xlut._keys;
+		int[]	values = xlut._values;
+
+		// The other table is walked in hash order, which would pile up
+		// in a smaller table, so grow this one first.
+		while (((_keys.length < keys.length) ||
+			(_size + xlut._size > _threshold)) &&
+		       (_keys.length < _MAX_CAPACITY))
+			_grow();
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] == _EMPTY)
+				continue;
+			if (_put(keys[i], values[i]) && (++_size > _threshold) &&
+			    (_keys.length < _MAX_CAPACITY))
+				_grow();
+		}
+	}
+
+	/**
+	  * Remove all node pairs from this table.
+	  */
+	public void clear()
+	{
+		if (_size == 0)
+			return;
+		for (int i = 0; i < _keys.length; i++)
+			_keys[i] = _EMPTY;
+		_size = 0;
+	}
+
+	/**
+	  * Get the # of node pairs in this table.
+	  */
+	public int size()
+	{
+		return _size;
 	}
 }
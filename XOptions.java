@@ -0,0 +1,498 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+  * <code>XOptions</code> holds the options of a diff.  An options value
+  * never changes once made: each <code>with</code> method returns a new
+  * value, so that one value can be shared by any number of engines and
+  * threads.
+  */
+class XOptions
+{
+	// Modes.
+	public static final int	DEFAULT = 0;
+	public static final int	OPTIMAL = 1;	// the minimum editing distance
+	public static final int	GREEDY = 2;	// a difference, quickly
+
+	// Minimal-cost matching engines.
+	public static final int	HUNGARIAN = 0;
+	public static final int	NCC = 1;	// negative cost circuit
+
+	// Formats of the diff result.
+	public static final int	XML = 0;	// the annotated document
+	public static final int	JSON = 1;	// an edit script, in JSON lines
+	public static final int	BINARY = 2;	// an edit script, in binary
+
+	private int		_mode = DEFAULT;
+	private double		_noMatchThreshold = 0.3;
+	private String		_encoding = "UTF8";
+	private int		_matchEngine = HUNGARIAN;
+	private int		_parallelism = 1;
+	private int		_parallelCutoff = 1024;
+	private int		_hashAlgorithm = XHash.FAST;
+	private boolean		_mappedText = false;
+	private boolean		_directColumns = false;
+	private boolean		_subtreeIndex = false;
+	private boolean		_seeded = false;
+	private long		_seed;
+	private int		_sampleCount = 3;
+	private long		_timeBudget = 0;
+	private long		_cellBudget = 0;
+	private int		_format = XML;
+	private Hashtable	_keys = new Hashtable();	// tag -> attribute
+	private String		_defaultKey = null;
+	private Hashtable	_orderedTags = new Hashtable();
+	private boolean		_orderedAll = false;
+
+	/**
+	  * Constructor of the default options.
+	  */
+	public XOptions()
+	{
+	}
+
+	/**
+	  * Copy constructor, for the <code>with</code> methods.
+	  */
+	private XOptions(XOptions options)
+	{
+		_mode = options._mode;
+		_noMatchThreshold = options._noMatchThreshold;
+		_encoding = options._encoding;
+		_matchEngine = options._matchEngine;
+		_parallelism = options._parallelism;
+		_parallelCutoff = options._parallelCutoff;
+		_hashAlgorithm = options._hashAlgorithm;
+		_mappedText = options._mappedText;
+		_directColumns = options._directColumns;
+		_subtreeIndex = options._subtreeIndex;
+		_seeded = options._seeded;
+		_seed = options._seed;
+		_sampleCount = options._sampleCount;
+		_timeBudget = options._timeBudget;
+		_cellBudget = options._cellBudget;
+		_format = options._format;
+		_keys = options._keys;
+		_defaultKey = options._defaultKey;
+		_orderedTags = options._orderedTags;
+		_orderedAll = options._orderedAll;
+	}
+
+	/**
+	  * Set the mode.
+	  * @param	mode	DEFAULT, OPTIMAL or GREEDY
+	  */
+	public XOptions withMode(int mode)
+	{
+		if ((mode < DEFAULT) || (mode > GREEDY))
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		XOptions	options = new XOptions(this);
+		options._mode = mode;
+		return options;
+	}
+
+	/**
+	  * Set the maximum change percentage allowed, above which two nodes
+	  * are deleted and inserted rather than matched.
+	  * @param	p	the percentage, in (0, 1]
+	  */
+	public XOptions withNoMatchThreshold(double p)
+	{
+		if ((p <= 0) || (p > 1))
+			throw new IllegalArgumentException("Bad percentage: " + p);
+		XOptions	options = new XOptions(this);
+		options._noMatchThreshold = p;
+		return options;
+	}
+
+	/**
+	  * Set the encoding of the diff result, when written to a file.
+	  * @param	encoding	the encoding
+	  */
+	public XOptions withEncoding(String encoding)
+	{
+		XOptions	options = new XOptions(this);
+		options._encoding = encoding;
+		return options;
+	}
+
+	/**
+	  * Set the minimal-cost matching engine.
+	  * @param	engine	HUNGARIAN or NCC
+	  */
+	public XOptions withMatchEngine(int engine)
+	{
+		if ((engine != HUNGARIAN) && (engine != NCC))
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		XOptions	options = new XOptions(this);
+		options._matchEngine = engine;
+		return options;
+	}
+
+	/**
+	  * Diff matched subtrees in parallel.
+	  * @param	threads	the # of threads, 1 for none
+	  * @param	cutoff	the minimal size (in nodes) of a subtree pair
+	  *			that is diffed in its own parallel task
+	  */
+	public XOptions withParallelism(int threads, int cutoff)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Bad # of threads: " + threads);
+		XOptions	options = new XOptions(this);
+		options._parallelism = threads;
+		options._parallelCutoff = cutoff;
+		return options;
+	}
+
+	/**
+	  * Set the hash function of the parser.
+	  * @param	algorithm	XHash.FAST or XHash.DES
+	  */
+	public XOptions withHashAlgorithm(int algorithm)
+	{
+		if ((algorithm != XHash.FAST) && (algorithm != XHash.DES))
+			throw new IllegalArgumentException("Unknown hash: " + algorithm);
+		XOptions	options = new XOptions(this);
+		options._hashAlgorithm = algorithm;
+		return options;
+	}
+
+	/**
+	  * Keep the text values of the trees in a memory-mapped temporary
+	  * file instead of the heap.
+	  * @param	mapped	true to keep text values in a mapped file
+	  */
+	public XOptions withMappedText(boolean mapped)
+	{
+		XOptions	options = new XOptions(this);
+		options._mappedText = mapped;
+		return options;
+	}
+
+	/**
+	  * Keep the node columns of the trees in direct buffers, out of
+	  * the heap.
+	  * @param	direct	true to keep node columns in direct buffers
+	  */
+	public XOptions withDirectColumns(boolean direct)
+	{
+		XOptions	options = new XOptions(this);
+		options._directColumns = direct;
+		return options;
+	}
+
+	/**
+	  * Index identical subtrees, to take moved subtrees out early.
+	  * @param	index	true to index subtrees
+	  */
+	public XOptions withSubtreeIndex(boolean index)
+	{
+		XOptions	options = new XOptions(this);
+		options._subtreeIndex = index;
+		return options;
+	}
+
+	/**
+	  * Make the sampling of the greedy mode reproducible.
+	  * @param	seed	the seed of the random generators
+	  */
+	public XOptions withSeed(long seed)
+	{
+		XOptions	options = new XOptions(this);
+		options._seed = seed;
+		options._seeded = true;
+		return options;
+	}
+
+	/**
+	  * Set how many nodes the greedy mode samples from a list before
+	  * matching the rest in order.
+	  * @param	count	# of sampled nodes, at least 1
+	  */
+	public XOptions withSampleCount(int count)
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("Bad # of samples: " + count);
+		XOptions	options = new XOptions(this);
+		options._sampleCount = count;
+		return options;
+	}
+
+	/**
+	  * Give each diff a budget.  When it runs out, the subtrees still
+	  * to diff only get their children deleted and inserted.
+	  * @param	millis	max time of a diff, in ms, or 0 for no limit
+	  * @param	cells	max # of distance and matrix cells to compute,
+	  *			or 0 for no limit
+	  */
+	public XOptions withBudget(long millis, long cells)
+	{
+		if ((millis < 0) || (cells < 0))
+			throw new IllegalArgumentException("Negative budget");
+		XOptions	options = new XOptions(this);
+		options._timeBudget = millis;
+		options._cellBudget = cells;
+		return options;
+	}
+
+	/**
+	  * Match elements by a key attribute: siblings with the same tag
+	  * and the same key value are matched without computing distances,
+	  * and an element whose key is not found among its new siblings is
+	  * deleted, or inserted.
+	  * @param	tag		the tag of the elements, or null for any
+	  *				element without a key of its own
+	  * @param	attribute	the name of the key attribute
+	  */
+	public XOptions withKey(String tag, String attribute)
+	{
+		if ((attribute == null) || (attribute.length() == 0))
+			throw new IllegalArgumentException("No key attribute");
+		XOptions	options = new XOptions(this);
+		if (tag == null)
+			options._defaultKey = attribute;
+		else
+		{
+			options._keys = (Hashtable)_keys.clone();
+			options._keys.put(tag, attribute);
+		}
+		return options;
+	}
+
+	/**
+	  * Take the children of elements as ordered, as in documents, rather
+	  * than as a set, as in data: child lists are aligned as sequences,
+	  * and identical children out of order are reported as moved.
+	  * @param	tag	the tag of the elements, or null for all of them
+	  */
+	public XOptions withOrdered(String tag)
+	{
+		XOptions	options = new XOptions(this);
+		if (tag == null)
+			options._orderedAll = true;
+		else
+		{
+			options._orderedTags = (Hashtable)_orderedTags.clone();
+			options._orderedTags.put(tag, Boolean.TRUE);
+		}
+		return options;
+	}
+
+	/**
+	  * Take the children of the elements of several tags as ordered.
+	  * @param	tags	the tags, separated by commas, or "*" for all
+	  *			elements, as getOrderedTags has them
+	  */
+	public XOptions withOrderedTags(String tags)
+	{
+		XOptions	options = this;
+		String	list[] = tags.split(",");
+		for (int i = 0; i < list.length; i++)
+		{
+			if (list[i].length() == 0)
+				throw new IllegalArgumentException("Empty tag: " + tags);
+			options = options.withOrdered(list[i].equals("*") ?
+						      null : list[i]);
+		}
+		return options;
+	}
+
+	/**
+	  * Set the format of the diff result.
+	  * @param	format	XML, JSON or BINARY
+	  */
+	public XOptions withFormat(int format)
+	{
+		if ((format < XML) || (format > BINARY))
+			throw new IllegalArgumentException("Unknown format: " + format);
+		XOptions	options = new XOptions(this);
+		options._format = format;
+		return options;
+	}
+
+	public int getMode()
+	{
+		return _mode;
+	}
+
+	public double getNoMatchThreshold()
+	{
+		return _noMatchThreshold;
+	}
+
+	public String getEncoding()
+	{
+		return _encoding;
+	}
+
+	public int getMatchEngine()
+	{
+		return _matchEngine;
+	}
+
+	public int getParallelism()
+	{
+		return _parallelism;
+	}
+
+	public int getParallelCutoff()
+	{
+		return _parallelCutoff;
+	}
+
+	public int getHashAlgorithm()
+	{
+		return _hashAlgorithm;
+	}
+
+	public boolean isMappedText()
+	{
+		return _mappedText;
+	}
+
+	public boolean isDirectColumns()
+	{
+		return _directColumns;
+	}
+
+	public boolean isSubtreeIndex()
+	{
+		return _subtreeIndex;
+	}
+
+	public boolean isSeeded()
+	{
+		return _seeded;
+	}
+
+	public long getSeed()
+	{
+		return _seed;
+	}
+
+	public int getSampleCount()
+	{
+		return _sampleCount;
+	}
+
+	public long getTimeBudget()
+	{
+		return _timeBudget;
+	}
+
+	public long getCellBudget()
+	{
+		return _cellBudget;
+	}
+
+	public int getFormat()
+	{
+		return _format;
+	}
+
+	/**
+	  * Get the key attribute of the elements of a tag.
+	  * @param	tag	the tag
+	  * @return	the name of the attribute, or null if none
+	  */
+	public String getKey(String tag)
+	{
+		String	attribute = (String)_keys.get(tag);
+		return (attribute != null) ? attribute : _defaultKey;
+	}
+
+	public boolean isKeyed()
+	{
+		return (_defaultKey != null) || !_keys.isEmpty();
+	}
+
+	/**
+	  * Check if the children of the elements of a tag are ordered.
+	  * @param	tag	the tag
+	  */
+	public boolean isOrdered(String tag)
+	{
+		return _orderedAll || _orderedTags.containsKey(tag);
+	}
+
+	/**
+	  * Get the tags of the elements whose children are ordered.
+	  * @return	the tags, separated by commas, "*" for all elements,
+	  *		or null for none
+	  */
+	public String getOrderedTags()
+	{
+		if (_orderedAll)
+			return "*";
+		if (_orderedTags.isEmpty())
+			return null;
+
+		StringBuffer	tags = new StringBuffer();
+		Enumeration	e = _orderedTags.keys();
+		while (e.hasMoreElements())
+		{
+			if (tags.length() > 0)
+				tags.append(',');
+			tags.append((String)e.nextElement());
+		}
+		return tags.toString();
+	}
+
+	/**
+	  * Check if trees are hashed as with other options: with the same
+	  * hash function, and the same ordered children.
+	  * @param	options	the other options
+	  */
+	public boolean hashesAs(XOptions options)
+	{
+		return (_hashAlgorithm == options._hashAlgorithm) &&
+		       (_orderedAll == options._orderedAll) &&
+		       _orderedTags.keySet().equals(options._orderedTags.keySet());
+	}
+
+	/**
+	  * Check if the children of any element are ordered.
+	  */
+	public boolean isOrdered()
+	{
+		return _orderedAll || !_orderedTags.isEmpty();
+	}
+}
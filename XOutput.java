@@ -0,0 +1,191 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+  * <code>XOutput</code> writes the diff result to a channel.  Characters
+  * are copied into one char buffer, which is encoded into one byte
+  * buffer when full, so that writing a string allocates nothing.
+  */
+class XOutput extends Writer
+{
+	private static final int	_BUFFER_SIZE = 1 << 16;
+
+	private WritableByteChannel	_channel;
+	private CharsetEncoder	_encoder;
+	private char		_chars[];
+	private CharBuffer	_charBuffer;
+	private ByteBuffer	_byteBuffer;
+	private int		_count;
+
+	/**
+	  * Constructor
+	  * @param	channel		the channel, closed with the writer
+	  * @param	encoding	the encoding of the characters
+	  */
+	public XOutput(WritableByteChannel channel, String encoding)
+	{
+		_channel = channel;
+		// Unmappable characters are replaced, as by OutputStreamWriter.
+		_encoder = Charset.forName(encoding).newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		_chars = new char[_BUFFER_SIZE];
+		_charBuffer = CharBuffer.wrap(_chars);
+		_byteBuffer = ByteBuffer.allocateDirect((int)(_BUFFER_SIZE *
+			_encoder.maxBytesPerChar()));
+		_count = 0;
+	}
+
+	public void write(int c) throws IOException
+	{
+		if (_count == _chars.length)
+			_encode(false);
+		_chars[_count++] = (char)c;
+	}
+
+	public void write(String s) throws IOException
+	{
+		write(s, 0, s.length());
+	}
+
+	public void write(String s, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			if (_count == _chars.length)
+				_encode(false);
+			int	n = Math.min(len, _chars.length - _count);
+			s.getChars(off, off + n, _chars, _count);
+			_count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void write(char cbuf[], int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			if (_count == _chars.length)
+				_encode(false);
+			int	n = Math.min(len, _chars.length - _count);
+			System.arraycopy(cbuf, off, _chars, _count, n);
+			_count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// Append the characters one by one, rather than as a string.
+	public Writer append(CharSequence csq) throws IOException
+	{
+		int	length = csq.length();
+		if (!(csq instanceof StringBuffer))
+		{
+			for (int i = 0; i < length; i++)
+				write(csq.charAt(i));
+			return this;
+		}
+
+		StringBuffer	buffer = (StringBuffer)csq;
+		int	off = 0;
+		while (length > 0)
+		{
+			if (_count == _chars.length)
+				_encode(false);
+			int	n = Math.min(length, _chars.length - _count);
+			buffer.getChars(off, off + n, _chars, _count);
+			_count += n;
+			off += n;
+			length -= n;
+		}
+		return this;
+	}
+
+	public void flush() throws IOException
+	{
+		_encode(false);
+	}
+
+	public void close() throws IOException
+	{
+		if (_channel == null)
+			return;
+
+		_encode(true);
+		_channel.close();
+		_channel = null;
+	}
+
+	/**
+	  * Encode the buffered characters and write them out.  A surrogate
+	  * pair cut by the end of the buffer waits for the next characters,
+	  * unless this is the end of the output.
+	  * @param	endOfInput	true at the end of the output
+	  */
+	private void _encode(boolean endOfInput) throws IOException
+	{
+		_charBuffer.limit(_count);
+		_charBuffer.position(0);
+		CoderResult	result = _encoder.encode(_charBuffer, _byteBuffer,
+							 endOfInput);
+		// The byte buffer holds a whole char buffer.
+		if (!result.isUnderflow())
+			result.throwException();
+		if (endOfInput)
+			_encoder.flush(_byteBuffer);
+		_byteBuffer.flip();
+		while (_byteBuffer.hasRemaining())
+			_channel.write(_byteBuffer);
+		_byteBuffer.clear();
+
+		int	left = _charBuffer.remaining();
+		System.arraycopy(_chars, _charBuffer.position(), _chars, 0, left);
+		_count = left;
+	}
+}
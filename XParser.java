@@ -36,12 +36,28 @@
   */
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.ext.Locator2;
 
 /**
   * <code>XParser</code> parses an input XML document and constructs an
@@ -57,21 +73,46 @@ class XParser extends DefaultHandler implements LexicalHandler
  	private static boolean  _setNameSpacePrefixes = false;
 
 	private static int	_STACK_SIZE = 100;
+	private static int	_TEXT_SIZE = 1024;
 
 	private XMLReader	_parser;
+	private XOptions	_options;
+	private int		_hashAlgorithm;
 	private XTree		_xtree;
 	private int		_idStack[], _lsidStack[]; // id and left sibling
 	private long		_valueStack[];
+	// Whether the children of the elements are ordered, and the hash
+	// value of the ordered children so far.
+	private boolean		_ordered;
+	private boolean		_orderedStack[];
+	private long		_sequenceStack[];
 	private int		_stackTop, _currentNodeID;
 	private boolean		_readElement;
-	private StringBuffer	_elementBuffer;
+	private char		_text[];	// text of the current element
+	private int		_textLength;
+	// The input read until the root element starts, for the prolog.
+	private ByteArrayOutputStream	_prologBytes;
+	private CharArrayWriter	_prologChars;
+	private Locator		_locator;
 
 	/**
 	  * Constructor.
 	  */
 	public XParser()
 	{
-		XHash.initialize();
+		this(new XOptions());
+	}
+
+	/**
+	  * Constructor of a parser that makes trees, and hashes their
+	  * nodes, as the options say.
+	  * @param	options	the options
+	  */
+	public XParser(XOptions options)
+	{
+		_options = options;
+		_hashAlgorithm = options.getHashAlgorithm();
+		_ordered = options.isOrdered();
 		try
 		{
 			_parser = (XMLReader)Class.forName(_PARSER_NAME).newInstance();
@@ -87,16 +128,18 @@ class XParser extends DefaultHandler implements LexicalHandler
 		}
 		catch (Exception e)
 		{
-			System.err.println(e.getMessage());
-			System.exit(1);
+			throw new IllegalStateException(e.getMessage(), e);
 		}
 
 		_idStack = new int[_STACK_SIZE];
 		_lsidStack = new int[_STACK_SIZE];
 		_valueStack = new long[_STACK_SIZE];
+		_orderedStack = new boolean[_STACK_SIZE];
+		_sequenceStack = new long[_STACK_SIZE];
 		_stackTop = 0;
 		_currentNodeID = XTree.NULL_NODE;
-		_elementBuffer = new StringBuffer();
+		_text = new char[_TEXT_SIZE];
+		_textLength = 0;
 	}
 
 	/**
@@ -104,43 +147,204 @@ class XParser extends DefaultHandler implements LexicalHandler
 	  * @param	uri	input XML document
 	  * @return	the created XTree
 	  */
-	public XTree parse(String uri)
+	public XTree parse(String uri) throws IOException
 	{
-		_xtree = new XTree();
+		InputStream	in;
+		try
+		{
+			in = new URL(uri).openStream();
+		}
+		catch (MalformedURLException mue)
+		{
+			in = new FileInputStream(uri);
+		}
+
+		InputSource	source = new InputSource(uri);
+		source.setByteStream(in);
+		try
+		{
+			return parse(source);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	  * Parse an XML document from a byte or character stream, e.g.,
+	  * a document sent over a socket.  What the stream holds before
+	  * the line of the root element is kept as the prolog of the tree.
+	  * @param	source	input XML document
+	  * @return	the created XTree
+	  */
+	public XTree parse(InputSource source) throws IOException
+	{
+		_xtree = new XTree(_options);
 		_idStack[_stackTop] = XTree.NULL_NODE;
 		_lsidStack[_stackTop] = XTree.NULL_NODE;
 
+		InputSource	recorded = new InputSource(source.getSystemId());
+		recorded.setPublicId(source.getPublicId());
+		recorded.setEncoding(source.getEncoding());
+		_prologBytes = null;
+		_prologChars = null;
+		if (source.getCharacterStream() != null)
+		{
+			_prologChars = new CharArrayWriter();
+			recorded.setCharacterStream(
+				new CharRecorder(source.getCharacterStream()));
+		}
+		else if (source.getByteStream() != null)
+		{
+			_prologBytes = new ByteArrayOutputStream();
+			recorded.setByteStream(
+				new ByteRecorder(source.getByteStream()));
+		}
+
 		try
 		{
-			_parser.parse(uri);
+			_parser.parse(recorded);
 		}
-		catch (Exception e)
+		catch (SAXException e)
 		{
-			System.err.println(e.getMessage());
-			System.exit(1);
+			throw new IOException(e.getMessage(), e);
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
 		}
 
 		return _xtree;
 	}
 
-	// Document handler methods
+	/**
+	  * <code>ByteRecorder</code> keeps the bytes of a document until the
+	  * root element starts.
+	  */
+	private class ByteRecorder extends FilterInputStream
+	{
+		ByteRecorder(InputStream in)
+		{
+			super(in);
+		}
 
-	public void startElement(String uri, String local, String raw,
-				 Attributes attrs)
+		public int read() throws IOException
+		{
+			int	b = super.read();
+			if ((b >= 0) && (_prologBytes != null))
+				_prologBytes.write(b);
+			return b;
+		}
+
+		public int read(byte b[], int off, int len) throws IOException
+		{
+			int	n = super.read(b, off, len);
+			if ((n > 0) && (_prologBytes != null))
+				_prologBytes.write(b, off, n);
+			return n;
+		}
+	}
+
+	/**
+	  * <code>CharRecorder</code> keeps the characters of a document until
+	  * the root element starts.
+	  */
+	private class CharRecorder extends FilterReader
 	{
-		// if text is mixed with elements
-		if (_elementBuffer.length() > 0)
+		CharRecorder(Reader in)
 		{
-			String	text = _elementBuffer.toString().trim();
-			if (text.length() > 0)
+			super(in);
+		}
+
+		public int read() throws IOException
+		{
+			int	c = super.read();
+			if ((c >= 0) && (_prologChars != null))
+				_prologChars.write(c);
+			return c;
+		}
+
+		public int read(char cbuf[], int off, int len) throws IOException
+		{
+			int	n = super.read(cbuf, off, len);
+			if ((n > 0) && (_prologChars != null))
+				_prologChars.write(cbuf, off, n);
+			return n;
+		}
+	}
+
+	/**
+	  * Keep the lines of the document before the line of the root
+	  * element as the prolog, and stop recording the input.  Bytes are
+	  * decoded in the encoding the parser found for the document.
+	  * @param	rootTag	"<" and the tag of the root
+	  */
+	private void _keepProlog(String rootTag)
+	{
+		String	text;
+		if (_prologChars != null)
+			text = _prologChars.toString();
+		else
+		{
+			Charset	charset = StandardCharsets.UTF_8;
+			if ((_locator instanceof Locator2) &&
+			    (((Locator2)_locator).getEncoding() != null))
 			{
-				long	value = XHash.hash(text);
-				int	tid = _xtree.addText(_idStack[_stackTop], _lsidStack[_stackTop], text, value);
-				_lsidStack[_stackTop] = tid;
-				_currentNodeID = tid;
-				_valueStack[_stackTop] += value;
+				try
+				{
+					charset = Charset.forName(((Locator2)_locator).getEncoding());
+				}
+				catch (IllegalArgumentException iae)
+				{
+				}
 			}
+			text = new String(_prologBytes.toByteArray(), charset);
 		}
+		_prologBytes = null;
+		_prologChars = null;
+
+		// XXX <root > is as valid as <root>,
+		// but < root> is NOT!
+		StringBuffer	prolog = new StringBuffer();
+		int	length = text.length();
+		int	start = (text.startsWith("\uFEFF")) ? 1 : 0;
+		while (start < length)
+		{
+			int	end = start;
+			while ((end < length) && (text.charAt(end) != '\n') &&
+			       (text.charAt(end) != '\r'))
+				end++;
+			int	root = text.indexOf(rootTag, start);
+			if ((root >= 0) && (root < end))
+				break;
+
+			prolog.append(text, start, end).append('\n');
+			if ((end + 1 < length) && (text.charAt(end) == '\r') &&
+			    (text.charAt(end + 1) == '\n'))
+				end++;
+			start = end + 1;
+		}
+
+		_xtree.setProlog(prolog.toString());
+	}
+
+	// Document handler methods
+
+	public void setDocumentLocator(Locator locator)
+	{
+		_locator = locator;
+	}
+
+	public void startElement(String uri, String local, String raw,
+				 Attributes attrs)
+	{
+		if ((_prologBytes != null) || (_prologChars != null))
+			_keepProlog("<" + raw);
+
+		// if text is mixed with elements
+		if (_textLength > 0)
+			_addTrimmedText();
 
 		int	eid = _xtree.addElement(_idStack[_stackTop],
 						_lsidStack[_stackTop], local);
@@ -153,7 +357,9 @@ class XParser extends DefaultHandler implements LexicalHandler
 		_idStack[_stackTop] = eid;
 		_currentNodeID = eid;
 		_lsidStack[_stackTop] = XTree.NULL_NODE;
-		_valueStack[_stackTop] = XHash.hash(local);
+		_valueStack[_stackTop] = XHash.hash(local, _hashAlgorithm);
+		_orderedStack[_stackTop] = _ordered && _options.isOrdered(local);
+		_sequenceStack[_stackTop] = 0;
 
 		// Take care of attributes
 		if ((attrs != null) && (attrs.getLength() > 0))
@@ -162,8 +368,8 @@ class XParser extends DefaultHandler implements LexicalHandler
 			{
 				String	name = attrs.getQName(i);
 				String	value = attrs.getValue(i);
-				long	namehash = XHash.hash(name);
-				long	valuehash = XHash.hash(value);
+				long	namehash = XHash.hash(name, _hashAlgorithm);
+				long	valuehash = XHash.hash(value, _hashAlgorithm);
 				long	attrhash = namehash * namehash +
 						   valuehash * valuehash;
 				int	aid = _xtree.addAttribute(eid, _lsidStack[_stackTop], name, value, namehash, attrhash);
@@ -175,27 +381,36 @@ class XParser extends DefaultHandler implements LexicalHandler
 		}
 
 		_readElement = true;
-		_elementBuffer = new StringBuffer();
+		_textLength = 0;
 	}
 
 	public void characters(char ch[], int start, int length)
 	{
-		_elementBuffer.append(ch, start, length);
+		if (_textLength + length > _text.length)
+		{
+			char	text[] = new char[Math.max(2 * _text.length,
+							   _textLength + length)];
+			System.arraycopy(_text, 0, text, 0, _textLength);
+			_text = text;
+		}
+		System.arraycopy(ch, start, _text, _textLength, length);
+		_textLength += length;
 	}
 
 	public void endElement(String uri, String local, String raw)
 	{
 		if (_readElement)
 		{
-			if (_elementBuffer.length() > 0)
+			if (_textLength > 0)
 			{
-				String	text = _elementBuffer.toString();
-				long	value = XHash.hash(text);
+				long	value = XHash.hash(_text, 0, _textLength,
+						     _hashAlgorithm);
 				_currentNodeID =
 					_xtree.addText(_idStack[_stackTop],
 						       _lsidStack[_stackTop],
-						       text, value);
-				_valueStack[_stackTop] += value;
+						       _text, 0, _textLength,
+						       value);
+				_addValue(value);
 			}
 			else	// an empty element
 			{
@@ -206,33 +421,61 @@ class XParser extends DefaultHandler implements LexicalHandler
 			}
 			_readElement = false;
 		}
-		else
+		else if (_textLength > 0)
 		{
-			if (_elementBuffer.length() > 0)
-			{
-				String	text = _elementBuffer.toString().trim();
-				// More text nodes before end of the element.
-				if (text.length() > 0)
-				{
-					long	value = XHash.hash(text);
-					_currentNodeID =
-					  _xtree.addText(_idStack[_stackTop],
-							 _lsidStack[_stackTop],
-							 text, value);
-					_valueStack[_stackTop] += value;
-				}
-			}
+			// More text nodes before end of the element.
+			_addTrimmedText();
 		}
 
-		_elementBuffer = new StringBuffer();
+		_textLength = 0;
+		_valueStack[_stackTop] += _sequenceStack[_stackTop];
 		_xtree.addHashValue(_idStack[_stackTop],
 				    _valueStack[_stackTop]);
-		_valueStack[_stackTop-1] += _valueStack[_stackTop] *
-					    _valueStack[_stackTop];
+		_xtree.addDecendentsCount(_idStack[_stackTop]);
+		long	value = _valueStack[_stackTop] * _valueStack[_stackTop];
 		_lsidStack[_stackTop-1] = _idStack[_stackTop];
 
 		// Pop
 		_stackTop--;
+		_addValue(value);
+	}
+
+	/**
+	  * Add the hash value of a child to the value of the current
+	  * element.
+	  */
+	private void _addValue(long value)
+	{
+		if (_orderedStack[_stackTop])
+			_sequenceStack[_stackTop] =
+				XHash.sequence(_sequenceStack[_stackTop], value);
+		else
+			_valueStack[_stackTop] += value;
+	}
+
+	/**
+	  * Add the accumulated text, without leading and trailing white
+	  * space (as String.trim() does), as a text node of the current
+	  * element, unless nothing is left.
+	  */
+	private void _addTrimmedText()
+	{
+		int	start = 0, end = _textLength;
+		while ((start < end) && (_text[start] <= ' '))
+			start++;
+		while ((start < end) && (_text[end-1] <= ' '))
+			end--;
+		if (start == end)
+			return;
+
+		long	value = XHash.hash(_text, start, end - start,
+				     _hashAlgorithm);
+		int	tid = _xtree.addText(_idStack[_stackTop],
+					     _lsidStack[_stackTop],
+					     _text, start, end - start, value);
+		_lsidStack[_stackTop] = tid;
+		_currentNodeID = tid;
+		_addValue(value);
 	}
 
 	// End of document handler methods
@@ -244,15 +487,13 @@ class XParser extends DefaultHandler implements LexicalHandler
 		// The text node id should be the one next to the current
 		// node id.
 		int	textid = _currentNodeID + 1;
-		String	text = _elementBuffer.toString();
-		_xtree.addCDATA(textid, text.length());
+		_xtree.addCDATA(textid, _textLength);
 	}
 
 	public void endCDATA()
 	{
 		int	textid = _currentNodeID + 1;
-		String	text = _elementBuffer.toString();
-		_xtree.addCDATA(textid, text.length());
+		_xtree.addCDATA(textid, _textLength);
 	}
 
 	// Following functions are not implemented.
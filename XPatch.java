@@ -0,0 +1,1402 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+  * <code>XPatch</code> applies an edit script, written by XDiff with
+  * <code>-f json</code> or <code>-f binary</code>, to the first/old
+  * document, to get the second/new one back.
+  *
+  * The old document is read in one SAX pass and the new one written
+  * as it goes: no tree is built, so that memory follows the size of the
+  * script and the depth of the document, not the size of the document.
+  * Nodes are counted as <code>XParser</code> makes them, for the paths
+  * of the script, and hashed, to check that the script is for the
+  * document.  Like XDiff, it does not keep the order of siblings
+  * that moved, nor comments or processing instructions.  The children
+  * of an element with children moved among them are the exception:
+  * they are kept until its end tag, to be written in their new order.
+  *
+  * The prolog of the new document, from the script, is written before
+  * the root, but for its XML declaration: the result has one of its
+  * own.  CDATA sections of the old document are kept with the text
+  * they hold, while text inserted or updated is written escaped.
+  * A CDATA section and the same text escaped are the same text node to
+  * XDiff, so turning one into the other is not a change it reports.
+  */
+class XPatch extends DefaultHandler implements LexicalHandler
+{
+	private static String	_usage = "java XPatch [-v] xml_file1 delta_file result_file\nApply an edit script made by \"XDiff -f json\" or \"XDiff -f binary\"\nto xml_file1.  The result, in UTF-8, has the prolog of the second\ndocument and the CDATA sections of xml_file1 that are kept; inserted\nand updated text is escaped, and comments and processing instructions\nafter the prolog are dropped, as XDiff does.\nOptions:\n  -v\tVerify that the result hashes as the second document of\n\tthe diff did.";
+
+	private static final String	_PARSER_NAME = "org.apache.xerces.parsers.SAXParser";
+	private static int	_STACK_SIZE = 100;
+	private static int	_TEXT_SIZE = 1024;
+
+	private XMLReader	_parser;
+
+	// The script: its header, and the changes by path in the old
+	// document, which are taken out as they are done.
+	private XOptions	_hashOptions;	// hash function, ordered tags
+	private String		_prolog;	// of the new document, or null
+	private long		_hash1, _hash2;
+	private Hashtable	_edits;
+
+	// The old document, read as XParser reads it.
+	private int		_depth;
+	private String		_path[];
+	private int		_childCount[];
+	private int		_skip;		// depth in a deleted subtree
+	private boolean		_readElement;
+	private char		_text[];
+	private int		_textLength;
+	// The CDATA sections of the text, as (start, end) positions.
+	private int		_cdata[];
+	private int		_cdataCount;
+	// The hash value of the old document, to check that the script
+	// is for it.
+	private Hasher		_hasher;
+
+	// The new document.  Until an element has an element child, its
+	// text is kept both as is and as the text node the parser would
+	// make of it, since only one of them will do.
+	private Writer		_out;
+	private String		_tag[];
+	private Edit		_edit[];
+	private int		_nextInsert[];
+	private int		_outCount[];
+	private boolean		_hasElement[];
+	private StringBuffer	_raw[], _value[];
+	private StringBuffer	_xml = new StringBuffer();
+	// The children written so far of an element with children moved,
+	// else null, and the output to go back to after each child.
+	private Vector		_pieces[];
+	private Writer		_saved[];
+
+	/**
+	  * The changes to one node of the old document.
+	  */
+	private static class Edit
+	{
+		boolean	_delete;
+		String	_old, _new;		// text update
+		int	_moveTo = -1;		// new position, if moved
+		int	_moves;			// # of children moved
+		Vector	_attributes = new Vector();	// {name, old, new}
+		Vector	_inserts = new Vector();	// children
+	}
+
+	/**
+	  * A node inserted into an element, or a child of an element with
+	  * children moved.
+	  */
+	private static class Insert
+	{
+		int	_index;		// -1 for a child kept in order
+		boolean	_element;
+		String	_content;	// XML of an element or a text node
+	}
+
+	/**
+	  * Constructor.
+	  */
+	public XPatch()
+	{
+		_parser = _newReader();
+		_parser.setContentHandler(this);
+		_parser.setErrorHandler(this);
+		try
+		{
+			_parser.setProperty("http://xml.org/sax/properties/lexical-handler", this);
+		}
+		catch (SAXException e)
+		{
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+
+		_path = new String[_STACK_SIZE];
+		_childCount = new int[_STACK_SIZE];
+		_text = new char[_TEXT_SIZE];
+		_cdata = new int[16];
+		_tag = new String[_STACK_SIZE];
+		_edit = new Edit[_STACK_SIZE];
+		_nextInsert = new int[_STACK_SIZE];
+		_outCount = new int[_STACK_SIZE];
+		_hasElement = new boolean[_STACK_SIZE];
+		_raw = new StringBuffer[_STACK_SIZE];
+		_value = new StringBuffer[_STACK_SIZE];
+		_pieces = new Vector[_STACK_SIZE];
+		_saved = new Writer[_STACK_SIZE];
+		for (int i = 0; i < _STACK_SIZE; i++)
+		{
+			_raw[i] = new StringBuffer();
+			_value[i] = new StringBuffer();
+		}
+	}
+
+	private static XMLReader _newReader()
+	{
+		try
+		{
+			return (XMLReader)Class.forName(_PARSER_NAME).newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	  * Apply a script to a document, and write the result to a file,
+	  * in UTF-8.
+	  * @param	input	the old XML document
+	  * @param	delta	the script
+	  * @param	output	the file of the new document
+	  */
+	public void apply(String input, String delta,
+			  String output) throws IOException
+	{
+		InputStream	in = _open(input);
+		InputStream	din = new FileInputStream(delta);
+		XOutput	out = new XOutput(FileChannel.open(Paths.get(output),
+			StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING), "UTF-8");
+		try
+		{
+			InputSource	source = new InputSource(input);
+			source.setByteStream(in);
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			apply(source, din, out);
+		}
+		finally
+		{
+			out.close();
+			din.close();
+			in.close();
+		}
+	}
+
+	/**
+	  * Apply a script to a document.  The prolog of the new document
+	  * is written first, without its XML declaration.
+	  * @param	source	the old XML document
+	  * @param	delta	the script, in either format
+	  * @param	out	where to write the new document, which is
+	  *			not closed
+	  */
+	public void apply(InputSource source, InputStream delta,
+			  Writer out) throws IOException
+	{
+		readDelta(delta);
+		if (_prolog != null)
+			out.write(_withoutDeclaration(_prolog));
+		_out = out;
+		try
+		{
+			_parser.parse(source);
+		}
+		catch (SAXException e)
+		{
+			if (e.getException() instanceof IOException)
+				throw (IOException)e.getException();
+			throw new IOException(e.getMessage(), e);
+		}
+		finally
+		{
+			_out = null;
+		}
+		out.flush();
+	}
+
+	/**
+	  * Check that a document, e.g., the result, has the root hash
+	  * that the second document of the last script applied had.
+	  * @param	source	the document
+	  */
+	public boolean verify(InputSource source) throws IOException
+	{
+		return hash(source, _hashOptions) == _hash2;
+	}
+
+	/**
+	  * Check a document file, as <code>verify(InputSource)</code> does.
+	  * @param	file	the document
+	  */
+	public boolean verify(String file) throws IOException
+	{
+		InputStream	in = _open(file);
+		try
+		{
+			InputSource	source = new InputSource(file);
+			source.setByteStream(in);
+			return verify(source);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	  * Compute the hash value of the root of a document, as
+	  * <code>XTree</code> has it, in one pass and without a tree.
+	  * @param	source		the document
+	  * @param	algorithm	the hash function
+	  */
+	public static long hash(InputSource source,
+				int algorithm) throws IOException
+	{
+		return hash(source, new XOptions().withHashAlgorithm(algorithm));
+	}
+
+	/**
+	  * Compute the hash value of the root of a document, with the hash
+	  * function and the ordered children of the options.
+	  * @param	source		the document
+	  * @param	options		the options
+	  */
+	public static long hash(InputSource source,
+				XOptions options) throws IOException
+	{
+		XMLReader	parser = _newReader();
+		Hasher	hasher = new Hasher(options);
+		parser.setContentHandler(hasher);
+		parser.setErrorHandler(hasher);
+		try
+		{
+			parser.parse(source);
+		}
+		catch (SAXException e)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+		return hasher._root;
+	}
+
+	// Take the XML declaration, if any, out of a prolog.
+	private static String _withoutDeclaration(String prolog)
+	{
+		if (!prolog.startsWith("<?xml") || (prolog.length() < 6) ||
+		    (prolog.charAt(5) > ' '))
+			return prolog;
+
+		int	end = prolog.indexOf("?>");
+		if (end < 0)
+			return prolog;
+		end += 2;
+		if ((end < prolog.length()) && (prolog.charAt(end) == '\n'))
+			end++;
+		return prolog.substring(end);
+	}
+
+	private static InputStream _open(String uri) throws IOException
+	{
+		try
+		{
+			return new URL(uri).openStream();
+		}
+		catch (MalformedURLException mue)
+		{
+			return new FileInputStream(uri);
+		}
+	}
+
+	/**
+	  * Read a script into the table of changes.
+	  * @param	delta	the script, in either format
+	  */
+	void readDelta(InputStream delta) throws IOException
+	{
+		_edits = new Hashtable();
+		BufferedInputStream	in = new BufferedInputStream(delta);
+		in.mark(1);
+		int	first = in.read();
+		in.reset();
+		if (first == 'X')
+			_readBinary(new DataInputStream(in));
+		else
+			_readJson(new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8)));
+	}
+
+	private void _readJson(BufferedReader in) throws IOException
+	{
+		Hashtable	fields = new Hashtable();
+		String	line = in.readLine();
+		if (line == null)
+			throw new IOException("Empty delta");
+		_parseObject(line, fields);
+		if (!String.valueOf(XDelta.VERSION).equals(fields.get("delta")))
+			throw new IOException("Not a delta of version " + XDelta.VERSION);
+		_hashOptions = _optionsOf("des".equals(fields.get("hash")) ?
+					  XHash.DES : XHash.FAST,
+					  (String)fields.get("ordered"));
+		_prolog = (String)fields.get("prolog");
+		_hash1 = Long.parseUnsignedLong((String)fields.get("root1"), 16);
+		_hash2 = Long.parseUnsignedLong((String)fields.get("root2"), 16);
+
+		while ((line = in.readLine()) != null)
+		{
+			if (line.length() == 0)
+				continue;
+			fields.clear();
+			_parseObject(line, fields);
+			String	op = (String)fields.get("op");
+			String	path = (String)fields.get("path");
+			if ((op == null) || (path == null))
+				throw new IOException("Bad operation: " + line);
+
+			String	name = (String)fields.get("name");
+			String	oldValue = (String)fields.get("old");
+			String	newValue = (String)fields.get("new");
+			if (op.equals("delete"))
+				_add(XDelta.DELETE, path, 0, null, null, null);
+			else if (op.equals("insert"))
+			{
+				int	index;
+				try
+				{
+					index = Integer.parseInt((String)fields.get("index"));
+				}
+				catch (NumberFormatException nfe)
+				{
+					throw new IOException("Bad operation: " + line);
+				}
+				if (fields.get("xml") != null)
+					_add(XDelta.INSERT_ELEMENT, path, index, null,
+					     null, (String)fields.get("xml"));
+				else
+					_add(XDelta.INSERT_TEXT, path, index, null,
+					     null, (String)fields.get("text"));
+			}
+			else if (op.equals("move"))
+			{
+				try
+				{
+					_add(XDelta.MOVE, path,
+					     Integer.parseInt((String)fields.get("index")),
+					     null, null, null);
+				}
+				catch (NumberFormatException nfe)
+				{
+					throw new IOException("Bad operation: " + line);
+				}
+			}
+			else if (op.equals("update"))
+				_add(XDelta.UPDATE, path, 0, null, oldValue, newValue);
+			else if (op.equals("delete-attribute"))
+				_add(XDelta.DELETE_ATTRIBUTE, path, 0, name, oldValue,
+				     null);
+			else if (op.equals("insert-attribute"))
+				_add(XDelta.INSERT_ATTRIBUTE, path, 0, name, null,
+				     newValue);
+			else if (op.equals("update-attribute"))
+				_add(XDelta.UPDATE_ATTRIBUTE, path, 0, name, oldValue,
+				     newValue);
+			else
+				throw new IOException("Bad operation: " + line);
+		}
+	}
+
+	private void _readBinary(DataInputStream in) throws IOException
+	{
+		try
+		{
+			if ((in.read() != 'X') || (in.read() != 'D') ||
+			    (in.read() != 'L') || (in.read() != 'T') ||
+			    (_readNumber(in) != XDelta.VERSION))
+				throw new IOException("Not a delta of version " + XDelta.VERSION);
+			int	algorithm = in.readUnsignedByte();
+			_hashOptions = _optionsOf(
+				algorithm & ~(XDelta.ORDERED | XDelta.PROLOG),
+				((algorithm & XDelta.ORDERED) == 0) ? null :
+				_readString(in));
+			_prolog = ((algorithm & XDelta.PROLOG) == 0) ? null :
+				  _readString(in);
+			_hash1 = in.readLong();
+			_hash2 = in.readLong();
+
+			int	code;
+			while ((code = in.readUnsignedByte()) != XDelta.END)
+			{
+				int	depth = _readNumber(in);
+				StringBuffer	path = new StringBuffer();
+				for (int i = 0; i < depth; i++)
+					path.append('/').append(_readNumber(in));
+
+				switch (code)
+				{
+				case XDelta.DELETE:
+					_add(code, path.toString(), 0, null, null, null);
+					break;
+				case XDelta.INSERT_ELEMENT:
+				case XDelta.INSERT_TEXT:
+					int	index = _readNumber(in);
+					_add(code, path.toString(), index, null, null,
+					     _readString(in));
+					break;
+				case XDelta.MOVE:
+					_add(code, path.toString(), _readNumber(in), null,
+					     null, null);
+					break;
+				case XDelta.UPDATE:
+					String	oldText = _readString(in);
+					_add(code, path.toString(), 0, null, oldText,
+					     _readString(in));
+					break;
+				case XDelta.DELETE_ATTRIBUTE:
+					String	name = _readString(in);
+					_add(code, path.toString(), 0, name,
+					     _readString(in), null);
+					break;
+				case XDelta.INSERT_ATTRIBUTE:
+					name = _readString(in);
+					_add(code, path.toString(), 0, name, null,
+					     _readString(in));
+					break;
+				case XDelta.UPDATE_ATTRIBUTE:
+					name = _readString(in);
+					String	oldValue = _readString(in);
+					_add(code, path.toString(), 0, name, oldValue,
+					     _readString(in));
+					break;
+				default:
+					throw new IOException("Bad operation: " + code);
+				}
+			}
+		}
+		catch (EOFException eofe)
+		{
+			throw new IOException("Truncated delta", eofe);
+		}
+	}
+
+	/**
+	  * Get the options the trees of a script were hashed with.
+	  * @param	algorithm	the hash function
+	  * @param	ordered		the ordered tags, or null
+	  */
+	private static XOptions _optionsOf(int algorithm,
+					   String ordered) throws IOException
+	{
+		try
+		{
+			XOptions	options = new XOptions().withHashAlgorithm(algorithm);
+			return (ordered == null) ? options :
+			       options.withOrderedTags(ordered);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			throw new IOException("Bad delta header", iae);
+		}
+	}
+
+	private static int _readNumber(DataInputStream in) throws IOException
+	{
+		int	n = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			int	b = in.readUnsignedByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+	}
+
+	private static String _readString(DataInputStream in) throws IOException
+	{
+		byte	bytes[] = new byte[_readNumber(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	  * Add an operation to the changes of its node.
+	  * @param	code	the operation, as coded by XDelta
+	  * @param	path	the path of the node, or of the parent of an
+	  *			inserted node
+	  * @param	index	the position of an inserted or moved node
+	  * @param	name	the name of an attribute
+	  * @param	oldValue	the old value, of a text or an attribute
+	  * @param	newValue	the new value, or the inserted node
+	  */
+	private void _add(int code, String path, int index, String name,
+			  String oldValue, String newValue) throws IOException
+	{
+		if ((newValue == null) && (code != XDelta.DELETE) &&
+		    (code != XDelta.DELETE_ATTRIBUTE) && (code != XDelta.MOVE))
+			throw new IOException("Bad operation at " + path);
+
+		Edit	edit = (Edit)_edits.get(path);
+		if (edit == null)
+		{
+			edit = new Edit();
+			_edits.put(path, edit);
+		}
+
+		switch (code)
+		{
+		case XDelta.DELETE:
+			edit._delete = true;
+			break;
+		case XDelta.INSERT_ELEMENT:
+		case XDelta.INSERT_TEXT:
+			Insert	insert = new Insert();
+			insert._index = index;
+			insert._element = (code == XDelta.INSERT_ELEMENT);
+			insert._content = insert._element ? newValue :
+					  _escape(newValue);
+			edit._inserts.add(insert);
+			break;
+		case XDelta.MOVE:
+			edit._moveTo = index;
+			String	parent = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+			Edit	parentEdit = (Edit)_edits.get(parent);
+			if (parentEdit == null)
+			{
+				parentEdit = new Edit();
+				_edits.put(parent, parentEdit);
+			}
+			parentEdit._moves++;
+			break;
+		case XDelta.UPDATE:
+			edit._old = oldValue;
+			edit._new = newValue;
+			break;
+		default:
+			edit._attributes.add(new String[] { name, oldValue,
+							    newValue });
+		}
+	}
+
+	/**
+	  * Parse a line of the JSON format, which is an object of strings
+	  * and numbers only.
+	  * @param	line	the line
+	  * @param	fields	the values, all strings, by name
+	  */
+	private static void _parseObject(String line,
+					 Hashtable fields) throws IOException
+	{
+		StringBuffer	buffer = new StringBuffer();
+		int	i = _skipSpace(line, 0);
+		if ((i == line.length()) || (line.charAt(i) != '{'))
+			throw new IOException("Bad line: " + line);
+		i = _skipSpace(line, i + 1);
+		if ((i < line.length()) && (line.charAt(i) == '}'))
+			return;
+
+		while (true)
+		{
+			buffer.setLength(0);
+			i = _skipSpace(line, _parseString(line, i, buffer));
+			String	name = buffer.toString();
+			if ((i == line.length()) || (line.charAt(i) != ':'))
+				throw new IOException("Bad line: " + line);
+			i = _skipSpace(line, i + 1);
+
+			buffer.setLength(0);
+			if ((i < line.length()) && (line.charAt(i) == '"'))
+				i = _parseString(line, i, buffer);
+			else
+			{
+				while ((i < line.length()) &&
+				       ((line.charAt(i) == '-') ||
+					Character.isDigit(line.charAt(i))))
+					buffer.append(line.charAt(i++));
+			}
+			fields.put(name, buffer.toString());
+
+			i = _skipSpace(line, i);
+			if (i == line.length())
+				throw new IOException("Bad line: " + line);
+			else if (line.charAt(i) == '}')
+				return;
+			else if (line.charAt(i) != ',')
+				throw new IOException("Bad line: " + line);
+			i = _skipSpace(line, i + 1);
+		}
+	}
+
+	private static int _skipSpace(String line, int i)
+	{
+		while ((i < line.length()) && (line.charAt(i) <= ' '))
+			i++;
+		return i;
+	}
+
+	/**
+	  * Parse a JSON string.
+	  * @return	the position after it
+	  */
+	private static int _parseString(String line, int i,
+					StringBuffer buffer) throws IOException
+	{
+		if ((i == line.length()) || (line.charAt(i) != '"'))
+			throw new IOException("Bad line: " + line);
+		i++;
+		while (i < line.length())
+		{
+			char	c = line.charAt(i++);
+			if (c == '"')
+				return i;
+			else if (c != '\\')
+			{
+				buffer.append(c);
+				continue;
+			}
+			else if (i == line.length())
+				break;
+
+			c = line.charAt(i++);
+			switch (c)
+			{
+			case 'n':
+				buffer.append('\n');
+				break;
+			case 'r':
+				buffer.append('\r');
+				break;
+			case 't':
+				buffer.append('\t');
+				break;
+			case 'b':
+				buffer.append('\b');
+				break;
+			case 'f':
+				buffer.append('\f');
+				break;
+			case 'u':
+				if (i + 4 > line.length())
+					throw new IOException("Bad line: " + line);
+				try
+				{
+					buffer.append((char)Integer.parseInt(
+						line.substring(i, i + 4), 16));
+				}
+				catch (NumberFormatException nfe)
+				{
+					throw new IOException("Bad line: " + line);
+				}
+				i += 4;
+				break;
+			default:	// '"', '\\' and '/'
+				buffer.append(c);
+			}
+		}
+
+		throw new IOException("Bad line: " + line);
+	}
+
+	// Document handler methods
+
+	public void startDocument()
+	{
+		_depth = 0;
+		_path[0] = "";
+		_childCount[0] = 0;
+		_skip = 0;
+		_readElement = false;
+		_textLength = 0;
+		_cdataCount = 0;
+		_hasher = new Hasher(_hashOptions);
+
+		// Only a new root is inserted into the document.
+		_edit[0] = (Edit)_edits.remove("");
+		_nextInsert[0] = 0;
+		_outCount[0] = 0;
+		_hasElement[0] = true;
+		_pieces[0] = null;
+	}
+
+	public void endDocument() throws SAXException
+	{
+		_insert(0, true);
+		if (_hasher._root != _hash1)
+			throw new SAXException("The delta is not for this document");
+		if (!_edits.isEmpty())
+		{
+			Enumeration	paths = _edits.keys();
+			throw new SAXException("The delta does not fit the document at " + paths.nextElement());
+		}
+	}
+
+	public void startElement(String uri, String local, String raw,
+				 Attributes attrs) throws SAXException
+	{
+		_hasher.startElement(uri, local, raw, attrs);
+		if (_skip > 0)
+		{
+			_skip++;
+			return;
+		}
+
+		// if text is mixed with elements
+		if (_textLength > 0)
+			_addTrimmedText();
+
+		String	path = _path[_depth] + "/" + _childCount[_depth]++;
+		Edit	edit = (Edit)_edits.remove(path);
+		if ((edit != null) && edit._delete)
+		{
+			_skip = 1;
+			_readElement = false;
+			_textLength = 0;
+			_cdataCount = 0;
+			return;
+		}
+		if ((edit != null) && (edit._new != null))
+			throw new SAXException("The delta does not fit the document at " + path);
+
+		if (_pieces[_depth] != null)
+		{
+			// Kept apart, to be put in place at the end tag.
+			_saved[_depth] = _out;
+			_out = new StringWriter();
+		}
+		else
+		{
+			_insert(_depth, false);
+			_startChild(_depth);
+		}
+		_xml.setLength(0);
+		_xml.append('<').append(raw);
+		_appendAttributes(path, attrs, edit);
+		_write(_xml);
+
+		// Push
+		_depth++;
+		_path[_depth] = path;
+		_childCount[_depth] = 0;
+		_tag[_depth] = raw;
+		_edit[_depth] = edit;
+		_nextInsert[_depth] = 0;
+		_outCount[_depth] = 0;
+		_hasElement[_depth] = false;
+		_raw[_depth].setLength(0);
+		_value[_depth].setLength(0);
+		_pieces[_depth] = ((edit != null) && (edit._moves > 0)) ?
+				  new Vector() : null;
+
+		_readElement = true;
+		_textLength = 0;
+		_cdataCount = 0;
+	}
+
+	public void characters(char ch[], int start, int length)
+	{
+		_hasher.characters(ch, start, length);
+		if (_skip > 0)
+			return;
+
+		if (_textLength + length > _text.length)
+		{
+			char	text[] = new char[Math.max(2 * _text.length,
+							   _textLength + length)];
+			System.arraycopy(_text, 0, text, 0, _textLength);
+			_text = text;
+		}
+		System.arraycopy(ch, start, _text, _textLength, length);
+		_textLength += length;
+	}
+
+	public void endElement(String uri, String local,
+			       String raw) throws SAXException
+	{
+		_hasher.endElement(uri, local, raw);
+		if (_skip > 0)
+		{
+			_skip--;
+			return;
+		}
+
+		if (_readElement)
+		{
+			// The text node of an element without element
+			// children, as is, even if empty.
+			_addText(0, _textLength);
+			_readElement = false;
+		}
+		else if (_textLength > 0)
+			_addTrimmedText();
+		_textLength = 0;
+		_cdataCount = 0;
+
+		if (_pieces[_depth] != null)
+			_writePieces(raw);
+		else
+		{
+			_insert(_depth, true);
+			_xml.setLength(0);
+			if (_hasElement[_depth])
+				_xml.append("</").append(raw).append('>');
+			else if (_value[_depth].length() == 0)
+				_xml.append("/>");
+			else
+				_xml.append('>').append(_value[_depth])
+				    .append("</").append(raw).append('>');
+			_write(_xml);
+		}
+
+		// Pop
+		Edit	edit = _edit[_depth];
+		_depth--;
+		if (_pieces[_depth] != null)
+		{
+			Insert	piece = new Insert();
+			piece._index = (edit == null) ? -1 : edit._moveTo;
+			piece._element = true;
+			piece._content = _out.toString();
+			_pieces[_depth].add(piece);
+			_out = _saved[_depth];
+		}
+	}
+
+	// End of document handler methods
+
+	// Lexical handler methods.
+
+	public void startCDATA()
+	{
+		_addCDATA();
+	}
+
+	public void endCDATA()
+	{
+		_addCDATA();
+	}
+
+	public void comment(char[] ch, int start, int length)
+	{
+	}
+
+	public void startDTD(String name, String publicId, String systemId)
+	{
+	}
+
+	public void endDTD()
+	{
+	}
+
+	public void startEntity(String name)
+	{
+	}
+
+	public void endEntity(String name)
+	{
+	}
+
+	// End of lexical handler methods.
+
+	// Note where a CDATA section of the text starts or ends.
+	private void _addCDATA()
+	{
+		if (_skip > 0)
+			return;
+		if (_cdataCount == _cdata.length)
+		{
+			int	cdata[] = new int[2 * _cdataCount];
+			System.arraycopy(_cdata, 0, cdata, 0, _cdataCount);
+			_cdata = cdata;
+		}
+		_cdata[_cdataCount++] = _textLength;
+	}
+
+	/**
+	  * Get part of the text read since the last tag as XML: escaped,
+	  * but for its CDATA sections, which are kept.
+	  */
+	private String _escapeText(int start, int end)
+	{
+		StringBuffer	xml = new StringBuffer();
+		int	pos = start;
+		for (int i = 0; i + 1 < _cdataCount; i += 2)
+		{
+			int	cstart = Math.max(_cdata[i], pos);
+			int	cend = Math.min(_cdata[i+1], end);
+			if (cstart >= cend)
+				continue;
+			XDelta.escape(xml, new String(_text, pos, cstart - pos),
+				      false);
+			xml.append("<![CDATA[").append(_text, cstart, cend - cstart)
+			   .append("]]>");
+			pos = cend;
+		}
+		XDelta.escape(xml, new String(_text, pos, end - pos), false);
+		return xml.toString();
+	}
+
+	private static String _escape(String text)
+	{
+		StringBuffer	xml = new StringBuffer();
+		XDelta.escape(xml, text, false);
+		return xml.toString();
+	}
+
+	/**
+	  * Write the attributes of an element, changed as the script says.
+	  */
+	private void _appendAttributes(String path, Attributes attrs,
+				       Edit edit) throws SAXException
+	{
+		int	changes = (edit == null) ? 0 : edit._attributes.size();
+		int	done = 0;
+		for (int i = 0; i < attrs.getLength(); i++)
+		{
+			String	name = attrs.getQName(i);
+			String	value = attrs.getValue(i);
+			for (int j = 0; j < changes; j++)
+			{
+				String	change[] = (String[])edit._attributes.elementAt(j);
+				if (!name.equals(change[0]))
+					continue;
+				if (!value.equals(change[1]))
+					throw new SAXException("The delta does not fit the document at " + path + " @" + name);
+				value = change[2];
+				done++;
+				break;
+			}
+
+			if (value != null)
+				_appendAttribute(name, value);
+		}
+
+		for (int j = 0; j < changes; j++)
+		{
+			String	change[] = (String[])edit._attributes.elementAt(j);
+			if (change[1] == null)
+			{
+				_appendAttribute(change[0], change[2]);
+				done++;
+			}
+		}
+
+		if (done < changes)
+			throw new SAXException("The delta does not fit the document at " + path);
+	}
+
+	private void _appendAttribute(String name, String value)
+	{
+		_xml.append(' ').append(name).append("=\"");
+		XDelta.escape(_xml, value, true);
+		_xml.append('"');
+	}
+
+	/**
+	  * Take the text read since the last tag, without leading and
+	  * trailing white space, as a text node, unless nothing is left.
+	  */
+	private void _addTrimmedText() throws SAXException
+	{
+		int	start = 0, end = _textLength;
+		while ((start < end) && (_text[start] <= ' '))
+			start++;
+		while ((start < end) && (_text[end-1] <= ' '))
+			end--;
+		if (start == end)
+			_appendText(_depth, _escapeText(0, _textLength), null);
+		else
+			_addText(start, end);
+	}
+
+	/**
+	  * Take part of the text read since the last tag as a text node,
+	  * and write it, changed as the script says.  The text around it
+	  * is white space, which is kept.
+	  */
+	private void _addText(int start, int end) throws SAXException
+	{
+		String	path = _path[_depth] + "/" + _childCount[_depth]++;
+		Edit	edit = (Edit)_edits.remove(path);
+		String	value = _escapeText(start, end);
+		if (edit != null)
+		{
+			if (edit._delete)
+				value = null;
+			else if ((edit._new != null) &&
+				 new String(_text, start, end - start).equals(edit._old))
+				value = _escape(edit._new);
+			else if ((edit._new != null) || (edit._moveTo < 0))
+				throw new SAXException("The delta does not fit the document at " + path);
+		}
+
+		if (_pieces[_depth] != null)
+		{
+			if (value != null)
+			{
+				Insert	piece = new Insert();
+				piece._index = (edit == null) ? -1 : edit._moveTo;
+				piece._content = value;
+				_pieces[_depth].add(piece);
+			}
+			return;
+		}
+
+		if (value != null)
+		{
+			_insert(_depth, false);
+			_outCount[_depth]++;
+		}
+		String	text = _escapeText(0, start);
+		if (value != null)
+			text += value;
+		text += _escapeText(end, _textLength);
+		_appendText(_depth, text, value);
+	}
+
+	/**
+	  * Write text into an element.  Until the element has an element
+	  * child, the text is only kept.
+	  * @param	depth	the depth of the element
+	  * @param	text	the text as XML, with the white space around
+	  * @param	value	the text node as XML, or null if none
+	  */
+	private void _appendText(int depth, String text,
+				 String value) throws SAXException
+	{
+		if (_pieces[depth] != null)	// white space between pieces
+			return;
+
+		if (_hasElement[depth])
+		{
+			_write(text);
+			return;
+		}
+
+		_raw[depth].append(text);
+		if (value != null)
+			_value[depth].append(value);
+	}
+
+	/**
+	  * Start an element child of an element, which ends the start tag
+	  * of the element if it is the first one.
+	  */
+	private void _startChild(int depth) throws SAXException
+	{
+		if (!_hasElement[depth])
+		{
+			_xml.setLength(0);
+			_xml.append('>').append(_raw[depth]);
+			_write(_xml);
+			_hasElement[depth] = true;
+		}
+		_outCount[depth]++;
+	}
+
+	/**
+	  * Write the nodes inserted into an element, up to its current
+	  * position, or all of them.
+	  */
+	private void _insert(int depth, boolean all) throws SAXException
+	{
+		Edit	edit = _edit[depth];
+		if (edit == null)
+			return;
+
+		while (_nextInsert[depth] < edit._inserts.size())
+		{
+			Insert	insert =
+				(Insert)edit._inserts.elementAt(_nextInsert[depth]);
+			if (!all && (insert._index > _outCount[depth]))
+				return;
+
+			if (insert._element)
+			{
+				_startChild(depth);
+				_write(insert._content);
+			}
+			else
+			{
+				_outCount[depth]++;
+				_appendText(depth, insert._content, insert._content);
+			}
+			_nextInsert[depth]++;
+		}
+	}
+
+	/**
+	  * End an element with children moved: write its children, the
+	  * moved and inserted ones at their positions and the others in
+	  * order around them, and its end tag.
+	  * @param	raw	the tag of the element
+	  */
+	private void _writePieces(String raw) throws SAXException
+	{
+		Vector	pieces = _pieces[_depth];
+		Vector	inserts = _edit[_depth]._inserts;
+		Insert	children[] = new Insert[pieces.size() + inserts.size()];
+		boolean	fit = true;
+		int	moved = 0;
+		for (int i = 0; i < inserts.size(); i++)
+			fit = fit && _place(children, (Insert)inserts.elementAt(i));
+		for (int i = 0; i < pieces.size(); i++)
+		{
+			Insert	piece = (Insert)pieces.elementAt(i);
+			if (piece._index >= 0)
+			{
+				fit = fit && _place(children, piece);
+				moved++;
+			}
+		}
+		int	next = 0;
+		for (int i = 0; i < pieces.size(); i++)
+		{
+			Insert	piece = (Insert)pieces.elementAt(i);
+			if (piece._index >= 0)
+				continue;
+			while ((next < children.length) && (children[next] != null))
+				next++;
+			if (next < children.length)
+				children[next] = piece;
+		}
+		for (int i = 0; i < children.length; i++)
+			fit = fit && (children[i] != null);
+		if (!fit || (moved != _edit[_depth]._moves))
+			throw new SAXException("The delta does not fit the document at " + _path[_depth]);
+
+		boolean	hasElement = false;
+		_xml.setLength(0);
+		for (int i = 0; i < children.length; i++)
+		{
+			_xml.append(children[i]._content);
+			hasElement = hasElement || children[i]._element;
+		}
+		if (!hasElement && (_xml.length() == 0))
+			_write("/>");
+		else
+		{
+			_write(">");
+			_write(_xml);
+			_xml.setLength(0);
+			_xml.append("</").append(raw).append('>');
+			_write(_xml);
+		}
+	}
+
+	/**
+	  * Put a child at its new position, which must be free.
+	  */
+	private static boolean _place(Insert children[], Insert child)
+	{
+		if ((child._index >= children.length) ||
+		    (children[child._index] != null))
+			return false;
+
+		children[child._index] = child;
+		return true;
+	}
+
+	private void _write(CharSequence s) throws SAXException
+	{
+		try
+		{
+			_out.append(s);
+		}
+		catch (IOException ioe)
+		{
+			throw new SAXException(ioe);
+		}
+	}
+
+	/**
+	  * <code>Hasher</code> computes the hash value of the root of a
+	  * document as <code>XParser</code> does, with a stack of values.
+	  */
+	private static class Hasher extends DefaultHandler
+	{
+		private XOptions	_options;
+		private int	_algorithm;
+		private boolean	_ordered;
+		private long	_values[] = new long[_STACK_SIZE];
+		private boolean	_orderedValues[] = new boolean[_STACK_SIZE];
+		private long	_sequences[] = new long[_STACK_SIZE];
+		private int	_top = 0;
+		private boolean	_readElement = false;
+		private char	_text[] = new char[_TEXT_SIZE];
+		private int	_textLength = 0;
+		long		_root;
+
+		Hasher(XOptions options)
+		{
+			_options = options;
+			_algorithm = options.getHashAlgorithm();
+			_ordered = options.isOrdered();
+		}
+
+		public void startElement(String uri, String local, String raw,
+					 Attributes attrs)
+		{
+			if (_textLength > 0)
+				_addTrimmedText();
+
+			_top++;
+			_values[_top] = XHash.hash(local, _algorithm);
+			_orderedValues[_top] = _ordered && _options.isOrdered(local);
+			_sequences[_top] = 0;
+			for (int i = 0; i < attrs.getLength(); i++)
+			{
+				long	namehash = XHash.hash(attrs.getQName(i),
+							      _algorithm);
+				long	valuehash = XHash.hash(attrs.getValue(i),
+							       _algorithm);
+				long	attrhash = namehash * namehash +
+						   valuehash * valuehash;
+				_values[_top] += attrhash * attrhash;
+			}
+
+			_readElement = true;
+			_textLength = 0;
+		}
+
+		public void characters(char ch[], int start, int length)
+		{
+			if (_textLength + length > _text.length)
+			{
+				char	text[] = new char[Math.max(2 * _text.length,
+								   _textLength + length)];
+				System.arraycopy(_text, 0, text, 0, _textLength);
+				_text = text;
+			}
+			System.arraycopy(ch, start, _text, _textLength, length);
+			_textLength += length;
+		}
+
+		public void endElement(String uri, String local, String raw)
+		{
+			if (_readElement)
+			{
+				if (_textLength > 0)
+					_addValue(XHash.hash(_text, 0, _textLength,
+							     _algorithm));
+				_readElement = false;
+			}
+			else if (_textLength > 0)
+				_addTrimmedText();
+
+			_textLength = 0;
+			_root = _values[_top] + _sequences[_top];
+			_top--;
+			_addValue(_root * _root);
+		}
+
+		private void _addValue(long value)
+		{
+			if (_orderedValues[_top])
+				_sequences[_top] = XHash.sequence(_sequences[_top],
+								  value);
+			else
+				_values[_top] += value;
+		}
+
+		private void _addTrimmedText()
+		{
+			int	start = 0, end = _textLength;
+			while ((start < end) && (_text[start] <= ' '))
+				start++;
+			while ((start < end) && (_text[end-1] <= ' '))
+				end--;
+			if (start < end)
+				_addValue(XHash.hash(_text, start, end - start,
+						     _algorithm));
+		}
+	}
+
+	public static void main(String args[])
+	{
+		boolean	verify = (args.length == 4) && args[0].equals("-v");
+		if (args.length != (verify ? 4 : 3))
+		{
+			System.err.println(_usage);
+			return;
+		}
+
+		int	opid = verify ? 1 : 0;
+		String	input = args[opid], delta = args[opid+1];
+		String	output = args[opid+2];
+		try
+		{
+			long	t0 = System.currentTimeMillis();
+			XPatch	patch = new XPatch();
+			patch.apply(input, delta, output);
+			long	t1 = System.currentTimeMillis();
+			System.out.println("Patching: " + (t1 - t0) + " ms");
+
+			if (verify)
+			{
+				boolean	verified = patch.verify(output);
+				long	t2 = System.currentTimeMillis();
+				System.out.println("Verifying: " + (t2 - t1) + " ms");
+				if (!verified)
+				{
+					System.err.println("The result is not the second document!");
+					System.exit(1);
+				}
+				System.out.println("The result is the second document.");
+			}
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+
+/**
+  * <code>XResult</code> is the result of a diff: how the first/old
+  * document is changed to the second/new one.
+  */
+class XResult
+{
+	private XDiff		_diff;
+	private boolean		_different;
+	private XOptions	_options;
+
+	/**
+	  * Constructor
+	  * @param	diff		the diff of the two trees
+	  * @param	different	false if there is no difference
+	  * @param	options		the options, for the encoding and the
+	  *				format of output files
+	  */
+	XResult(XDiff diff, boolean different, XOptions options)
+	{
+		_diff = diff;
+		_different = different;
+		_options = options;
+	}
+
+	/**
+	  * Check if the documents are different.
+	  */
+	public boolean isDifferent()
+	{
+		return _different;
+	}
+
+	/**
+	  * Check if the budget ran out, so that the children of some
+	  * subtrees were deleted and inserted, or matched with distances
+	  * or a matching cut short.
+	  */
+	public boolean isDegraded()
+	{
+		return _diff.isDegraded();
+	}
+
+	/**
+	  * Get the degraded subtrees.
+	  * @return	the ids, in tree #1, of the parents whose children
+	  *		were not diffed minimally for lack of budget, or null
+	  *		without a budget
+	  */
+	public Vector getDegradedNodes()
+	{
+		return _diff.getDegradedNodes();
+	}
+
+	/**
+	  * Count the edits of the result, and their cost in the cost model
+	  * of the distances, which is the minimum editing distance between
+	  * the documents in the optimal mode.
+	  * @return	the cost, then the # of edits
+	  */
+	public synchronized int[] countEdits()
+	{
+		int	counts[] = new int[2];
+		_diff.countEdits(counts);
+		return counts;
+	}
+
+	/**
+	  * Write the result out, starting with the prolog of the first
+	  * document if its tree has one.
+	  * @param	out	output writer, which is not closed
+	  */
+	public synchronized void write(Writer out) throws IOException
+	{
+		_diff.writeDiff(out);
+	}
+
+	/**
+	  * Write the result out as an edit script, of the changes alone.
+	  * @param	out	output stream, which is not closed
+	  * @param	format	XOptions.JSON or XOptions.BINARY
+	  */
+	public synchronized void writeDelta(OutputStream out,
+					    int format) throws IOException
+	{
+		_diff.writeDelta(new XDelta(out, format));
+	}
+
+	/**
+	  * Write the result to a file, in the format and the encoding of
+	  * the options.
+	  * @param	output	output file name
+	  */
+	public void write(String output) throws IOException
+	{
+		FileChannel	channel = FileChannel.open(Paths.get(output),
+			StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		if (_options.getFormat() != XOptions.XML)
+		{
+			try
+			{
+				writeDelta(Channels.newOutputStream(channel),
+					   _options.getFormat());
+			}
+			finally
+			{
+				channel.close();
+			}
+			return;
+		}
+
+		XOutput	out = new XOutput(channel, _options.getEncoding());
+		try
+		{
+			write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import org.xml.sax.InputSource;
+
+/**
+  * <code>XServer</code> keeps a JVM warm and diffs documents on request,
+  * so that each diff does not pay for starting the JVM, loading the
+  * parser and compiling the code again.  It listens on a port of the
+  * local host, and takes one job per connection.
+  *
+  * A job is a line of the command line options of XDiff and two inputs,
+  * separated by spaces.  An input is a file, or "-" for a document sent
+  * after the line, as its length in bytes on a line of its own and then
+  * the bytes.  Files are only read under the root directory of the
+  * server, if it has one, so that a job cannot read other files of the
+  * server through a diff.  The answer is a status line, "SAME", "DIFFERENT",
+  * "DIFFERENT DEGRADED n" or "ERROR message", followed by the diff
+  * result when different.
+  *
+  * Each job runs in a thread of its own.  The trees of the input files
+  * are cached, until the files change, so that baselines are only
+  * parsed once.
+  */
+class XServer
+{
+	private static String	_usage = "java XServer [-cache trees] [-max bytes] [-root dir] port\nOptions:\n  -cache\tThe # of parsed input files kept in the cache.\n\tDefault value: 16.\n  -max\tThe largest document a job may send, in bytes.\n\tDefault value: 67108864 (64 MB).\n  -root\tThe directory that the input files of jobs must be under.\n\tDefault: none, jobs may only send documents.\nA job is a line \"[XDiff options] input1 input2\", of 65536 bytes at\nmost, where an input is a file, or \"-\" for a document sent after\nthe line, as its length in bytes on a line and then the bytes.";
+
+	private static final int	_CACHE_SIZE = 16;
+	private static final int	_MAX_DOCUMENT = 1 << 26;
+	private static final int	_MAX_LINE = 1 << 16;
+	private static final String	_INLINE = "-";
+
+	private ServerSocket	_server;
+	private ExecutorService	_executor;
+	private int		_maxDocument;
+	// The canonical path of the root directory, ending with a
+	// separator, or null to refuse input files.
+	private String		_root;
+	// Parses of input files by file and tree options, least recently
+	// used first.
+	private LinkedHashMap	_cache;
+
+	/**
+	  * Constructor of a server whose jobs may only send documents.
+	  * @param	port		the port, on the local host
+	  * @param	cacheSize	# of parsed input files kept in the cache
+	  */
+	public XServer(int port, int cacheSize) throws IOException
+	{
+		this(port, cacheSize, _MAX_DOCUMENT, null);
+	}
+
+	/**
+	  * Constructor that limits the size of the documents sent by jobs,
+	  * which are read whole into memory before they are parsed, and
+	  * the files that jobs may read.
+	  * @param	port		the port, on the local host
+	  * @param	cacheSize	# of parsed input files kept in the cache
+	  * @param	maxDocument	the largest document a job may send, in
+	  *				bytes
+	  * @param	root		the directory that input files must be
+	  *				under, or null to refuse input files
+	  */
+	public XServer(int port, int cacheSize, int maxDocument,
+		       File root) throws IOException
+	{
+		_maxDocument = maxDocument;
+		if (root != null)
+		{
+			if (!root.isDirectory())
+				throw new IOException("Not a directory: " + root);
+			_root = root.getCanonicalPath();
+			if (!_root.endsWith(File.separator))
+				_root += File.separator;
+		}
+		final int	maxEntries = cacheSize;
+		_cache = new LinkedHashMap(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry eldest)
+			{
+				if (size() <= maxEntries)
+					return false;
+				_closeTree((FutureTask)eldest.getValue());
+				return true;
+			}
+		};
+		_server = new ServerSocket(port, 50,
+					   InetAddress.getLoopbackAddress());
+		_executor = Executors.newCachedThreadPool();
+	}
+
+	/**
+	  * Get the port the server listens on.
+	  */
+	public int getPort()
+	{
+		return _server.getLocalPort();
+	}
+
+	/**
+	  * Accept jobs until the server is closed.
+	  */
+	public void serve() throws IOException
+	{
+		while (!_server.isClosed())
+		{
+			final Socket	socket = _server.accept();
+			_executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					_serve(socket);
+				}
+			});
+		}
+	}
+
+	/**
+	  * Stop accepting jobs, and release the trees of the cache.
+	  */
+	public void close() throws IOException
+	{
+		_server.close();
+		_executor.shutdown();
+		synchronized (_cache)
+		{
+			for (Iterator i = _cache.values().iterator(); i.hasNext();)
+				_closeTree((FutureTask)i.next());
+			_cache.clear();
+		}
+	}
+
+	// Run the job of a connection.
+	private void _serve(Socket socket)
+	{
+		// Trees of the documents sent, which are not cached.
+		Vector	inlineTrees = new Vector(2);
+		try
+		{
+			InputStream	in = new BufferedInputStream(socket.getInputStream());
+			XOptions	options = null;
+			XResult	result = null;
+			String	error = null;
+			try
+			{
+				Vector	parameters = new Vector();
+				options = XDiff.readParameters(_split(_readLine(in)),
+							       2, parameters);
+				if (options == null)
+					throw new IOException("Bad job");
+
+				XTree	xtree1 = _readTree(in, (String)parameters.elementAt(0), options, inlineTrees);
+				XTree	xtree2 = _readTree(in, (String)parameters.elementAt(1), options, inlineTrees);
+				result = new XDiff(options).diff(xtree1, xtree2);
+			}
+			catch (Exception e)
+			{
+				error = e.getMessage();
+			}
+
+			Writer	out = new XOutput(Channels.newChannel(
+				socket.getOutputStream()),
+				(result == null) ? "UTF8" : options.getEncoding());
+			if (result == null)
+				out.write("ERROR " + error + "\n");
+			else if (!result.isDifferent())
+				out.write("SAME\n");
+			else
+			{
+				if (result.isDegraded())
+					out.write("DIFFERENT DEGRADED " +
+						  result.getDegradedNodes().size() + "\n");
+				else
+					out.write("DIFFERENT\n");
+				if (options.getFormat() == XOptions.XML)
+					result.write(out);
+				else
+				{
+					out.flush();
+					result.writeDelta(socket.getOutputStream(),
+							  options.getFormat());
+				}
+			}
+			out.close();
+		}
+		catch (IOException ioe)
+		{
+			// The client is gone.
+		}
+		finally
+		{
+			try
+			{
+				for (int i = 0; i < inlineTrees.size(); i++)
+					((XTree)inlineTrees.elementAt(i)).close();
+				socket.close();
+			}
+			catch (IOException ioe)
+			{
+			}
+		}
+	}
+
+	/**
+	  * Get the tree of an input of a job: parse the document that
+	  * follows, or find the tree of the file in the cache.  A document
+	  * longer than the limit of the server is refused before it is
+	  * read.
+	  * @param	in	input of the connection
+	  * @param	input	file, or "-" for a document that follows
+	  * @param	options	the options
+	  * @param	inlineTrees	the trees of the documents that follow,
+	  *				to close after the job, output
+	  * @return	the tree
+	  */
+	private XTree _readTree(InputStream in, String input,
+				XOptions options,
+				Vector inlineTrees) throws IOException
+	{
+		if (!input.equals(_INLINE))
+			return _cachedTree(input, options);
+
+		int	length;
+		try
+		{
+			length = Integer.parseInt(_readLine(in).trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			throw new IOException("Bad document length");
+		}
+		if (length < 0)
+			throw new IOException("Bad document length: " + length);
+		if (length > _maxDocument)
+			throw new IOException("Document too long: " + length +
+					      " bytes, the limit is " +
+					      _maxDocument);
+		byte	doc[] = new byte[length];
+		try
+		{
+			new DataInputStream(in).readFully(doc);
+		}
+		catch (EOFException eofe)
+		{
+			throw new IOException("Document shorter than its length: " +
+					      length);
+		}
+
+		XTree	xtree = new XParser(options).parse(
+			new InputSource(new ByteArrayInputStream(doc)));
+		inlineTrees.addElement(xtree);
+		return xtree;
+	}
+
+	// Release the tree of a cache entry that is dropped.  Jobs still
+	// diffing it can read on; a tree still being parsed is released
+	// by the job parsing it, once done.
+	private static void _closeTree(FutureTask task)
+	{
+		if (!task.isDone())
+			return;
+		try
+		{
+			((XTree)task.get()).close();
+		}
+		catch (Exception e)
+		{
+			// The parse failed: no tree.
+		}
+	}
+
+	/**
+	  * Get the tree of a file from the cache, parsing it or loading
+	  * its snapshot on a miss.  Jobs asking for the same file at the
+	  * same time wait for a single parse.
+	  * @param	input	XML document or snapshot file
+	  * @param	options	the options
+	  * @return	the tree
+	  */
+	private XTree _cachedTree(String input,
+				  XOptions options) throws IOException
+	{
+		File	file = _resolve(input);
+		String	key = file.getPath() + "\n" +
+			      file.lastModified() + "\n" + file.length() + "\n" +
+			      options.getHashAlgorithm() + "\n" +
+			      options.getOrderedTags() + "\n" +
+			      options.isMappedText() + "\n" +
+			      options.isDirectColumns();
+
+		final String	path = file.getPath();
+		final XOptions	treeOptions = options;
+		FutureTask	task;
+		boolean	parse = false;
+		synchronized (_cache)
+		{
+			task = (FutureTask)_cache.get(key);
+			if (task == null)
+			{
+				task = new FutureTask(new Callable()
+				{
+					public Object call() throws IOException
+					{
+						return XDiff.readTree(path, treeOptions);
+					}
+				});
+				_cache.put(key, task);
+				parse = true;
+			}
+		}
+		if (parse)
+		{
+			task.run();
+
+			// Dropped from the cache while parsing, e.g., always
+			// with -cache 0: nothing else releases the tree.
+			boolean	dropped;
+			synchronized (_cache)
+			{
+				dropped = (_cache.get(key) != task);
+			}
+			if (dropped)
+				_closeTree(task);
+		}
+
+		try
+		{
+			return (XTree)task.get();
+		}
+		catch (ExecutionException ee)
+		{
+			synchronized (_cache)
+			{
+				if (_cache.get(key) == task)
+					_cache.remove(key);
+			}
+			if (ee.getCause() instanceof IOException)
+				throw (IOException)ee.getCause();
+			throw new IOException(ee.getCause().getMessage(), ee);
+		}
+		catch (InterruptedException ie)
+		{
+			throw new IOException(ie.getMessage(), ie);
+		}
+	}
+
+	/**
+	  * Resolve an input file of a job under the root directory, with
+	  * links and "..", so that a job cannot read files out of it.
+	  * @param	input	the file, relative to the root, or absolute
+	  * @return	the file, by its canonical path
+	  */
+	private File _resolve(String input) throws IOException
+	{
+		if (_root == null)
+			throw new IOException("Input files are not served: " +
+					      input);
+
+		File	file = new File(input);
+		if (!file.isAbsolute())
+			file = new File(_root, input);
+		file = file.getCanonicalFile();
+		if (!file.getPath().startsWith(_root))
+			throw new IOException("Input file out of the root: " +
+					      input);
+		return file;
+	}
+
+	// Read a line of ASCII characters, without the line feed, of
+	// _MAX_LINE bytes at most.
+	private static String _readLine(InputStream in) throws IOException
+	{
+		StringBuffer	line = new StringBuffer();
+		int	c = in.read();
+		while ((c >= 0) && (c != '\n'))
+		{
+			if (line.length() == _MAX_LINE)
+				throw new IOException("Line too long, the limit is " +
+						      _MAX_LINE + " bytes");
+			if (c != '\r')
+				line.append((char)c);
+			c = in.read();
+		}
+		if ((c < 0) && (line.length() == 0))
+			throw new IOException("No job");
+
+		return line.toString();
+	}
+
+	private static String[] _split(String line)
+	{
+		StringTokenizer	st = new StringTokenizer(line);
+		String	args[] = new String[st.countTokens()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = st.nextToken();
+		return args;
+	}
+
+	public static void main(String args[])
+	{
+		int	opid = 0;
+		int	cacheSize = _CACHE_SIZE;
+		int	maxDocument = _MAX_DOCUMENT;
+		File	root = null;
+		int	port;
+		try
+		{
+			while (args.length > opid + 2)
+			{
+				if (args[opid].equals("-cache"))
+					cacheSize = Integer.parseInt(args[opid + 1]);
+				else if (args[opid].equals("-max"))
+					maxDocument = Integer.parseInt(args[opid + 1]);
+				else if (args[opid].equals("-root"))
+					root = new File(args[opid + 1]);
+				else
+					break;
+				opid += 2;
+			}
+			if ((args.length != opid + 1) || (cacheSize < 0) ||
+			    (maxDocument < 0))
+			{
+				System.err.println(_usage);
+				return;
+			}
+			port = Integer.parseInt(args[opid]);
+		}
+		catch (NumberFormatException nfe)
+		{
+			System.err.println(_usage);
+			return;
+		}
+
+		try
+		{
+			XServer	server = new XServer(port, cacheSize, maxDocument,
+							 root);
+			System.out.println("Listening on port " + server.getPort());
+			server.serve();
+		}
+		catch (IOException ioe)
+		{
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+  * Copyright (c) 2001 - 2005
+  * 	Yuan Wang. All rights reserved.
+  *
+  * Redistribution and use in source and binary forms, with or without
+  * modification, are permitted provided that the following conditions
+  * are met:
+  * 1. Redistributions of source code must retain the above copyright 
+  * notice, this list of conditions and the following disclaimer.
+  * 2. Redistributions in binary form must reproduce the above copyright
+  * notice, this list of conditions and the following disclaimer in the 
+  * documentation and/or other materials provided with the distribution.
+  * 3. Redistributions in any form must be accompanied by information on
+  * how to obtain complete source code for the X-Diff software and any
+  * accompanying software that uses the X-Diff software.  The source code
+  * must either be included in the distribution or be available for no
+  * more than the cost of distribution plus a nominal fee, and must be
+  * freely redistributable under reasonable conditions.  For an executable
+  * file, complete source code means the source code for all modules it
+  * contains.  It does not include source code for modules or files that
+  * typically accompany the major components of the operating system on
+  * which the executable file runs.
+  *
+  * THIS SOFTWARE IS PROVIDED BY YUAN WANG "AS IS" AND ANY EXPRESS OR IMPLIED
+  * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, OR NON-INFRINGEMENT,
+  * ARE DISCLAIMED.  IN NO EVENT SHALL YUAN WANG BE LIABLE FOR ANY DIRECT,
+  * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+  * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+  * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+  * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+  * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+  * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  * POSSIBILITY OF SUCH DAMAGE.
+  *
+  */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+  * <code>XText</code> keeps the text values of an <code>XTree</code>
+  * out of the Java heap, in a temporary file that is memory-mapped in
+  * fixed-size chunks.  A value is appended once and then read back by
+  * its (offset, length) position, in characters.
+  */
+class XText
+{
+	private static final int	_CHUNK_SHIFT = 24;	// 16M chars
+	private static final int	_CHUNK_SIZE = 1 << _CHUNK_SHIFT;
+	private static final int	_CHUNK_MASK = _CHUNK_SIZE - 1;
+
+	private File		_path;
+	private RandomAccessFile	_file;
+	private FileChannel	_channel;
+	private CharBuffer	_chunks[];
+	private int		_chunkCount;
+	private long		_size;
+
+	/**
+	  * Constructor.
+	  */
+	public XText() throws IOException
+	{
+		_path = File.createTempFile("xdiff", ".txt");
+		_file = new RandomAccessFile(_path, "rw");
+		_channel = _file.getChannel();
+		// The mappings stay valid after the file is gone.
+		if (!_path.delete())
+			_path.deleteOnExit();
+
+		_chunks = new CharBuffer[16];
+		_chunkCount = 0;
+		_size = 0;
+	}
+
+	/**
+	  * Append a text value.
+	  * @param	text	characters holding the value
+	  * @param	start	start position of the value
+	  * @param	length	length of the value
+	  * @return	the offset of the value
+	  */
+	public long add(char text[], int start, int length) throws IOException
+	{
+		long	offset = _size;
+		while (length > 0)
+		{
+			int	chunk = (int)(_size >>> _CHUNK_SHIFT);
+			int	pos = (int)(_size & _CHUNK_MASK);
+			if (chunk == _chunkCount)
+				_map();
+
+			int	count = Math.min(length, _CHUNK_SIZE - pos);
+			CharBuffer	buf = _chunks[chunk].duplicate();
+			buf.position(pos);
+			buf.put(text, start, count);
+			start += count;
+			length -= count;
+			_size += count;
+		}
+
+		return offset;
+	}
+
+	/**
+	  * Append a text value.
+	  * @param	text	the value
+	  * @return	the offset of the value
+	  */
+	public long add(String text) throws IOException
+	{
+		char	chars[] = text.toCharArray();
+		return add(chars, 0, chars.length);
+	}
+
+	/**
+	  * Read a text value back.  Safe to call from several threads once
+	  * all values are added.
+	  * @param	offset	the offset of the value
+	  * @param	length	the length of the value
+	  * @return	the value
+	  */
+	public String get(long offset, int length)
+	{
+		char	text[] = new char[length];
+		int	start = 0;
+		while (start < length)
+		{
+			int	chunk = (int)(offset >>> _CHUNK_SHIFT);
+			int	pos = (int)(offset & _CHUNK_MASK);
+			int	count = Math.min(length - start, _CHUNK_SIZE - pos);
+			CharBuffer	buf = _chunks[chunk].duplicate();
+			buf.position(pos);
+			buf.get(text, start, count);
+			start += count;
+			offset += count;
+		}
+
+		return new String(text);
+	}
+
+	/**
+	  * Get the # of characters kept.
+	  */
+	public long size()
+	{
+		return _size;
+	}
+
+	/**
+	  * Close the temporary file, and delete it if it could not be
+	  * deleted while open.  No value can be added any more, but values
+	  * can still be read, e.g., by a diff still running on the tree:
+	  * the mapped chunks do not depend on the file, and are unmapped
+	  * by the garbage collector once the text is unreachable.
+	  */
+	public void close() throws IOException
+	{
+		_file.close();
+		_path.delete();
+	}
+
+	// Map one more chunk at the end of the file.
+	private void _map() throws IOException
+	{
+		if (_chunkCount == _chunks.length)
+		{
+			CharBuffer	chunks[] = new CharBuffer[2 * _chunkCount];
+			System.arraycopy(_chunks, 0, chunks, 0, _chunkCount);
+			_chunks = chunks;
+		}
+
+		long	position = (long)_chunkCount * _CHUNK_SIZE * 2;
+		_chunks[_chunkCount++] = _channel.map(FileChannel.MapMode.READ_WRITE,
+						      position,
+						      (long)_CHUNK_SIZE * 2).asCharBuffer();
+	}
+}
@@ -36,6 +36,20 @@
   */
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
@@ -57,51 +71,119 @@ class XTree {
 	private static int	_BOT_LEVEL_CAPACITY = 4096;
 	private static int	_root = 0;
 
-	private int		_topCap, _botCap;
+	private static final int	_SEVERAL = -1;
+
+	// The int columns of a node.
+	private static final int	_FIRST_CHILD = 0;
+	private static final int	_NEXT_SIBLING = 1;
+	private static final int	_CHILDREN_COUNT = 2;
+	private static final int	_DECENDENTS_COUNT = 3;
+	private static final int	_VALUE_INDEX = 4;
+	private static final int	_INT_COLUMNS = 5;
+
+	// Byte offsets (in units of _botCap) of the hash value and the
+	// attribute flag columns, and the size of a page, in a direct page.
+	private static final int	_HASH_COLUMN = 4 * _INT_COLUMNS;
+	private static final int	_ATTRIBUTE_COLUMN = _HASH_COLUMN + 8;
+	private static final int	_PAGE_SIZE = _ATTRIBUTE_COLUMN + 1;
+
+	// Snapshot files: "XDIFFSNP", then the version.
+	private static final long	_SNAPSHOT_MAGIC = 0x5844494646534e50L;
+	private static final int	_SNAPSHOT_VERSION = 3;
+	private static final int	_SNAPSHOT_HEADER = 40;
+	// Largest piece of a snapshot mapped at once.
+	private static final int	_SNAPSHOT_WINDOW = 1 << 30;
+
+	private int		_topCap, _botCap, _botShift, _botMask;
 	private int		_elementIndex, _tagIndex, _valueCount;
-	private	int		_firstChild[][], _nextSibling[][];
-	private int		_childrenCount[][], _valueIndex[][];
+	// Heap layout: [column][topid][botid].
+	private int		_columns[][][];
 	private boolean		_isAttribute[][];
-	private int		_matching[][];
 	private long		_hashValue[][];
+	// Direct layout: one buffer per page, column after column.
+	private boolean		_direct;
+	private ByteBuffer	_pages[];
 	private String		_value[][];
+	private XText		_text;		// text values, if mapped
+	private long		_textOffset[][];
+	private int		_textLength[][];
 	private Hashtable	_tagNames, _cdataTable;
+	private String		_prolog;	// what precedes the root
+	private XOptions	_options;	// how the tree was hashed
+	// Subtree index: open addressing from hash value to node id + 1,
+	// or to _SEVERAL when more than one subtree has the hash value.
+	private long		_indexKeys[];
+	private int		_indexNodes[];
+	private int		_indexShift;
 
 	/**
 	  * Default constructor
 	  */
 	XTree()
+	{
+		this(new XOptions());
+	}
+
+	/**
+	  * Constructor of a tree that keeps its text values and its node
+	  * columns as the options say: text values in the heap, or in a
+	  * memory-mapped temporary file where they are only read back on
+	  * demand; node columns in heap arrays, or in direct buffers that
+	  * the garbage collector never has to scan or move.
+	  * @param	options	the options
+	  */
+	XTree(XOptions options)
 	{
 		_topCap = _TOP_LEVEL_CAPACITY;
 		_botCap = _BOT_LEVEL_CAPACITY;
-		_initialize();
+		_initialize(options);
 	}
 
 	/**
-	  * Constructor that allows users to modify settings.
+	  * Constructor that allows users to modify settings.  The page
+	  * capacity is rounded up to a power of two.
 	  */
-	XTree(int topcap, int botcap)
+	XTree(int topcap, int botcap, XOptions options)
 	{
 		_topCap = topcap;
-		_botCap = botcap;
-		_initialize();
+		_botCap = Integer.highestOneBit(Math.max(botcap, 2) * 2 - 1);
+		_initialize(options);
 	}
 
 	// Initialization.
-	private void _initialize()
-	{
-		_firstChild	= new int[_topCap][];
-		_nextSibling	= new int[_topCap][];
-		_isAttribute	= new boolean[_topCap][];
-		_valueIndex	= new int[_topCap][];
-		_matching	= new int[_topCap][];
-		_childrenCount	= new int[_topCap][];
-		_hashValue	= new long[_topCap][];
+	private void _initialize(XOptions options)
+	{
+		_options = options;
+		_botShift = Integer.numberOfTrailingZeros(_botCap);
+		_botMask = _botCap - 1;
+		_direct = options.isDirectColumns();
+		if (_direct)
+			_pages = new ByteBuffer[_topCap];
+		else
+		{
+			_columns	= new int[_INT_COLUMNS][_topCap][];
+			_isAttribute	= new boolean[_topCap][];
+			_hashValue	= new long[_topCap][];
+		}
 		_value		= new String[_topCap][];
 
 		_value[0]	= new String[_botCap];
 		_tagNames	= new Hashtable(_botCap);
 
+		if (options.isMappedText())
+		{
+			try
+			{
+				_text = new XText();
+			}
+			catch (IOException ioe)
+			{
+				throw new UncheckedIOException(ioe);
+			}
+			_textOffset = new long[_topCap][];
+			_textLength = new int[_topCap][];
+		}
+
 		// This hashtable is used to record CDATA section info.
 		// The key is the text node id, the value is the list of 
 		// (start,end) position pair of each CDATA section.
@@ -117,25 +199,129 @@ class XTree {
 	  */
 	private void _expand(int topid)
 	{
-		_firstChild[topid]	= new int[_botCap];
-		_nextSibling[topid]	= new int[_botCap];
-		_childrenCount[topid]	= new int[_botCap];
-		_matching[topid]	= new int[_botCap];
-		_valueIndex[topid]	= new int[_botCap];
+		if (topid == _topCap)
+			_grow();
+
+		if (_direct)
+		{
+			ByteBuffer	page = ByteBuffer.allocateDirect(_PAGE_SIZE << _botShift);
+			page.order(ByteOrder.nativeOrder());
+			_pages[topid] = page;
+			// Direct buffers are zeroed, which is 0 and false.
+			for (int i = 0; i < _botCap; i++)
+			{
+				page.putInt((_FIRST_CHILD * _botCap + i) << 2, NULL_NODE);
+				page.putInt((_NEXT_SIBLING * _botCap + i) << 2, NULL_NODE);
+				page.putInt((_VALUE_INDEX * _botCap + i) << 2, -1);
+			}
+			return;
+		}
+
+		for (int c = 0; c < _INT_COLUMNS; c++)
+			_columns[c][topid] = new int[_botCap];
 		_hashValue[topid]	= new long[_botCap];
 		_isAttribute[topid]	= new boolean[_botCap];
 
 		for (int i = 0; i < _botCap; i++)
 		{
-			_firstChild[topid][i]	= NULL_NODE;
-			_nextSibling[topid][i]	= NULL_NODE;
-			_childrenCount[topid][i]= 0;
-			_matching[topid][i]	= MATCH;
-			_valueIndex[topid][i]	= -1;
-			_isAttribute[topid][i]	= false;
+			_columns[_FIRST_CHILD][topid][i]	= NULL_NODE;
+			_columns[_NEXT_SIBLING][topid][i]	= NULL_NODE;
+			_columns[_CHILDREN_COUNT][topid][i]	= 0;
+			_columns[_DECENDENTS_COUNT][topid][i]	= 0;
+			_columns[_VALUE_INDEX][topid][i]	= -1;
+			_isAttribute[topid][i]			= false;
 		}
 	}
 
+	// Double the # of pages the tree can have.
+	private void _grow()
+	{
+		int	topcap = 2 * _topCap;
+		if (_direct)
+			_pages = (ByteBuffer[])_resize(_pages, new ByteBuffer[topcap]);
+		else
+		{
+			for (int c = 0; c < _INT_COLUMNS; c++)
+				_columns[c] = (int[][])_resize(_columns[c], new int[topcap][]);
+			_isAttribute = (boolean[][])_resize(_isAttribute, new boolean[topcap][]);
+			_hashValue = (long[][])_resize(_hashValue, new long[topcap][]);
+		}
+		_value = (String[][])_resize(_value, new String[topcap][]);
+		if (_text != null)
+		{
+			_textOffset = (long[][])_resize(_textOffset, new long[topcap][]);
+			_textLength = (int[][])_resize(_textLength, new int[topcap][]);
+		}
+		_topCap = topcap;
+	}
+
+	private Object _resize(Object from, Object to)
+	{
+		System.arraycopy(from, 0, to, 0, _topCap);
+		return to;
+	}
+
+	// Column access, by shift and mask since _botCap is a power of two.
+	private int _get(int column, int eid)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			return _pages[topid].getInt(((column << _botShift) + botid) << 2);
+		else
+			return _columns[column][topid][botid];
+	}
+
+	private void _set(int column, int eid, int value)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			_pages[topid].putInt(((column << _botShift) + botid) << 2, value);
+		else
+			_columns[column][topid][botid] = value;
+	}
+
+	private long _getHash(int eid)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			return _pages[topid].getLong((_HASH_COLUMN << _botShift) + (botid << 3));
+		else
+			return _hashValue[topid][botid];
+	}
+
+	private void _setHash(int eid, long value)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			_pages[topid].putLong((_HASH_COLUMN << _botShift) + (botid << 3), value);
+		else
+			_hashValue[topid][botid] = value;
+	}
+
+	private boolean _getAttribute(int eid)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			return _pages[topid].get((_ATTRIBUTE_COLUMN << _botShift) + botid) != 0;
+		else
+			return _isAttribute[topid][botid];
+	}
+
+	private void _setAttribute(int eid)
+	{
+		int	topid = eid >>> _botShift;
+		int	botid = eid & _botMask;
+		if (_direct)
+			_pages[topid].put((_ATTRIBUTE_COLUMN << _botShift) + botid, (byte)1);
+		else
+			_isAttribute[topid][botid] = true;
+	}
+
 	// Start  -- methods for constructing a tree.
 	/**
 	  * Add a new element to the tree.
@@ -148,37 +334,33 @@ class XTree {
 	{
 		_elementIndex++;
 
-		int	topid = _elementIndex / _botCap;
-		int	botid = _elementIndex % _botCap;
-		if (botid == 0)
-			_expand(topid);
+		if ((_elementIndex & _botMask) == 0)
+			_expand(_elementIndex >>> _botShift);
 
 		// Check if we've already had the tag
 		Integer	tagID = (Integer)_tagNames.get(tagName);
 		if (tagID != null)
-			_valueIndex[topid][botid] = tagID.intValue();
+			_set(_VALUE_INDEX, _elementIndex, tagID.intValue());
 		else
 		{
 			_tagIndex++;
-			tagID = new Integer(_tagIndex);
+			tagID = Integer.valueOf(_tagIndex);
 			_value[0][_tagIndex] = tagName;
 			_tagNames.put(tagName, tagID);
-			_valueIndex[topid][botid] = _tagIndex;
+			_set(_VALUE_INDEX, _elementIndex, _tagIndex);
 		}
 
 		if (pid == NULL_NODE)
 			return _elementIndex;
 
-		int	ptopid = pid / _botCap;
-		int	pbotid = pid % _botCap;
 		// parent-child relation or sibling-sibling relation
 		if (lsid == NULL_NODE)
-			_firstChild[ptopid][pbotid] = _elementIndex;
+			_set(_FIRST_CHILD, pid, _elementIndex);
 		else
-			_nextSibling[lsid/_botCap][lsid%_botCap] = _elementIndex;
+			_set(_NEXT_SIBLING, lsid, _elementIndex);
 
 		// update children count
-		_childrenCount[ptopid][pbotid]++;
+		_set(_CHILDREN_COUNT, pid, _get(_CHILDREN_COUNT, pid) + 1);
 
 		return _elementIndex;
 	}
@@ -191,33 +373,107 @@ class XTree {
 	  * @param	value	hash value
 	  */
 	public int addText(int eid, int lsid, String text, long value)
+	{
+		_addTextNode(eid, lsid, value);
+		_addValue(text);
+
+		return _elementIndex;
+	}
+
+	/**
+	  * Add a text node from a range of characters.  The string is only
+	  * made here, when the tree keeps it in the heap.
+	  * @param	eid	element id
+	  * @param	lsid	the sibling id on the left
+	  * @param	text	characters holding the text value
+	  * @param	start	start position of the text value
+	  * @param	length	length of the text value
+	  * @param	value	hash value
+	  */
+	public int addText(int eid, int lsid, char text[], int start,
+			   int length, long value)
+	{
+		if (_text == null)
+			return addText(eid, lsid,
+				       new String(text, start, length), value);
+
+		int	tid = _addTextNode(eid, lsid, value);
+		_nextValue();
+		int	vtopid = _valueCount >>> _botShift;
+		int	vbotid = _valueCount & _botMask;
+		try
+		{
+			_textOffset[vtopid][vbotid] = _text.add(text, start,
+								 length);
+		}
+		catch (IOException ioe)
+		{
+			throw new UncheckedIOException(ioe);
+		}
+		_textLength[vtopid][vbotid] = length;
+
+		return tid;
+	}
+
+	// Link a new text node, whose value comes next.
+	private int _addTextNode(int eid, int lsid, long value)
 	{
 		_elementIndex++;
-		int	topid = _elementIndex / _botCap;
-		int	botid = _elementIndex % _botCap;
-		if (botid == 0)
-			_expand(topid);
+		if ((_elementIndex & _botMask) == 0)
+			_expand(_elementIndex >>> _botShift);
 
-		int	etopid = eid / _botCap;
-		int	ebotid = eid % _botCap;
 		if (lsid == NULL_NODE)
-			_firstChild[etopid][ebotid] = _elementIndex;
+			_set(_FIRST_CHILD, eid, _elementIndex);
 		else
-			_nextSibling[lsid/_botCap][lsid%_botCap] = _elementIndex;
+			_set(_NEXT_SIBLING, lsid, _elementIndex);
 
-		_childrenCount[etopid][ebotid]++;
-		_hashValue[topid][botid] = value;
+		_set(_CHILDREN_COUNT, eid, _get(_CHILDREN_COUNT, eid) + 1);
+		_setHash(_elementIndex, value);
+		_set(_VALUE_INDEX, _elementIndex, _valueCount + 1);
 
+		return _elementIndex;
+	}
+
+	// Allocate the next value index, without storing the value yet.
+	private void _nextValue()
+	{
 		_valueCount++;
-		int	vtopid = _valueCount / _botCap;
-		int	vbotid = _valueCount % _botCap;
+		int	vtopid = _valueCount >>> _botShift;
+		int	vbotid = _valueCount & _botMask;
 		if (vbotid == 0)
-			_value[vtopid] = new String[_botCap];
-
-		_value[vtopid][vbotid] = text;
-		_valueIndex[topid][botid] = _valueCount;
+		{
+			if (vtopid == _topCap)
+				_grow();
+			if (_text == null)
+				_value[vtopid] = new String[_botCap];
+			else
+			{
+				_textOffset[vtopid] = new long[_botCap];
+				_textLength[vtopid] = new int[_botCap];
+			}
+		}
+	}
 
-		return _elementIndex;
+	// Store the next text value.
+	private void _addValue(String text)
+	{
+		_nextValue();
+		int	vtopid = _valueCount >>> _botShift;
+		int	vbotid = _valueCount & _botMask;
+		if (_text == null)
+			_value[vtopid][vbotid] = text;
+		else
+		{
+			try
+			{
+				_textOffset[vtopid][vbotid] = _text.add(text);
+			}
+			catch (IOException ioe)
+			{
+				throw new UncheckedIOException(ioe);
+			}
+			_textLength[vtopid][vbotid] = text.length();
+		}
 	}
 
 	/**
@@ -240,10 +496,9 @@ class XTree {
 		addText(aid, NULL_NODE, value, valuehash);
 
 		// hash value third
-		int	atopid = aid / _botCap;
-		int	abotid = aid % _botCap;
-		_isAttribute[atopid][abotid] = true;
-		_hashValue[atopid][abotid] = attrhash;
+		_setAttribute(aid);
+		_setHash(aid, attrhash);
+		_set(_DECENDENTS_COUNT, aid, 1);
 
 		return aid;
 	}
@@ -255,7 +510,18 @@ class XTree {
 	  */
 	public void addHashValue(int eid, long value)
 	{
-		_hashValue[eid/_botCap][eid%_botCap] = value;
+		_setHash(eid, value);
+	}
+
+	/**
+	  * Record the # of all decendents of an element node.  Node ids
+	  * are assigned in document order, so this must be called after
+	  * the last decendent has been added, i.e., at the end tag.
+	  * @param	eid	element id
+	  */
+	public void addDecendentsCount(int eid)
+	{
+		_set(_DECENDENTS_COUNT, eid, _elementIndex - eid);
 	}
 
 	/**
@@ -267,58 +533,32 @@ class XTree {
 	  */
 	public void addCDATA(int eid, int position)
 	{
-		Integer	key = new Integer(eid);
+		Integer	key = Integer.valueOf(eid);
 		Object	value = _cdataTable.get(key);
 		if (value == null)
 		{
 			Vector	list = new Vector(2);
-			list.addElement(new Integer(position));
+			list.addElement(Integer.valueOf(position));
 			_cdataTable.put(key, list);
 		}
 		else
 		{
 			Vector	list = (Vector)value;
-			list.addElement(new Integer(position));
+			list.addElement(Integer.valueOf(position));
 			_cdataTable.put(key, list);
 		}
 	}
 
-	/**
-	  * Add matching information.
-	  * @param	eid	element id
-	  * @param	match	?match and matched element id
-	  */
-	public void addMatching(int eid, int[] match)
-	{
-		if (match[0] == NO_MATCH)
-			_matching[eid/_botCap][eid%_botCap] = NO_MATCH;
-		else if (match[0] == MATCH)
-			_matching[eid/_botCap][eid%_botCap] = MATCH;
-		else
-			_matching[eid/_botCap][eid%_botCap] = match[1] + 1;
-	}
-
 	// End  -- methods for constructing a tree.
 
 	// Start -- methods for accessing a tree.
 
 	/**
-	  * Get matching information.
-	  * @param	eid	element id
-	  * @param	match	?change and matched element id 
+	  * Get the # of nodes of the tree, which are numbered from 0 on.
 	  */
-	public void getMatching(int eid, int[] match)
+	public int getNodeCount()
 	{
-		int	mid = _matching[eid/_botCap][eid%_botCap];
-		if (mid == NO_MATCH)
-			match[0] = NO_MATCH;
-		else if (mid == MATCH)
-			match[0] = MATCH;
-		else
-		{
-			match[0] = CHANGE;
-			match[1] = mid - 1;
-		}
+		return _elementIndex + 1;
 	}
 
 	/**
@@ -335,13 +575,11 @@ class XTree {
 	  */
 	public int getFirstChild(int eid)
 	{
-		int	cid = _firstChild[eid/_botCap][eid%_botCap];
+		int	cid = _get(_FIRST_CHILD, eid);
 		while (cid > _root)
 		{
-			int	ctopid = cid / _botCap;
-			int	cbotid = cid % _botCap;
-			if (_isAttribute[ctopid][cbotid])
-				cid = _nextSibling[ctopid][cbotid];
+			if (_getAttribute(cid))
+				cid = _get(_NEXT_SIBLING, cid);
 			else
 				return cid;
 		}
@@ -355,7 +593,7 @@ class XTree {
 	  */
 	public int getNextSibling(int eid)
 	{
-		return _nextSibling[eid/_botCap][eid%_botCap];
+		return _get(_NEXT_SIBLING, eid);
 	}
 
 	/**
@@ -364,8 +602,8 @@ class XTree {
 	  */
 	public int getFirstAttribute(int eid)
 	{
-		int	aid = _firstChild[eid/_botCap][eid%_botCap];
-		if ((aid > _root) && (_isAttribute[aid/_botCap][aid%_botCap]))
+		int	aid = _get(_FIRST_CHILD, eid);
+		if ((aid > _root) && (_getAttribute(aid)))
 			return aid;
 		else
 			return NULL_NODE;
@@ -377,8 +615,8 @@ class XTree {
 	  */
 	public int getNextAttribute(int aid)
 	{
-		int	aid1 = _nextSibling[aid/_botCap][aid%_botCap];
-		if ((aid1 > _root) && (_isAttribute[aid1/_botCap][aid1%_botCap]))
+		int	aid1 = _get(_NEXT_SIBLING, aid);
+		if ((aid1 > _root) && (_getAttribute(aid1)))
 			return aid1;
 		else
 			return NULL_NODE;
@@ -390,10 +628,10 @@ class XTree {
 	  */
 	public String getAttributeValue(int aid)
 	{
-		int	cid = _firstChild[aid/_botCap][aid%_botCap];
-		int	index = _valueIndex[cid/_botCap][cid%_botCap];
+		int	cid = _get(_FIRST_CHILD, aid);
+		int	index = _get(_VALUE_INDEX, cid);
 		if (index > 0)
-			return _value[index/_botCap][index%_botCap];
+			return getValue(index);
 		else
 			return "";
 	}
@@ -404,7 +642,7 @@ class XTree {
 	  */
 	public long getHashValue(int eid)
 	{
-		return _hashValue[eid/_botCap][eid%_botCap];
+		return _getHash(eid);
 	}
 
 	/**
@@ -414,7 +652,10 @@ class XTree {
 	  */
 	public Vector getCDATA(int eid)
 	{
-		return (Vector)_cdataTable.get(new Integer(eid));
+		// Most documents have none: no key to make for each text node.
+		if (_cdataTable.isEmpty())
+			return null;
+		return (Vector)_cdataTable.get(Integer.valueOf(eid));
 	}
 
 	/**
@@ -423,7 +664,7 @@ class XTree {
 	  */
 	public int getChildrenCount(int eid)
 	{
-		return _childrenCount[eid/_botCap][eid%_botCap];
+		return _get(_CHILDREN_COUNT, eid);
 	}
 
 	/**
@@ -432,20 +673,7 @@ class XTree {
 	  */
 	public int getDecendentsCount(int eid)
 	{
-		int	topid = eid / _botCap;
-		int	botid = eid % _botCap;
-		int	count = _childrenCount[topid][botid];
-		if (count == 0)
-			return 0;
-
-		int	cid = _firstChild[topid][botid];
-		while (cid > NULL_NODE)
-		{
-			count += getDecendentsCount(cid);
-			cid = _nextSibling[cid/_botCap][cid%_botCap];
-		}
-
-		return count;
+		return _get(_DECENDENTS_COUNT, eid);
 	}
 
 	/**
@@ -454,7 +682,7 @@ class XTree {
 	  */
 	public int getValueIndex(int eid)
 	{
-		return _valueIndex[eid/_botCap][eid%_botCap];
+		return _get(_VALUE_INDEX, eid);
 	}
 
 	/**
@@ -463,7 +691,13 @@ class XTree {
 	  */
 	public String getValue(int index)
 	{
-		return _value[index/_botCap][index%_botCap];
+		int	vtopid = index >>> _botShift;
+		int	vbotid = index & _botMask;
+		if ((_text == null) || (vtopid == 0))
+			return _value[vtopid][vbotid];
+		else
+			return _text.get(_textOffset[vtopid][vbotid],
+					 _textLength[vtopid][vbotid]);
 	}
 
 	/**
@@ -472,7 +706,7 @@ class XTree {
 	  */
 	public String getTag(int eid)
 	{
-		int	index = _valueIndex[eid/_botCap][eid%_botCap];
+		int	index = _get(_VALUE_INDEX, eid);
 		return	_value[0][index];
 	}
 
@@ -482,9 +716,9 @@ class XTree {
 	  */
 	public String getText(int eid)
 	{
-		int	index = _valueIndex[eid/_botCap][eid%_botCap];
+		int	index = _get(_VALUE_INDEX, eid);
 		if (index >= _botCap)
-			return _value[index/_botCap][index%_botCap];
+			return getValue(index);
 		else
 			return "";
 	}
@@ -495,7 +729,7 @@ class XTree {
 	  */
 	public boolean isElement(int eid)
 	{
-		int	vindex = _valueIndex[eid/_botCap][eid%_botCap];
+		int	vindex = _get(_VALUE_INDEX, eid);
 		if (vindex < _botCap)
 			return true;
 		else
@@ -508,7 +742,7 @@ class XTree {
 	  */
 	public boolean isAttribute(int eid)
 	{
-		return _isAttribute[eid/_botCap][eid%_botCap];
+		return _getAttribute(eid);
 	}
 
 	/**
@@ -517,52 +751,406 @@ class XTree {
 	  */
 	public boolean isLeaf(int eid)
 	{
-		int	index = _valueIndex[eid/_botCap][eid%_botCap];
+		int	index = _get(_VALUE_INDEX, eid);
 		if (index < _botCap)
 			return false;
 		else
 			return true;
 	}
 
+	/**
+	  * Keep what precedes the root element in the document (XML
+	  * declaration, DOCTYPE, comments...).
+	  * @param	prolog	the prolog, line by line
+	  */
+	public void setProlog(String prolog)
+	{
+		_prolog = prolog;
+	}
+
+	/**
+	  * Get what precedes the root element in the document.
+	  * @return	the prolog, or null if it is not kept
+	  */
+	public String getProlog()
+	{
+		return _prolog;
+	}
+
+	/**
+	  * Index the element subtrees of at least a given size by their
+	  * hash value, so that identical subtrees can be found anywhere in
+	  * the tree.  The tree must be complete.  Only the first call builds
+	  * the index, so that diffs sharing the tree may all ask for it.
+	  * @param	minSize	min # of nodes of an indexed subtree
+	  */
+	public synchronized void buildSubtreeIndex(int minSize)
+	{
+		if (_indexNodes != null)
+			return;
+
+		int	count = 0;
+		for (int eid = _root; eid <= _elementIndex; eid++)
+			if (_isIndexed(eid, minSize))
+				count++;
+
+		int	capacity = 16;
+		while (capacity < count * 2)
+			capacity <<= 1;
+		long	keys[] = new long[capacity];
+		int	nodes[] = new int[capacity];
+		_indexShift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+		int	mask = capacity - 1;
+		for (int eid = _root; eid <= _elementIndex; eid++)
+		{
+			if (!_isIndexed(eid, minSize))
+				continue;
+
+			long	hash = _getHash(eid);
+			int	slot = _indexSlot(hash);
+			while ((nodes[slot] != 0) && (keys[slot] != hash))
+				slot = (slot + 1) & mask;
+			if (nodes[slot] == 0)
+			{
+				keys[slot] = hash;
+				nodes[slot] = eid + 1;
+			}
+			else
+				nodes[slot] = _SEVERAL;
+		}
+		_indexKeys = keys;
+		_indexNodes = nodes;
+	}
+
+	/**
+	  * Find the only indexed subtree with a hash value.
+	  * @param	hash	hash value
+	  * @return	the root of the subtree, or NULL_NODE if there is none
+	  *		or there are several
+	  */
+	public int getUniqueSubtree(long hash)
+	{
+		if (_indexNodes == null)
+			return NULL_NODE;
+
+		int	mask = _indexNodes.length - 1;
+		int	slot = _indexSlot(hash);
+		while (_indexNodes[slot] != 0)
+		{
+			if (_indexKeys[slot] == hash)
+				return (_indexNodes[slot] == _SEVERAL) ?
+					NULL_NODE : _indexNodes[slot] - 1;
+			slot = (slot + 1) & mask;
+		}
+
+		return NULL_NODE;
+	}
+
+	private boolean _isIndexed(int eid, int minSize)
+	{
+		return (_get(_VALUE_INDEX, eid) < _botCap) &&
+		       !_getAttribute(eid) &&
+		       (_get(_DECENDENTS_COUNT, eid) + 1 >= minSize);
+	}
+
+	// Fibonacci hashing, as in XLut.
+	private int _indexSlot(long hash)
+	{
+		return (int)((hash * 0x9e3779b97f4a7c15L) >>> _indexShift);
+	}
+
+	/**
+	  * Release the temporary file of the text values, if they are kept
+	  * in one, once the tree is discarded.  The tree can still be read
+	  * by a diff that is running on it.
+	  */
+	public void close() throws IOException
+	{
+		if (_text != null)
+			_text.close();
+	}
+
 	// End  -- methods for accessing a tree.
 
+	// Start -- methods for snapshots.
+
+	/**
+	  * Save the tree to a snapshot file, which can be loaded back
+	  * instead of parsing the document again.  The header is followed
+	  * by the pages of node columns, in the layout of direct pages and
+	  * in big-endian order, then by the tags, the text values, the
+	  * CDATA sections, the prolog and the ordered tags.  The hash
+	  * function and the ordered tags are recorded since the hash
+	  * values depend on them.
+	  * @param	snapshot	the snapshot file
+	  */
+	public void save(String snapshot) throws IOException
+	{
+		DataOutputStream	out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(snapshot),
+						 1 << 16));
+		int	pageCount = (_elementIndex >>> _botShift) + 1;
+		out.writeLong(_SNAPSHOT_MAGIC);
+		out.writeInt(_SNAPSHOT_VERSION);
+		out.writeInt(_botCap);
+		out.writeInt(_elementIndex);
+		out.writeInt(_tagIndex);
+		out.writeInt(_valueCount);
+		out.writeInt(pageCount);
+		out.writeInt(_options.getHashAlgorithm());
+		out.writeInt(0);
+
+		ByteBuffer	page = ByteBuffer.allocate(_PAGE_SIZE << _botShift);
+		for (int topid = 0; topid < pageCount; topid++)
+		{
+			int	first = topid << _botShift;
+			for (int i = 0; i < _botCap; i++)
+			{
+				int	eid = first + i;
+				for (int c = 0; c < _INT_COLUMNS; c++)
+					page.putInt(((c << _botShift) + i) << 2,
+						    _get(c, eid));
+				page.putLong((_HASH_COLUMN << _botShift) + (i << 3),
+					     _getHash(eid));
+				page.put((_ATTRIBUTE_COLUMN << _botShift) + i,
+					 (byte)(_getAttribute(eid) ? 1 : 0));
+			}
+			out.write(page.array());
+		}
+
+		byte	buf[] = new byte[256];
+		for (int i = 0; i <= _tagIndex; i++)
+			buf = _writeString(out, _value[0][i], buf);
+		for (int i = _botCap; i <= _valueCount; i++)
+			buf = _writeString(out, getValue(i), buf);
+
+		out.writeInt(_cdataTable.size());
+		for (Enumeration e = _cdataTable.keys(); e.hasMoreElements();)
+		{
+			Integer	key = (Integer)e.nextElement();
+			Vector	list = (Vector)_cdataTable.get(key);
+			out.writeInt(key.intValue());
+			out.writeInt(list.size());
+			for (int i = 0; i < list.size(); i++)
+				out.writeInt(((Integer)list.elementAt(i)).intValue());
+		}
+
+		out.writeBoolean(_prolog != null);
+		if (_prolog != null)
+			buf = _writeString(out, _prolog, buf);
+		String	ordered = _options.getOrderedTags();
+		out.writeBoolean(ordered != null);
+		if (ordered != null)
+			_writeString(out, ordered, buf);
+		out.close();
+	}
+
+	/**
+	  * Check if a file is a snapshot rather than an XML document.
+	  * @param	file	the file
+	  */
+	public static boolean isSnapshot(String file)
+	{
+		try
+		{
+			DataInputStream	in = new DataInputStream(
+				new FileInputStream(file));
+			try
+			{
+				return in.readLong() == _SNAPSHOT_MAGIC;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			return false;
+		}
+	}
+
+	/**
+	  * Load a tree from a snapshot file.  The pages of node columns
+	  * are memory-mapped, and copied as they are into direct pages,
+	  * or column by column into heap arrays, as the options say.  A
+	  * snapshot hashed with another hash function or other ordered
+	  * tags than the options is rejected, as its hash values could
+	  * not be compared with those of the other document.
+	  * @param	snapshot	the snapshot file
+	  * @param	options	the options
+	  * @return	the tree
+	  */
+	public static XTree load(String snapshot,
+				 XOptions options) throws IOException
+	{
+		RandomAccessFile	file = new RandomAccessFile(snapshot, "r");
+		FileChannel	channel = file.getChannel();
+		try
+		{
+			ByteBuffer	header = ByteBuffer.allocate(_SNAPSHOT_HEADER);
+			while (header.hasRemaining())
+				if (channel.read(header) < 0)
+					throw new IOException(snapshot + ": not a snapshot");
+			if ((header.getLong(0) != _SNAPSHOT_MAGIC) ||
+			    (header.getInt(8) != _SNAPSHOT_VERSION))
+				throw new IOException(snapshot + ": not a snapshot");
+			int	botcap = header.getInt(12);
+			int	pageCount = header.getInt(28);
+
+			XTree	xtree = new XTree(pageCount + 2, botcap, options);
+			xtree._elementIndex = header.getInt(16);
+			xtree._tagIndex = header.getInt(20);
+			int	valueCount = header.getInt(24);
+			xtree._loadPages(channel, pageCount);
+
+			long	tail = _SNAPSHOT_HEADER +
+				((long)pageCount * _PAGE_SIZE << xtree._botShift);
+			DataInputStream	in = new DataInputStream(
+				new BufferedInputStream(
+					new FileInputStream(file.getFD()), 1 << 16));
+			channel.position(tail);
+
+			byte	buf[] = new byte[256];
+			for (int i = 0; i <= xtree._tagIndex; i++)
+			{
+				String	tag = _readString(in, buf);
+				xtree._value[0][i] = tag;
+				xtree._tagNames.put(tag, Integer.valueOf(i));
+			}
+			for (int i = botcap; i <= valueCount; i++)
+				xtree._addValue(_readString(in, buf));
+
+			int	count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				int	eid = in.readInt();
+				int	size = in.readInt();
+				for (int j = 0; j < size; j++)
+					xtree.addCDATA(eid, in.readInt());
+			}
+
+			// The document is not at hand to read it from.
+			xtree._prolog = in.readBoolean() ?
+				_readString(in, buf) : "";
+
+			XOptions	stored = new XOptions().withHashAlgorithm(
+				header.getInt(32));
+			if (in.readBoolean())
+				stored = stored.withOrderedTags(_readString(in, buf));
+			if (!stored.hashesAs(options))
+				throw new IOException(snapshot + ": hashed with " +
+					"other options (-a/-r) than the diff");
+
+			return xtree;
+		}
+		catch (UncheckedIOException uioe)
+		{
+			throw uioe.getCause();
+		}
+		catch (IllegalArgumentException iae)
+		{
+			// An unknown hash function or an empty ordered tag.
+			throw new IOException(snapshot + ": not a snapshot");
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	// Map the pages of a snapshot, window by window.
+	private void _loadPages(FileChannel channel, int pageCount)
+		throws IOException
+	{
+		int	pageBytes = _PAGE_SIZE << _botShift;
+		int	pagesPerWindow = Math.max(1, _SNAPSHOT_WINDOW / pageBytes);
+		for (int first = 0; first < pageCount; first += pagesPerWindow)
+		{
+			int	count = Math.min(pagesPerWindow, pageCount - first);
+			MappedByteBuffer	window = channel.map(
+				FileChannel.MapMode.READ_ONLY,
+				_SNAPSHOT_HEADER + (long)first * pageBytes,
+				(long)count * pageBytes);
+
+			for (int k = 0; k < count; k++)
+			{
+				int	topid = first + k;
+				int	base = k * pageBytes;
+				if (_direct)
+				{
+					// Pages are written as they are mapped.
+					ByteBuffer	page = ByteBuffer.allocateDirect(pageBytes);
+					page.put(window.slice(base, pageBytes));
+					_pages[topid] = page;
+					continue;
+				}
+
+				_expand(topid);
+				for (int i = 0; i < _botCap; i++)
+				{
+					for (int c = 0; c < _INT_COLUMNS; c++)
+						_columns[c][topid][i] = window.getInt(base + (((c << _botShift) + i) << 2));
+					_hashValue[topid][i] = window.getLong(base + (_HASH_COLUMN << _botShift) + (i << 3));
+					_isAttribute[topid][i] = window.get(base + (_ATTRIBUTE_COLUMN << _botShift) + i) != 0;
+				}
+			}
+		}
+	}
+
+	// Write a string as its length and its UTF-16 characters.
+	private static byte[] _writeString(DataOutputStream out, String s,
+					   byte buf[]) throws IOException
+	{
+		int	length = s.length();
+		if (buf.length < 2 * length)
+			buf = new byte[4 * length];
+		for (int i = 0; i < length; i++)
+		{
+			char	c = s.charAt(i);
+			buf[2*i] = (byte)(c >>> 8);
+			buf[2*i+1] = (byte)c;
+		}
+		out.writeInt(length);
+		out.write(buf, 0, 2 * length);
+		return buf;
+	}
+
+	private static String _readString(DataInputStream in, byte buf[])
+		throws IOException
+	{
+		int	length = in.readInt();
+		byte	bytes[] = (buf.length < 2 * length) ?
+			new byte[2 * length] : buf;
+		in.readFully(bytes, 0, 2 * length);
+		char	chars[] = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char)(((bytes[2*i] & 0xff) << 8) |
+					  (bytes[2*i+1] & 0xff));
+		return new String(chars);
+	}
+
+	// End  -- methods for snapshots.
+
 	/**
 	  * For testing purpose.
 	  */
 	public void dump()
 	{
-		System.out.println("eid\tfirstC\tnextS\tattr?\tcCount\thash\tmatch\tvalue\n");
+		System.out.println("eid\tfirstC\tnextS\tattr?\tcCount\thash\tvalue\n");
 		for (int i = _root; i <= _elementIndex; i++)
-		{
-			int	topid = i / _botCap;
-			int	botid = i % _botCap;
-			int	vid = _valueIndex[topid][botid];
-			int	vtopid = vid / _botCap;
-			int	vbotid = vid % _botCap;
-			System.out.println(i + "\t" +
-					   _firstChild[topid][botid] + "\t" +
-					   _nextSibling[topid][botid] + "\t" +
-					   _isAttribute[topid][botid] + "\t" +
-					   _childrenCount[topid][botid] + "\t" +
-					   _hashValue[topid][botid] + "\t" +
-					   _matching[topid][botid] + "\t" +
-					   _value[vtopid][vbotid]);
-		}
+			dump(i);
 	}
 	public void dump(int eid)
 	{
-		int	topid = eid / _botCap;
-		int	botid = eid % _botCap;
-		int	vid = _valueIndex[topid][botid];
-		int	vtopid = vid / _botCap;
-		int	vbotid = vid % _botCap;
+		int	vid = _get(_VALUE_INDEX, eid);
 		System.out.println(eid + "\t" +
-				   _firstChild[topid][botid] + "\t" +
-				   _nextSibling[topid][botid] + "\t" +
-				   _isAttribute[topid][botid] + "\t" +
-				   _childrenCount[topid][botid] + "\t" +
-				   _hashValue[topid][botid] + "\t" +
-				   _matching[topid][botid] + "\t" +
-				   _value[vtopid][vbotid]);
+				   _get(_FIRST_CHILD, eid) + "\t" +
+				   _get(_NEXT_SIBLING, eid) + "\t" +
+				   _getAttribute(eid) + "\t" +
+				   _get(_CHILDREN_COUNT, eid) + "\t" +
+				   _getHash(eid) + "\t" +
+				   getValue(vid));
 	}
 }
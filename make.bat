@@ -1 +1 @@
-javac XHash.java XTree.java XParser.java XLut.java XDiff.java
+javac XHash.java XOptions.java XText.java XTree.java XParser.java XLut.java XDiff.java XOutput.java XDelta.java XPatch.java XResult.java XServer.java XGen.java XBench.java